@@ -0,0 +1,40 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler, so every result comes with
+ * its allocation rate ({@code gc.alloc.rate.norm} is bytes per operation).
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar benchmarks.BenchmarkRunner [regex] [threads...]}.
+ * Results are written to {@code jmh-<threads>t.json}; storage changes should compare these files
+ * from before and after the change.
+ */
+public class BenchmarkRunner {
+
+    private static final int[] DEFAULT_THREADS = {1, 4, Runtime.getRuntime().availableProcessors()};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : EmailManagerBenchmark.class.getSimpleName();
+        int[] threadCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : Arrays.stream(DEFAULT_THREADS).distinct().toArray();
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-" + threads + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package benchmarks;
+
+import model.email.Email;
+import model.email.EmailManagerImpl;
+import model.email.SearchType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.ResponseStatus;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link EmailManagerImpl} operations behind the client commands.
+ * <p>
+ * Before a trial {@value #SENDER} sends {@code mailboxSize} emails to {@value #RECIPIENT}, so the
+ * recipient's inbox and the sender's sent list start with that many emails. Subjects are
+ * {@code subjectLength} characters and start with one of {@value #SUBJECT_TAGS} tags, which the search
+ * benchmark queries for one in {@value #SUBJECT_TAGS} of the emails. {@link #sendEmail()} grows both
+ * lists by the number of operations of the trial, the other benchmarks leave them unchanged.
+ * <p>
+ * Run through {@link BenchmarkRunner} for the thread counts and the GC profiler, or directly with
+ * {@code java -jar target/benchmarks.jar EmailManagerBenchmark -t 4 -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class EmailManagerBenchmark {
+
+    static final String SENDER = "bench-sender";
+    static final String RECIPIENT = "bench-recipient";
+    static final int SUBJECT_TAGS = 100;
+
+    private static final String BODY = "Benchmark body text that is the same for every email.";
+
+    @Param({"1", "1000", "100000", "1000000"})
+    public int mailboxSize;
+
+    @Param({"16", "256"})
+    public int subjectLength;
+
+    private EmailManagerImpl emailManager;
+    private String subject;
+    private String searchQuery;
+    private int[] emailIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        emailManager = new EmailManagerImpl();
+        emailManager.initializeMailbox(SENDER);
+        emailManager.initializeMailbox(RECIPIENT);
+        subject = subject(0);
+        searchQuery = tag(SUBJECT_TAGS / 2);
+        for (int i = 0; i < mailboxSize; i++) {
+            ResponseStatus status = emailManager.sendEmail(SENDER, RECIPIENT, subject(i), BODY);
+            if (status != ResponseStatus.SUCCESS) {
+                throw new IllegalStateException("Could not fill the mailbox: " + status);
+            }
+        }
+        emailIds = emailManager.getReceivedEmails(RECIPIENT).stream().mapToInt(Email::getId).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        emailManager.shutdown();
+    }
+
+    @Benchmark
+    public ResponseStatus sendEmail() {
+        return emailManager.sendEmail(SENDER, RECIPIENT, subject, BODY);
+    }
+
+    @Benchmark
+    public List<Email> getReceivedEmails() {
+        return emailManager.getReceivedEmails(RECIPIENT);
+    }
+
+    @Benchmark
+    public List<Email> getSentEmails() {
+        return emailManager.getSentEmails(SENDER);
+    }
+
+    @Benchmark
+    public Optional<Email> readEmail() {
+        int emailId = emailIds[ThreadLocalRandom.current().nextInt(emailIds.length)];
+        return emailManager.readEmail(emailId, RECIPIENT);
+    }
+
+    @Benchmark
+    public List<Email> searchEmails() {
+        return emailManager.searchEmails(RECIPIENT, SearchType.RECEIVED, searchQuery);
+    }
+
+    private String subject(int index) {
+        StringBuilder subject = new StringBuilder(subjectLength).append(tag(index % SUBJECT_TAGS)).append(' ');
+        while (subject.length() < subjectLength) {
+            subject.append((char) ('a' + subject.length() % 26));
+        }
+        subject.setLength(subjectLength);
+        return subject.toString();
+    }
+
+    private static String tag(int index) {
+        return String.format("t%03d", index);
+    }
+}
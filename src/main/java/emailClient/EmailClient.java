@@ -16,6 +16,7 @@ public class EmailClient {
     private BufferedReader reader;
     private BufferedWriter writer;
     private String currentUsername;
+    private String sessionToken;
     private static final String EMAIL_DELIMITER = "##";
     private static final String FIELD_DELIMITER = "%%";
     // 12 characters minimum, 2 special characters, 1 digit, 1 uppercase letter, 1 lowercase letter
@@ -81,12 +82,24 @@ public class EmailClient {
                         case "SEND":
                             handleSend(parts, console);
                             break;
+                        case "REPLY":
+                            handleReply(parts.length > 1 ? parts[1] : "", console);
+                            break;
+                        case "THREADS":
+                            handleListThreads(parts.length > 1 ? parts[1] : "");
+                            break;
                         case "LIST":
                             handleListReceived();
                             break;
                         case "SEARCH":
                             handleSearchReceived(parts.length > 1 ? parts[1] : "");
                             break;
+                        case "FROM":
+                            handleSearchFrom(parts.length > 1 ? parts[1] : "");
+                            break;
+                        case "SEARCH_DATE":
+                            handleSearchDate(parts.length > 1 ? parts[1] : "");
+                            break;
                         case "SENT":
                             handleListSent();
                             break;
@@ -96,6 +109,27 @@ public class EmailClient {
                         case "READ":
                             handleRead(parts.length > 1 ? parts[1] : "");
                             break;
+                        case "PEEK":
+                            handleReadMany(parts.length > 1 ? parts[1] : "", "PEEK");
+                            break;
+                        case "MARK_READ":
+                            handleMarkRead(parts.length > 1 ? parts[1] : "");
+                            break;
+                        case "LABEL":
+                            handleLabel("LABEL", parts.length > 1 ? parts[1] : "");
+                            break;
+                        case "UNLABEL":
+                            handleLabel("UNLABEL", parts.length > 1 ? parts[1] : "");
+                            break;
+                        case "FILTER":
+                            handleFilter(parts.length > 1 ? parts[1] : "");
+                            break;
+                        case "STATS":
+                            handleAdminReport("STATS");
+                            break;
+                        case "SLOW":
+                            handleAdminReport("SLOW_REQUESTS");
+                            break;
                         case "LOGOUT":
                             //log("Logging out user " + currentUsername);
                             handleLogout();
@@ -109,7 +143,7 @@ public class EmailClient {
                             running = false;
                             break;
                         default:
-                            System.out.println("Unknown command. Available: SEND, LIST, SEARCH, SENT, SEARCH_SENT, READ, LOGOUT, EXIT");
+                            System.out.println("Unknown command. Available: SEND, REPLY, THREADS, LIST, SEARCH, SEARCH_DATE, FROM, SENT, SEARCH_SENT, READ, PEEK, MARK_READ, LABEL, UNLABEL, FILTER, STATS, SLOW, LOGOUT, EXIT");
                     }
                 }
             }
@@ -241,8 +275,10 @@ public class EmailClient {
 
                 String resp = reader.readLine();
                 //log("Auth response: " + resp);
-                System.out.println(resp);
+                String[] respParts = resp == null ? new String[0] : resp.split(FIELD_DELIMITER);
+                System.out.println(respParts.length > 0 ? respParts[0] : null);
                 if (resp != null && resp.startsWith("SUCCESS")) {
+                    sessionToken = respParts.length > 1 ? respParts[1] : null;
                     return true;
                 } else {
                     System.out.println("Authentication failed. Try again.");
@@ -260,11 +296,22 @@ public class EmailClient {
     private void printMainMenu() {
         System.out.println("\nAvailable commands:");
         System.out.println("  SEND <user>       – send an email");
+        System.out.println("  REPLY <id>        – reply to an email");
+        System.out.println("  THREADS [page]    – list conversations");
         System.out.println("  LIST              – list received emails");
         System.out.println("  SEARCH <term>     – search received emails");
+        System.out.println("  SEARCH_DATE <from> <to> [term] – search received emails by date (yyyy-MM-dd or *)");
+        System.out.println("  FROM <user> [term] – list received emails from a user");
         System.out.println("  SENT              – list sent emails");
         System.out.println("  SEARCH_SENT <term>– search sent emails");
-        System.out.println("  READ <id>         – read a specific email");
+        System.out.println("  READ <ids>        – read emails (e.g. 7 or 3,5,10-14)");
+        System.out.println("  PEEK <ids>        – show emails without marking them read");
+        System.out.println("  MARK_READ [f t]   – mark all (or listed #f to #t-1) received emails read");
+        System.out.println("  LABEL <label> <ids> – label received emails (ids comma separated)");
+        System.out.println("  UNLABEL <label> <ids> – remove a label from received emails");
+        System.out.println("  FILTER <with> <without> [ALL|READ|UNREAD] – received emails by labels (comma separated or *)");
+        System.out.println("  STATS             – server metrics (admins only)");
+        System.out.println("  SLOW              – recent slow requests with stage timings (admins only)");
         System.out.println("  LOGOUT            – log out");
         System.out.println("  EXIT              – exit client\n");
     }
@@ -289,8 +336,66 @@ public class EmailClient {
         String subject = console.nextLine().trim();
         System.out.print("Body: ");
         String body = console.nextLine().trim();
-        sendLine("SEND_EMAIL%%" + recipient + "%%" + subject + "%%" + body);
-        System.out.println(reader.readLine());
+        System.out.println(request("SEND_EMAIL%%" + recipient + "%%" + subject + "%%" + body));
+    }
+
+    /**
+     * Replies to an email.
+     * Reads the original email to find its sender and subject, then sends the reply
+     * with the original id so the server files it into the same conversation.
+     *
+     * @param id the id of the email to reply to
+     * @param console the scanner for user input
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleReply(String id, Scanner console) throws IOException {
+        String resp = request("READ_EMAIL%%" + id.trim());
+        String prefix = "SUCCESS" + FIELD_DELIMITER;
+        if (resp == null || !resp.startsWith(prefix)) {
+            System.out.println(resp);
+            return;
+        }
+        String[] f = resp.substring(prefix.length()).split(FIELD_DELIMITER, -1);
+        if (f.length < 7) {
+            System.out.println(resp);
+            return;
+        }
+        String recipient = f[1].equals(currentUsername) ? f[2] : f[1];
+        String subject = f[3].regionMatches(true, 0, "Re:", 0, 3) ? f[3] : "Re: " + f[3];
+
+        System.out.print("Body: ");
+        String body = console.nextLine().trim();
+        System.out.println(request("SEND_EMAIL%%" + recipient + "%%" + subject + "%%" + body + "%%" + f[0]));
+    }
+
+    /**
+     * Lists conversations, most recently active first, ten per page.
+     *
+     * @param page the page number, starting at 1 (defaults to 1)
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleListThreads(String page) throws IOException {
+        int pageNumber = 1;
+        try {
+            if (!page.isBlank()) {
+                pageNumber = Math.max(1, Integer.parseInt(page.trim()));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: THREADS [page]");
+            return;
+        }
+        String resp = request("LIST_THREADS%%" + (pageNumber - 1) * 10 + "%%10");
+        if (resp == null || !resp.startsWith("SUCCESS")) {
+            System.out.println(resp);
+            return;
+        }
+        String[] chunks = resp.split(EMAIL_DELIMITER, -1);
+        for (int i = 1; i < chunks.length; i++) {
+            String[] f = chunks[i].split(FIELD_DELIMITER, -1);
+            if (f.length < 7) continue;
+            System.out.printf("Thread %s | %s | With: %s | Messages: %s | Unread: %s | Latest: #%s at %s%n",
+                    f[0], f[1], f[2], f[3], f[4], f[5], f[6]);
+        }
     }
 
     /**
@@ -300,8 +405,7 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void handleListReceived() throws IOException {
-        sendLine("GET_RECEIVED_EMAILS");
-        String resp = reader.readLine();
+        String resp = request("GET_RECEIVED_EMAILS");
         printEmails(resp);
     }
 
@@ -312,8 +416,7 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void handleListSent() throws IOException {
-        sendLine("GET_SENT_EMAILS");
-        String resp = reader.readLine();
+        String resp = request("GET_SENT_EMAILS");
         if (resp != null && resp.startsWith("SUCCESS")) {
             printEmails(resp);
         } else {
@@ -329,8 +432,50 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void handleSearchReceived(String term) throws IOException {
-        sendLine("SEARCH_DETAILS%%RECEIVED%%" + term);
-        String resp = reader.readLine();
+        String resp = request("SEARCH_DETAILS%%RECEIVED%%" + term);
+        if (resp != null && resp.startsWith("SUCCESS")) {
+            printEmails(resp);
+        } else {
+            System.out.println(resp);
+        }
+    }
+
+    /**
+     * Lists received emails from one sender, optionally filtered by subject.
+     *
+     * @param args "user [term]"
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSearchFrom(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+", 2);
+        if (parts[0].isBlank()) {
+            System.out.println("Usage: FROM <user> [term]");
+            return;
+        }
+        String term = parts.length == 2 ? parts[1] : "";
+        String resp = request("SEARCH_DETAILS%%FROM%%" + parts[0] + "%%" + term);
+        if (resp != null && resp.startsWith("SUCCESS")) {
+            printEmails(resp);
+        } else {
+            System.out.println(resp);
+        }
+    }
+
+    /**
+     * Searches received emails delivered within a date range, optionally by subject.
+     * Dates are given as yyyy-MM-dd (or full date-times), "*" leaves a bound open.
+     *
+     * @param args "from to [term]"
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleSearchDate(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+", 3);
+        if (parts.length < 2) {
+            System.out.println("Usage: SEARCH_DATE <from> <to> [term]");
+            return;
+        }
+        String term = parts.length == 3 ? parts[2] : "";
+        String resp = request("SEARCH_DETAILS%%RECEIVED%%" + term + "%%" + parts[0] + "%%" + parts[1]);
         if (resp != null && resp.startsWith("SUCCESS")) {
             printEmails(resp);
         } else {
@@ -351,8 +496,7 @@ public class EmailClient {
             System.out.print("Subject to search sent for: ");
             term = console.nextLine().trim();
         }
-        sendLine("SEARCH_DETAILS%%SENT%%" + term);
-        String resp = reader.readLine();
+        String resp = request("SEARCH_DETAILS%%SENT%%" + term);
         if (resp != null && resp.startsWith("SUCCESS")) {
             printEmails(resp);
         } else {
@@ -368,11 +512,107 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void handleRead(String id) throws IOException {
-        sendLine("READ_EMAIL%%" + id);
-        String resp = reader.readLine();
+        if (id.contains(",") || id.contains("-")) {
+            handleReadMany(id, "MARK");
+            return;
+        }
+        String resp = request("READ_EMAIL%%" + id);
         printEmails(resp);
     }
 
+    /**
+     * Reads several emails in one request.
+     *
+     * @param ids comma separated ids and id ranges, e.g. "3,5,10-14"
+     * @param mode MARK to mark the emails read, PEEK to leave them unread
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleReadMany(String ids, String mode) throws IOException {
+        String resp = request("READ_EMAILS%%" + ids.replaceAll("\\s+", "") + "%%" + mode);
+        if (resp == null || !resp.contains(EMAIL_DELIMITER)) {
+            System.out.println(resp);
+            return;
+        }
+        String prefix = "SUCCESS" + FIELD_DELIMITER;
+        String[] chunks = resp.split(EMAIL_DELIMITER, -1);
+        for (int i = 1; i < chunks.length; i++) {
+            if (chunks[i].startsWith(prefix)) {
+                printOneEmail(chunks[i].substring(prefix.length()));
+            } else {
+                System.out.println(chunks[i]);
+            }
+        }
+    }
+
+    /**
+     * Marks received emails as read.
+     * Without a range all received emails are marked, otherwise the range is given as
+     * list indexes "from to", where "to" is exclusive.
+     *
+     * @param range the optional index range
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleMarkRead(String range) throws IOException {
+        String[] bounds = range.isBlank() ? new String[0] : range.trim().split("\\s+");
+        String request = bounds.length == 2
+                ? "MARK_READ%%RECEIVED%%" + bounds[0] + "%%" + bounds[1]
+                : "MARK_READ%%RECEIVED%%ALL";
+        System.out.println(request(request));
+    }
+
+    /**
+     * Adds or removes a label on received emails.
+     * The arguments are the label and a comma separated list of email ids.
+     *
+     * @param request LABEL or UNLABEL
+     * @param args the label and the ids
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleLabel(String request, String args) throws IOException {
+        String[] tokens = args.trim().split("\\s+");
+        if (tokens.length != 2) {
+            System.out.println("Usage: " + request + " <label> <id,id,...>");
+            return;
+        }
+        System.out.println(request(request + "%%RECEIVED%%" + tokens[0] + "%%" + tokens[1]));
+    }
+
+    /**
+     * Lists received emails by labels, e.g. "FILTER work archived UNREAD" for unread emails
+     * labelled "work" that are not archived.
+     *
+     * @param args labels required, labels excluded and the optional read state
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleFilter(String args) throws IOException {
+        String[] tokens = args.trim().split("\\s+");
+        if (tokens.length != 2 && tokens.length != 3) {
+            System.out.println("Usage: FILTER <with|*> <without|*> [ALL|READ|UNREAD]");
+            return;
+        }
+        String readState = tokens.length == 3 ? tokens[2].toUpperCase() : "ALL";
+        String resp = request("FILTER_EMAILS%%RECEIVED%%" + tokens[0] + "%%" + tokens[1] + "%%" + readState);
+        printEmails(resp);
+    }
+
+    /**
+     * Prints an admin report such as the server metrics or the slow requests, one line per entry.
+     *
+     * @param command the report request
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleAdminReport(String command) throws IOException {
+        String resp = request(command);
+        if (resp == null || !resp.startsWith("SUCCESS")) {
+            System.out.println(resp);
+            return;
+        }
+        String[] lines = resp.split(EMAIL_DELIMITER);
+        for (int i = 1; i < lines.length; i++) {
+            System.out.println(lines[i]);
+        }
+    }
+
     /**
      * Handles user logout.
      * Sends a logout request to the server and prints the response.
@@ -380,8 +620,8 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void handleLogout() throws IOException {
-        sendLine("LOGOUT%%" + currentUsername);
-        System.out.println(reader.readLine());
+        System.out.println(request("LOGOUT%%" + currentUsername));
+        sessionToken = null;
     }
 
     /**
@@ -394,6 +634,34 @@ public class EmailClient {
         sendLine("EXIT");
     }
 
+    /**
+     * Sends a request and returns the server's response line.
+     * If the connection turns out to be closed while waiting for the response, the session is resumed
+     * on a new connection and the request is sent once more.
+     *
+     * @param line the request to send
+     * @return the response line
+     * @throws IOException if an I/O error occurs or the session cannot be resumed
+     */
+    private String request(String line) throws IOException {
+        sendLine(line);
+        String resp;
+        try {
+            resp = reader.readLine();
+        } catch (IOException e) {
+            resp = null;
+            if (sessionToken == null) {
+                throw e;
+            }
+        }
+        if (resp == null && sessionToken != null) {
+            resumeSession();
+            writeLine(line);
+            resp = reader.readLine();
+        }
+        return resp;
+    }
+
     /**
      * Sends a line of text to the server.
      * Flushes the writer after sending the line.
@@ -402,10 +670,38 @@ public class EmailClient {
      * @throws IOException if an I/O error occurs
      */
     private void sendLine(String line) throws IOException {
+        try {
+            writeLine(line);
+        } catch (IOException e) {
+            if (sessionToken == null) {
+                throw e;
+            }
+            resumeSession();
+            writeLine(line);
+        }
+        //log("Sent: " + line);
+    }
+
+    private void writeLine(String line) throws IOException {
         writer.write(line);
         writer.newLine();
         writer.flush();
-        //log("Sent: " + line);
+    }
+
+    /**
+     * Reconnects and resumes the session with the token from the last login, instead of logging in again.
+     *
+     * @throws IOException if the server cannot be reached or no longer accepts the token
+     */
+    private void resumeSession() throws IOException {
+        shutdown();
+        connect();
+        writeLine("RESUME%%" + currentUsername + "%%" + sessionToken);
+        String resp = reader.readLine();
+        if (resp == null || !resp.startsWith("SUCCESS")) {
+            sessionToken = null;
+            throw new IOException("Session could not be resumed: " + resp);
+        }
     }
 
     /**
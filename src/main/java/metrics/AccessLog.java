@@ -0,0 +1,282 @@
+package metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log with one JSON line per request, written by a background thread.
+ * <p>
+ * Request threads publish records into a bounded lock-free ring, a multi-producer queue where
+ * each slot carries a sequence number, and never wait: when the ring is full the record is
+ * dropped and counted. The writer thread drains the ring in batches and flushes once per batch.
+ * While the ring stays empty it doubles its sleep up to {@value #MAX_IDLE_PARK_NANOS} ns, so an idle
+ * server does not wake it every millisecond.
+ * Successful requests are sampled at {@code accesslog.sampleRate}; failed ones are always kept.
+ * <p>
+ * The log shared by the server, {@link #global()}, writes to {@code accesslog.file} and is
+ * disabled when that property is not set. The ring size is {@code accesslog.bufferSize}. A shutdown hook
+ * closes it, so the records queued when the server stops are still written.
+ */
+@Slf4j
+public class AccessLog implements Closeable {
+
+    private static final int MAX_BATCH = 1024;
+    private static final long MIN_IDLE_PARK_NANOS = 1_000_000L;
+    private static final long MAX_IDLE_PARK_NANOS = 100_000_000L;
+
+    private static final AccessLog GLOBAL = fromSystemProperties();
+
+    private final boolean enabled;
+    private final double sampleRate;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+
+    private final BufferedWriter writer;
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    private AccessLog() {
+        this.enabled = false;
+        this.sampleRate = 0;
+        this.mask = 0;
+        this.slots = null;
+        this.sequences = null;
+        this.writer = null;
+        this.writerThread = null;
+    }
+
+    public AccessLog(Path file, int bufferSize, double sampleRate) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.enabled = true;
+        this.sampleRate = sampleRate;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.running = true;
+        this.writerThread = new Thread(this::drainLoop, "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Access log shared by the server, configured from system properties.
+     */
+    public static AccessLog global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Access log that records nothing.
+     */
+    public static AccessLog disabled() {
+        return new AccessLog();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues one request record; never blocks.
+     */
+    public void record(String remote, String user, String command, String status,
+                       int requestLength, int responseLength, long durationNanos) {
+        if (!enabled) {
+            return;
+        }
+        boolean failed = status == null || !status.equals("SUCCESS");
+        if (!failed && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.increment();
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), remote, user, command, status, requestLength, responseLength, durationNanos);
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, entry);
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+//                The writer has not freed this slot yet: the ring is full.
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    public void registerGauges(MetricsRegistry metrics) {
+        metrics.registerGauge("accessLog.written", this::getWrittenCount);
+        metrics.registerGauge("accessLog.dropped", this::getDroppedCount);
+        metrics.registerGauge("accessLog.sampledOut", this::getSampledOutCount);
+    }
+
+    /**
+     * Stops the writer after it has written every queued record.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!enabled || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long parkNanos = MIN_IDLE_PARK_NANOS;
+        while (true) {
+            boolean stopping = !running;
+            int drained = drainBatch(line);
+            if (drained > 0) {
+                parkNanos = MIN_IDLE_PARK_NANOS;
+            } else {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes up to {@value #MAX_BATCH} queued records with a single flush and returns how many were written.
+     */
+    private int drainBatch(StringBuilder line) {
+        int drained = 0;
+        try {
+            while (drained < MAX_BATCH) {
+                int index = (int) (head & mask);
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Entry entry = slots.getAndSet(index, null);
+                sequences.set(index, head + mask + 1);
+                head++;
+                line.setLength(0);
+                entry.appendJson(line);
+                writer.write(line.toString());
+                writer.newLine();
+                drained++;
+            }
+            if (drained > 0) {
+                writer.flush();
+                written.add(drained);
+            }
+        } catch (IOException e) {
+            log.error("Cannot write access log: {}", e.getMessage());
+        }
+        return drained;
+    }
+
+    private static AccessLog fromSystemProperties() {
+        String file = System.getProperty("accesslog.file");
+        if (file == null) {
+            return disabled();
+        }
+        try {
+            AccessLog accessLog = new AccessLog(Path.of(file),
+                    Integer.getInteger("accesslog.bufferSize", 8192),
+                    Double.parseDouble(System.getProperty("accesslog.sampleRate", "1.0")));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    accessLog.close();
+                } catch (IOException e) {
+                    log.error("Cannot close access log {}: {}", file, e.getMessage());
+                }
+            }, "access-log-shutdown"));
+            return accessLog;
+        } catch (IOException | NumberFormatException e) {
+            log.error("Access log disabled, cannot open {}: {}", file, e.getMessage());
+            return disabled();
+        }
+    }
+
+    private record Entry(long timestampMillis, String remote, String user, String command, String status,
+                         int requestLength, int responseLength, long durationNanos) {
+
+        void appendJson(StringBuilder out) {
+            out.append("{\"ts\":").append(timestampMillis);
+            appendField(out, "remote", remote);
+            appendField(out, "user", user);
+            appendField(out, "cmd", command);
+            appendField(out, "status", status);
+            out.append(",\"in\":").append(requestLength)
+                    .append(",\"out\":").append(responseLength)
+                    .append(",\"us\":").append(durationNanos / 1000)
+                    .append('}');
+        }
+
+        private static void appendField(StringBuilder out, String name, String value) {
+            out.append(",\"").append(name).append("\":");
+            if (value == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and traffic of one request type.
+ */
+@Getter
+public final class CommandMetrics {
+
+    private final String command;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    CommandMetrics(String command) {
+        this.command = command;
+    }
+
+    public void record(long nanos, int requestBytes, int responseBytes, boolean error) {
+        latency.record(nanos);
+        requests.increment();
+        bytesIn.add(requestBytes);
+        bytesOut.add(responseBytes);
+        if (error) {
+            errors.increment();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts client connections and records how long they stay open.
+ */
+public class ConnectionTracker implements ConnectionsMXBean {
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder opened = new LongAdder();
+    private final LatencyHistogram lifetime = new LatencyHistogram();
+
+    /**
+     * Returns the start time to pass to {@link #closed(long)}.
+     */
+    public long opened() {
+        opened.increment();
+        active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void closed(long openedAtNanos) {
+        active.decrementAndGet();
+        lifetime.record(System.nanoTime() - openedAtNanos);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    @Override
+    public long getOpenedConnections() {
+        return opened.sum();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return lifetime.snapshot().count();
+    }
+
+    @Override
+    public long getLifetimeP50Millis() {
+        return lifetime.snapshot().p50() / 1_000_000;
+    }
+
+    @Override
+    public long getLifetimeP99Millis() {
+        return lifetime.snapshot().p99() / 1_000_000;
+    }
+
+    @Override
+    public long getLifetimeMaxMillis() {
+        return lifetime.snapshot().max() / 1_000_000;
+    }
+
+    public void registerGauges(MetricsRegistry metrics) {
+        metrics.registerGauge("connections.active", this::getActiveConnections);
+        metrics.registerGauge("connections.opened", this::getOpenedConnections);
+        metrics.registerGauge("connections.lifetimeP50Millis", this::getLifetimeP50Millis);
+        metrics.registerGauge("connections.lifetimeP99Millis", this::getLifetimeP99Millis);
+    }
+}
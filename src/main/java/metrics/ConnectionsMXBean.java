@@ -0,0 +1,19 @@
+package metrics;
+
+/**
+ * JMX view of a {@link ConnectionTracker}.
+ */
+public interface ConnectionsMXBean {
+
+    int getActiveConnections();
+
+    long getOpenedConnections();
+
+    long getClosedConnections();
+
+    long getLifetimeP50Millis();
+
+    long getLifetimeP99Millis();
+
+    long getLifetimeMaxMillis();
+}
@@ -0,0 +1,104 @@
+package metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread pool with a bounded queue that counts rejections and warns when queue occupancy
+ * crosses {@link #WARNING_LEVELS}. A warning is logged once per level on the way up; the level
+ * is re-armed when occupancy falls below it again.
+ */
+@Slf4j
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor implements ThreadPoolMXBean {
+
+    private static final int[] WARNING_LEVELS = {50, 80, 100};
+
+    private final String name;
+    private final int queueCapacity;
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger warnedLevel = new AtomicInteger();
+
+    public InstrumentedThreadPoolExecutor(String name, int corePoolSize, int maxPoolSize, long keepAliveTime,
+                                          TimeUnit unit, int queueCapacity) {
+        super(corePoolSize, maxPoolSize, keepAliveTime, unit, new ArrayBlockingQueue<>(queueCapacity));
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        setRejectedExecutionHandler((task, executor) -> {
+            rejected.increment();
+            throw new RejectedExecutionException("Pool " + name + " is saturated: "
+                    + executor.getActiveCount() + " active, " + executor.getQueue().size() + " queued");
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command);
+        checkOccupancy();
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable failure) {
+        super.afterExecute(task, failure);
+        checkOccupancy();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueOccupancyPercent() {
+        return getQueue().size() * 100 / queueCapacity;
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Registers the pool gauges under {@code pool.<name>.}.
+     */
+    public void registerGauges(MetricsRegistry metrics) {
+        String prefix = "pool." + name + ".";
+        metrics.registerGauge(prefix + "active", this::getActiveCount);
+        metrics.registerGauge(prefix + "size", this::getPoolSize);
+        metrics.registerGauge(prefix + "maxSize", this::getMaximumPoolSize);
+        metrics.registerGauge(prefix + "queued", this::getQueueSize);
+        metrics.registerGauge(prefix + "queueCapacity", this::getQueueCapacity);
+        metrics.registerGauge(prefix + "completed", this::getCompletedTaskCount);
+        metrics.registerGauge(prefix + "rejected", this::getRejectedCount);
+    }
+
+    private void checkOccupancy() {
+        int occupancy = getQueueOccupancyPercent();
+        int level = 0;
+        for (int warningLevel : WARNING_LEVELS) {
+            if (occupancy >= warningLevel) {
+                level = warningLevel;
+            }
+        }
+        int previous = warnedLevel.getAndSet(level);
+        if (level > previous) {
+            log.warn("Pool {} queue is {}% full ({}/{} queued, {} of {} threads active)",
+                    name, occupancy, getQueue().size(), queueCapacity, getActiveCount(), getMaximumPoolSize());
+        }
+    }
+}
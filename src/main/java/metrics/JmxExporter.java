@@ -0,0 +1,37 @@
+package metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes metrics as MBeans of the platform MBean server under the {@value #DOMAIN} domain.
+ */
+@Slf4j
+public final class JmxExporter {
+
+    public static final String DOMAIN = "emailserver";
+
+    private JmxExporter() {
+    }
+
+    /**
+     * Registers the bean as {@code emailserver:type=<type>,name=<name>}, replacing a bean of the same name.
+     * Failures are logged; metrics must never stop the server from starting.
+     */
+    public static void register(String type, String name, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = ObjectName.getInstance(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+        } catch (JMException e) {
+            log.warn("Cannot register MBean {} {}: {}", type, name, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MetricsRegistry}.
+ */
+public interface MetricsMXBean {
+
+    Map<String, Long> getGauges();
+
+    List<String> getReport();
+}
@@ -0,0 +1,113 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process registry of per-command request metrics and named gauges.
+ * <p>
+ * At most {@value #MAX_COMMANDS} command names are tracked separately, later ones are counted
+ * under {@value #OTHER} so that clients sending arbitrary request types cannot grow the registry.
+ * Gauges are read when the registry is rendered, so they cost nothing in between.
+ */
+public class MetricsRegistry implements MetricsMXBean {
+
+    public static final String OTHER = "OTHER";
+    private static final int MAX_COMMANDS = 64;
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final ConnectionTracker connections = new ConnectionTracker();
+
+    /**
+     * Registry shared by the whole server.
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public CommandMetrics command(String name) {
+        CommandMetrics metrics = commands.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (commands.size() >= MAX_COMMANDS) {
+            return commands.computeIfAbsent(OTHER, CommandMetrics::new);
+        }
+        return commands.computeIfAbsent(name, CommandMetrics::new);
+    }
+
+    /**
+     * Records one request and its response; a response that is not a success counts as an error.
+     * Sizes are counted in characters plus the line break, which matches the bytes sent for ASCII
+     * and keeps large emails from being scanned again on every request.
+     */
+    public void recordRequest(String command, long nanos, String request, String response) {
+        command(command).record(
+                nanos,
+                request.length() + 1,
+                response == null ? 0 : response.length() + 1,
+                response == null || !response.startsWith("SUCCESS")
+        );
+    }
+
+    /**
+     * Registers a value read on every dump, replacing any gauge of the same name.
+     */
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public ConnectionTracker getConnections() {
+        return connections;
+    }
+
+    public Map<String, CommandMetrics> getCommands() {
+        return Map.copyOf(commands);
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return readGauges();
+    }
+
+    @Override
+    public List<String> getReport() {
+        return render();
+    }
+
+    public Map<String, Long> readGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    /**
+     * One line per command, sorted by name, followed by one line per gauge. Latencies are in microseconds.
+     */
+    public List<String> render() {
+        List<String> lines = new ArrayList<>();
+        new ConcurrentSkipListMap<>(commands).forEach((name, metrics) -> {
+            LatencyHistogram.Snapshot latency = metrics.getLatency().snapshot();
+            lines.add(String.format("%s requests=%d errors=%d bytesIn=%d bytesOut=%d p50=%dus p99=%dus p999=%dus max=%dus",
+                    name,
+                    metrics.getRequests().sum(),
+                    metrics.getErrors().sum(),
+                    metrics.getBytesIn().sum(),
+                    metrics.getBytesOut().sum(),
+                    latency.p50() / 1000,
+                    latency.p99() / 1000,
+                    latency.p999() / 1000,
+                    latency.max() / 1000));
+        });
+        readGauges().forEach((name, value) -> lines.add(name + "=" + value));
+        return lines;
+    }
+}
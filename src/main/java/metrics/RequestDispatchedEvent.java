@@ -0,0 +1,36 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A request was handled, from dispatch until the response was built.
+ */
+@Name("emailserver.RequestDispatched")
+@Label("Request Dispatched")
+@Category({"Email Server", "Requests"})
+public class RequestDispatchedEvent extends Event {
+
+    @Label("Command")
+    @Description("Request type")
+    public String command;
+
+    @Label("User")
+    @Description("Logged in user, if any")
+    public String user;
+
+    @Label("Status")
+    @Description("Response status")
+    public String status;
+
+    @Label("Request Length")
+    @Description("Characters in the request line")
+    public int requestLength;
+
+    @Label("Response Length")
+    @Description("Characters in the response")
+    public int responseLength;
+}
@@ -0,0 +1,28 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A client request line was read. Instant event.
+ */
+@Name("emailserver.RequestReceived")
+@Label("Request Received")
+@Category({"Email Server", "Requests"})
+public class RequestReceivedEvent extends Event {
+
+    @Label("Command")
+    @Description("Request type")
+    public String command;
+
+    @Label("User")
+    @Description("Logged in user, if any")
+    public String user;
+
+    @Label("Request Length")
+    @Description("Characters in the request line")
+    public int requestLength;
+}
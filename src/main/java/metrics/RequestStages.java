@@ -0,0 +1,54 @@
+package metrics;
+
+/**
+ * Time spent per stage of the request handled by the current thread.
+ * <p>
+ * The request loop starts a fresh instance for every request; code further down, such as the
+ * mailbox shards, adds to it through {@link #current()} without the stages being passed along.
+ * Threads not handling a client request have no current instance.
+ */
+public final class RequestStages {
+
+    private static final ThreadLocal<RequestStages> CURRENT = new ThreadLocal<>();
+
+    long parseNanos;
+    long storageNanos;
+    long serializationNanos;
+    long writeNanos;
+
+    /**
+     * Starts tracking a request on this thread.
+     */
+    public static RequestStages begin() {
+        RequestStages stages = new RequestStages();
+        CURRENT.set(stages);
+        return stages;
+    }
+
+    /**
+     * Stages of the request handled by this thread, or {@code null}.
+     */
+    public static RequestStages current() {
+        return CURRENT.get();
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    public void addParse(long nanos) {
+        parseNanos += nanos;
+    }
+
+    public void addStorage(long nanos) {
+        storageNanos += nanos;
+    }
+
+    public void addSerialization(long nanos) {
+        serializationNanos += nanos;
+    }
+
+    public void addWrite(long nanos) {
+        writeNanos += nanos;
+    }
+}
@@ -0,0 +1,24 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A response was written and flushed to the client socket.
+ */
+@Name("emailserver.ResponseWritten")
+@Label("Response Written")
+@Category({"Email Server", "Requests"})
+public class ResponseWrittenEvent extends Event {
+
+    @Label("Command")
+    @Description("Request type")
+    public String command;
+
+    @Label("Response Length")
+    @Description("Characters in the response")
+    public int responseLength;
+}
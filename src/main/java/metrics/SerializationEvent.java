@@ -0,0 +1,24 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A list of emails was serialized into a response.
+ */
+@Name("emailserver.Serialization")
+@Label("Response Serialization")
+@Category({"Email Server", "Requests"})
+public class SerializationEvent extends Event {
+
+    @Label("Email Count")
+    @Description("Emails serialized")
+    public int emailCount;
+
+    @Label("Response Length")
+    @Description("Characters in the response")
+    public int responseLength;
+}
@@ -0,0 +1,104 @@
+package metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the most recent requests that took longer than a threshold, with their stage breakdown.
+ * <p>
+ * Only slow requests reach the lock, so it costs nothing on the normal path. The ring holds
+ * {@code capacity} entries and overwrites the oldest.
+ * The shared tracker, {@link #global()}, uses {@code slowlog.thresholdMillis} (default 100) and
+ * {@code slowlog.capacity} (default 128).
+ */
+public class SlowRequestTracker {
+
+    private static final SlowRequestTracker GLOBAL = new SlowRequestTracker(
+            Duration.ofMillis(Long.getLong("slowlog.thresholdMillis", 100L)),
+            Integer.getInteger("slowlog.capacity", 128));
+
+    private final long thresholdNanos;
+    private final SlowRequest[] ring;
+    private final LongAdder captured = new LongAdder();
+    private int next;
+
+    public SlowRequestTracker(Duration threshold, int capacity) {
+        this.thresholdNanos = threshold.toNanos();
+        this.ring = new SlowRequest[capacity];
+    }
+
+    public static SlowRequestTracker global() {
+        return GLOBAL;
+    }
+
+    public boolean isSlow(long totalNanos) {
+        return totalNanos >= thresholdNanos;
+    }
+
+    public void record(String command, String user, long totalNanos, RequestStages stages, int mailboxSize, int responseLength) {
+        SlowRequest request = new SlowRequest(
+                Instant.now(),
+                command,
+                user,
+                totalNanos,
+                stages.parseNanos,
+                stages.storageNanos,
+                stages.serializationNanos,
+                stages.writeNanos,
+                mailboxSize,
+                responseLength
+        );
+        captured.increment();
+        synchronized (ring) {
+            ring[next] = request;
+            next = (next + 1) % ring.length;
+        }
+    }
+
+    /**
+     * Captured requests, newest first.
+     */
+    public List<SlowRequest> recent() {
+        List<SlowRequest> requests = new ArrayList<>(ring.length);
+        synchronized (ring) {
+            for (int i = 1; i <= ring.length; i++) {
+                SlowRequest request = ring[Math.floorMod(next - i, ring.length)];
+                if (request == null) {
+                    break;
+                }
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    public long getCapturedCount() {
+        return captured.sum();
+    }
+
+    /**
+     * A slow request. Durations are in nanoseconds; {@code other} is the time not attributed to a stage.
+     * The mailbox size is the number of emails of the user after the request, or -1 without a user.
+     */
+    public record SlowRequest(Instant at, String command, String user, long totalNanos, long parseNanos,
+                              long storageNanos, long serializationNanos, long writeNanos,
+                              int mailboxSize, int responseLength) {
+
+        public long otherNanos() {
+            return Math.max(0, totalNanos - parseNanos - storageNanos - serializationNanos - writeNanos);
+        }
+
+        /**
+         * One line summary with durations in microseconds.
+         */
+        public String describe() {
+            return String.format("%s %s user=%s total=%dus parse=%dus storage=%dus serialization=%dus write=%dus other=%dus mailbox=%d responseLength=%d",
+                    at, command, user,
+                    totalNanos / 1000, parseNanos / 1000, storageNanos / 1000, serializationNanos / 1000,
+                    writeNanos / 1000, otherNanos() / 1000, mailboxSize, responseLength);
+        }
+    }
+}
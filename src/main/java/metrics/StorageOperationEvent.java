@@ -0,0 +1,34 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * An operation on a mailbox shard, from submission until its result was available to the caller.
+ */
+@Name("emailserver.StorageOperation")
+@Label("Storage Operation")
+@Category({"Email Server", "Storage"})
+public class StorageOperationEvent extends Event {
+
+    @Label("Operation")
+    @Description("Storage operation")
+    public String operation;
+
+    @Label("User")
+    @Description("Mailbox owner")
+    public String user;
+
+    @Label("Shard")
+    @Description("Mailbox shard index")
+    public int shard;
+
+    @Label("Queued")
+    @Description("Time waiting for the shard thread")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queuedNanos;
+}
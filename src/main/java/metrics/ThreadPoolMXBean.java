@@ -0,0 +1,25 @@
+package metrics;
+
+/**
+ * JMX view of an {@link InstrumentedThreadPoolExecutor}.
+ */
+public interface ThreadPoolMXBean {
+
+    String getName();
+
+    int getActiveCount();
+
+    int getPoolSize();
+
+    int getMaximumPoolSize();
+
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    int getQueueOccupancyPercent();
+
+    long getCompletedTaskCount();
+
+    long getRejectedCount();
+}
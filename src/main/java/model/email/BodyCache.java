@@ -0,0 +1,76 @@
+package model.email;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of decoded bodies read back from cold storage.
+ * The bound is the approximate number of characters held, not the entry count.
+ */
+public class BodyCache {
+
+    private final long maxChars;
+    private final LinkedHashMap<Long, String> bodies = new LinkedHashMap<>(256, 0.75f, true);
+    private long chars;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BodyCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Returns the cached body or {@code null}, counting the lookup as a hit or a miss.
+     */
+    public synchronized String get(long handle) {
+        String body = bodies.get(handle);
+        if (body == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return body;
+    }
+
+    public synchronized void put(long handle, String body) {
+        if (body.length() > maxChars) {
+            return;
+        }
+        String previous = bodies.put(handle, body);
+        chars += body.length() - (previous == null ? 0 : previous.length());
+
+        Iterator<Map.Entry<Long, String>> eldest = bodies.entrySet().iterator();
+        while (chars > maxChars && eldest.hasNext()) {
+            chars -= eldest.next().getValue().length();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(long handle) {
+        String removed = bodies.remove(handle);
+        if (removed != null) {
+            chars -= removed.length();
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,43 @@
+package model.email;
+
+/**
+ * Storage for email bodies.
+ * Bodies are written once and referenced afterwards through an opaque {@code long} handle,
+ * so the email itself does not have to keep the content on the heap.
+ */
+public interface BodyStore {
+
+    /**
+     * Stores the body and returns the handle it can be loaded with.
+     */
+    long store(String body);
+
+    /**
+     * Decodes the body referenced by the handle.
+     */
+    String load(long handle);
+
+    /**
+     * Releases the body referenced by the handle. The handle must not be used afterwards.
+     * Returns the UTF-8 bytes of the body actually freed, which is 0 if the body was already released
+     * or is still referenced elsewhere.
+     */
+    long release(long handle);
+
+    /**
+     * Hints that the body is unlikely to be read soon and may be moved to slower storage.
+     * Stores with a single tier ignore it.
+     */
+    default void demote(long handle) {
+    }
+
+    /**
+     * Number of body bytes currently held by the store.
+     */
+    long usedBytes();
+
+    /**
+     * Number of bytes reserved by the store, including unused space.
+     */
+    long reservedBytes();
+}
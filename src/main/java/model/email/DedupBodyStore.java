@@ -0,0 +1,132 @@
+package model.email;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed body store. Bodies are keyed by their SHA-256 digest, so identical
+ * content is written to the underlying store once and shared through a reference count.
+ * The body is released from the underlying store when its last reference is released.
+ */
+public class DedupBodyStore implements BodyStore {
+
+    private final BodyStore delegate;
+    private final ConcurrentHashMap<Digest, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Digest> digestsByHandle = new ConcurrentHashMap<>();
+
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public DedupBodyStore(BodyStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public long store(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Digest digest = Digest.of(bytes);
+
+        stores.increment();
+        Entry entry = entries.compute(digest, (key, existing) -> {
+            if (existing == null) {
+                Entry created = new Entry(delegate.store(body), bytes.length);
+                digestsByHandle.put(created.handle, key);
+                return created;
+            }
+            existing.references++;
+            hits.increment();
+            bytesSaved.add(existing.length);
+            return existing;
+        });
+        return entry.handle;
+    }
+
+    @Override
+    public String load(long handle) {
+        return delegate.load(handle);
+    }
+
+    @Override
+    public long release(long handle) {
+        Digest digest = digestsByHandle.get(handle);
+        if (digest == null) {
+            return 0;
+        }
+        long[] freed = new long[1];
+        entries.computeIfPresent(digest, (key, entry) -> {
+            if (--entry.references > 0) {
+                bytesSaved.add(-entry.length);
+                return entry;
+            }
+            digestsByHandle.remove(handle);
+            freed[0] = delegate.release(handle);
+            return null;
+        });
+        return freed[0];
+    }
+
+    @Override
+    public void demote(long handle) {
+        delegate.demote(handle);
+    }
+
+    @Override
+    public long usedBytes() {
+        return delegate.usedBytes();
+    }
+
+    @Override
+    public long reservedBytes() {
+        return delegate.reservedBytes();
+    }
+
+    /**
+     * Share of stored bodies that were already present in the store.
+     */
+    public double hitRatio() {
+        long total = stores.sum();
+        return total == 0 ? 0.0 : (double) hits.sum() / total;
+    }
+
+    /**
+     * Body bytes currently not stored thanks to shared content.
+     */
+    public long bytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * Number of distinct bodies held.
+     */
+    public int distinctBodies() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final long handle;
+        private final int length;
+        private int references = 1;
+
+        private Entry(long handle, int length) {
+            this.handle = handle;
+            this.length = length;
+        }
+    }
+
+    private record Digest(long first, long second, long third, long fourth) {
+
+        private static Digest of(byte[] bytes) {
+            try {
+                ByteBuffer hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes));
+                return new Digest(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+}
@@ -4,7 +4,10 @@ import lombok.*;
 
 import java.time.LocalDateTime;
 
-
+/**
+ * Public view of an email, built from the stored {@link EmailRecord} when it is handed out
+ * at the protocol boundary.
+ */
 @Data
 @Builder
 @NoArgsConstructor
@@ -34,7 +37,7 @@ public class Email {
     private String subject;
 
     /**
-     * Content of the email.
+     * Content of the email, decoded from the {@link BodyStore} when the view is built.
      */
     private String content;
 
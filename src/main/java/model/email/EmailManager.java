@@ -2,6 +2,7 @@ package model.email;
 
 import service.ResponseStatus;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,13 +15,102 @@ public interface EmailManager {
 
     void initializeMailbox(String userName);
 
+    /**
+     * Creates mailboxes for all users with one hand-off per shard. Users that already have a mailbox
+     * are skipped; returns the number of mailboxes created.
+     */
+    int initializeMailboxes(Collection<String> userNames);
+
     ResponseStatus sendEmail(String senderUsername, String recipientUsername, String subject, String body);
 
+    /**
+     * Sends an email replying to the email with the given id, which must be in the sender's mailbox.
+     * The reply joins that email's conversation. Without an id the conversation is detected
+     * from the subject and the participants.
+     */
+    ResponseStatus sendEmail(String senderUsername, String recipientUsername, String subject, String body, Integer inReplyToId);
+
     List<Email> getReceivedEmails(String recipientUserName);
 
     List<Email> getSentEmails(String senderUserName);
 
     Optional<Email> readEmail(Integer emailId, String userName);
 
+    /**
+     * Looks up several emails of the user in one pass, optionally marking them read.
+     * The result has one element per id, in the same order, empty for ids not in the mailbox.
+     */
+    List<Optional<Email>> readEmails(String userName, List<Integer> emailIds, boolean markRead);
+
     List<Email> searchEmails(String userName, SearchType type, String subjectQuery);
+
+    /**
+     * Searches one side of the user's mailbox. A time range is resolved through the list's time index,
+     * so only the emails inside the range are visited.
+     */
+    List<Email> searchEmails(String userName, EmailQuery query);
+
+    /**
+     * Marks every email in the user's inbox or sent list read and returns how many were unread.
+     */
+    int markAllRead(String userName, SearchType type);
+
+    /**
+     * Marks the emails at list indexes {@code [fromIndex, toIndex)} read, in the order they are listed,
+     * and returns how many were unread.
+     */
+    int markRangeRead(String userName, SearchType type, int fromIndex, int toIndex);
+
+    /**
+     * Returns a page of the user's conversations, most recently active first.
+     */
+    List<EmailThread> listThreads(String userName, int offset, int limit);
+
+    /**
+     * Adds the label to the emails with the given ids in the user's inbox or sent list
+     * and returns how many did not have it yet. Ids not in the list are ignored.
+     */
+    int labelEmails(String userName, SearchType type, String label, List<Integer> emailIds);
+
+    /**
+     * Removes the label from the emails with the given ids and returns how many had it.
+     */
+    int unlabelEmails(String userName, SearchType type, String label, List<Integer> emailIds);
+
+    /**
+     * Returns the emails matching the label and read state criteria, in the order they are listed.
+     */
+    List<Email> filterEmails(String userName, LabelFilter filter);
+
+    /**
+     * Delivers an email whose sender's mailbox lives on another server to the local recipient's inbox.
+     * The recipient's quota is checked; the receipt carries the assigned id and timestamp.
+     */
+    RelayReceipt deliverRelayed(String senderUsername, String recipientUsername, String subject, String body, Integer inReplyToId);
+
+    /**
+     * Records an email delivered by another server in the local sender's sent list, keeping its id and timestamp.
+     */
+    ResponseStatus recordRelayedSent(int emailId, String senderUsername, String recipientUsername, String subject,
+                                     String body, long sentAtMillis, Integer inReplyToId);
+
+    /**
+     * Returns every email of the user's mailbox, inbox first, or an empty list if the user has no mailbox here.
+     */
+    List<ExportedEmail> exportMailbox(String userName);
+
+    /**
+     * Creates the user's mailbox from emails exported by another server.
+     */
+    void importMailbox(String userName, List<ExportedEmail> emails);
+
+    /**
+     * Deletes the user's mailbox and returns {@code false} if there was none.
+     */
+    boolean removeMailbox(String userName);
+
+    /**
+     * Number of emails in the user's inbox and sent list, or -1 if the user has no mailbox.
+     */
+    int getMailboxSize(String userName);
 }
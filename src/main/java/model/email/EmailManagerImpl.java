@@ -1,115 +1,1016 @@
 package model.email;
 
 import lombok.extern.slf4j.Slf4j;
+import model.user.UserIdInterner;
 import service.ResponseStatus;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Email manager partitioning mailboxes into {@link MailboxShard}s by username hash.
+ * Each shard is owned by a single thread. A send within one shard is applied in one operation; a send
+ * touching two shards reserves the sender's quota, delivers on the recipient's shard and then appends the
+ * sent copy or, if the delivery failed, releases the reservation.
+ * <p>
+ * Per-user quotas are checked on both shards before the email is appended. When a retention
+ * period is configured, a background task removes expired emails shard by shard in bounded batches,
+ * so sends queued on a shard only wait for one batch.
+ */
 @Slf4j
 public class EmailManagerImpl implements EmailManager {
 
-    private final AtomicInteger emailIdGenerator = new AtomicInteger(0);
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Email>> emails;
+    private final MailboxShard[] shards;
+    private final BodyStore bodyStore;
+    private final UserIdInterner userIds;
+    private final int hotEmailsPerList;
+    private final int maxEmailsPerUser;
+    private final long maxBytesPerUser;
+    private final long retentionMillis;
+    private final int compactionBatchSize;
+    private final ScheduledExecutorService compactor;
+
+    private volatile MailboxListener listener = MailboxListener.NONE;
+
+    private final LongAdder expiredEmails = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
 
     public EmailManagerImpl() {
-       this.emails = new ConcurrentHashMap<>();
+       this(new UserIdInterner());
+    }
+
+    public EmailManagerImpl(UserIdInterner userIds) {
+       this(userIds, EmailStorageConfig.defaults());
+    }
+
+    public EmailManagerImpl(UserIdInterner userIds, EmailStorageConfig config) {
+       this(defaultBodyStore(config), userIds, config);
+    }
+
+    public EmailManagerImpl(BodyStore bodyStore, UserIdInterner userIds, EmailStorageConfig config) {
+       int shardCount = config.getShardCount();
+       if (shardCount < 1) {
+           throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+       }
+       this.bodyStore = bodyStore;
+       this.userIds = userIds;
+       this.hotEmailsPerList = config.getHotEmailsPerList();
+       this.maxEmailsPerUser = config.getMaxEmailsPerUser();
+       this.maxBytesPerUser = config.getMaxBytesPerUser();
+       this.retentionMillis = config.getRetention().toMillis();
+       this.compactionBatchSize = config.getCompactionBatchSize();
+       this.shards = new MailboxShard[shardCount];
+       if (config.getNodeIndex() < 0 || config.getNodeIndex() >= config.getMaxNodes()) {
+           throw new IllegalArgumentException("Node index must be in [0, " + config.getMaxNodes() + "): " + config.getNodeIndex());
+       }
+       for (int i = 0; i < shardCount; i++) {
+           shards[i] = new MailboxShard(i, shardCount, config.getNodeIndex(), config.getMaxNodes());
+       }
+
+       if (retentionMillis > 0) {
+           long intervalMillis = config.getCompactionInterval().toMillis();
+           this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+               Thread thread = new Thread(runnable, "mailbox-compactor");
+               thread.setDaemon(true);
+               return thread;
+           });
+           compactor.scheduleWithFixedDelay(this::runCompaction, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+       } else {
+           this.compactor = null;
+       }
     }
 
 
     @Override
     public void initializeMailbox(String userName) {
-        if (emails.containsKey(userName)) {
-            throw new IllegalArgumentException("Mailbox already exists for user: " + userName);
+        int ownerId = userIds.intern(userName);
+        shardFor(userName).call(shard -> {
+            if (shard.mailbox(userName) != null) {
+                throw new IllegalArgumentException("Mailbox already exists for user: " + userName);
+            }
+            shard.addMailbox(userName, new Mailbox(ownerId));
+            return null;
+        });
+    }
+
+    @Override
+    public int initializeMailboxes(Collection<String> userNames) {
+        Map<MailboxShard, List<String>> byShard = new HashMap<>();
+        for (String userName : userNames) {
+            userIds.intern(userName);
+            byShard.computeIfAbsent(shardFor(userName), shard -> new ArrayList<>()).add(userName);
+        }
+        int created = 0;
+        for (Map.Entry<MailboxShard, List<String>> entry : byShard.entrySet()) {
+            created += entry.getKey().call(shard -> {
+                int added = 0;
+                for (String userName : entry.getValue()) {
+                    if (shard.mailbox(userName) == null) {
+                        shard.addMailbox(userName, new Mailbox(userIds.idOf(userName)));
+                        added++;
+                    }
+                }
+                return added;
+            });
         }
-        emails.put(userName, new CopyOnWriteArrayList<>());
+        return created;
     }
 
 
     @Override
     public ResponseStatus sendEmail(String senderUsername, String recipientUsername, String subject, String body) {
+        return sendEmail(senderUsername, recipientUsername, subject, body, null);
+    }
+
+    @Override
+    public ResponseStatus sendEmail(String senderUsername, String recipientUsername, String subject, String body, Integer inReplyToId) {
 
         if (checkIfNull(senderUsername, recipientUsername, subject, body)) {
             return ResponseStatus.INVALID; // Invalid input
         }
 
-        if (!emails.containsKey(senderUsername) || !emails.containsKey(recipientUsername)) {
-            return ResponseStatus.USER_NOT_FOUND; // User not found
+        MailboxShard senderShard = shardFor(senderUsername);
+        MailboxShard recipientShard = shardFor(recipientUsername);
+        int sizeBytes = EmailRecord.utf8Length(subject) + EmailRecord.utf8Length(body);
+        int senderId = userIds.idOf(senderUsername);
+        int recipientId = userIds.idOf(recipientUsername);
+        String threadKey = ThreadIndex.key(subject, senderId, recipientId);
+
+        if (senderShard == recipientShard) {
+            return sendWithinShard(senderShard, senderUsername, recipientUsername, subject, body, inReplyToId,
+                    senderId, recipientId, sizeBytes, threadKey);
+        }
+
+//        Cross-shard sends reserve quota on the sender's shard, deliver on the recipient's shard and then
+//        commit or abort the reservation. The delivery is the commit point: once it succeeded the sender's
+//        copy is appended, unless the sender's mailbox was removed in the meantime.
+        SendSlot slot = senderShard.call("send", senderUsername, shard -> {
+            Mailbox sender = shard.mailbox(senderUsername);
+            if (sender == null) {
+                return new SendSlot(ResponseStatus.USER_NOT_FOUND, -1, -1, null);
+            }
+            if (isOverQuota(sender, sizeBytes)) {
+                return new SendSlot(ResponseStatus.QUOTA_EXCEEDED, -1, -1, null);
+            }
+            int emailId = shard.nextEmailId();
+            if (emailId < 0) {
+                return new SendSlot(ResponseStatus.EMAIL_IDS_EXHAUSTED, -1, -1, null);
+            }
+            sender.reserve(sizeBytes);
+            int threadId = findThread(sender, inReplyToId, threadKey);
+            return new SendSlot(ResponseStatus.SUCCESS, emailId, threadId < 0 ? emailId : threadId, sender);
+        });
+        if (slot.status() != ResponseStatus.SUCCESS) {
+            return slot.status();
         }
 
-        int emailId = emailIdGenerator.incrementAndGet();
+        EmailRecord email = new EmailRecord(
+                slot.emailId(),
+                senderId,
+                recipientId,
+                slot.threadId(),
+                subject,
+                bodyStore.store(body),
+                System.currentTimeMillis(),
+                sizeBytes
+        );
 
-        Email email = Email.builder()
-                .id(emailId)
-                .senderUsername(senderUsername)
-                .recipientUsername(recipientUsername)
-                .subject(subject)
-                .content(body)
-                .sentAt(LocalDateTime.now())
-                .read(false)
-                .build();
+        ResponseStatus delivery;
+        try {
+            delivery = recipientShard.call("deliver", recipientUsername, shard -> {
+                Mailbox recipient = shard.mailbox(recipientUsername);
+                if (recipient == null) {
+                    return ResponseStatus.USER_NOT_FOUND;
+                }
+                if (isOverQuota(recipient, sizeBytes)) {
+                    return ResponseStatus.QUOTA_EXCEEDED;
+                }
+                append(recipient, recipient.inbox, email, threadKey);
+                listener.emailDelivered(email.id, email.threadId, senderUsername, recipientUsername, subject, body, email.sentAtMillis);
+                return ResponseStatus.SUCCESS;
+            });
+        } catch (RuntimeException e) {
+            abortSend(senderShard, slot, email);
+            throw e;
+        }
 
-        emails.get(senderUsername).add(email);
-        emails.get(recipientUsername).add(email);
+        if (delivery != ResponseStatus.SUCCESS) {
+            abortSend(senderShard, slot, email);
+            return delivery;
+        }
+
+        boolean recorded = senderShard.call("recordSent", senderUsername, shard -> {
+            slot.sender().release(sizeBytes);
+            Mailbox sender = shard.mailbox(senderUsername);
+            if (sender != slot.sender()) {
+                return false;
+            }
+            append(sender, sender.sent, email, threadKey);
+            return true;
+        });
+        if (!recorded && email.releaseReference()) {
+            bodyStore.release(email.contentHandle);
+        }
 
         return ResponseStatus.SUCCESS;
     }
 
+    /**
+     * Applies a send whose sender and recipient share a shard in one operation, so it is atomic.
+     */
+    private ResponseStatus sendWithinShard(MailboxShard mailboxShard, String senderUsername, String recipientUsername,
+                                           String subject, String body, Integer inReplyToId, int senderId, int recipientId,
+                                           int sizeBytes, String threadKey) {
+        long contentHandle = bodyStore.store(body);
+        long sentAtMillis = System.currentTimeMillis();
+        ResponseStatus status = mailboxShard.call("send", senderUsername, shard -> {
+            Mailbox sender = shard.mailbox(senderUsername);
+            Mailbox recipient = shard.mailbox(recipientUsername);
+            if (sender == null || recipient == null) {
+                return ResponseStatus.USER_NOT_FOUND;
+            }
+            if (isOverQuota(sender, sizeBytes) || isOverQuota(recipient, sizeBytes)) {
+                return ResponseStatus.QUOTA_EXCEEDED;
+            }
+            int emailId = shard.nextEmailId();
+            if (emailId < 0) {
+                return ResponseStatus.EMAIL_IDS_EXHAUSTED;
+            }
+            int threadId = findThread(sender, inReplyToId, threadKey);
+            EmailRecord email = new EmailRecord(emailId, senderId, recipientId, threadId < 0 ? emailId : threadId,
+                    subject, contentHandle, sentAtMillis, sizeBytes);
+            append(recipient, recipient.inbox, email, threadKey);
+            listener.emailDelivered(email.id, email.threadId, senderUsername, recipientUsername, subject, body, sentAtMillis);
+            append(sender, sender.sent, email, threadKey);
+            return ResponseStatus.SUCCESS;
+        });
+        if (status != ResponseStatus.SUCCESS) {
+            bodyStore.release(contentHandle);
+        }
+        return status;
+    }
+
+    /**
+     * Releases the sender's quota reservation of a send that was not delivered.
+     */
+    private void abortSend(MailboxShard senderShard, SendSlot slot, EmailRecord email) {
+        int sizeBytes = email.sizeBytes;
+        senderShard.call(shard -> {
+            slot.sender().release(sizeBytes);
+            return null;
+        });
+        bodyStore.release(email.contentHandle);
+    }
+
 
     @Override
     public List<Email> getReceivedEmails(String recipientUserName) {
+        return listEmails(recipientUserName, SearchType.RECEIVED);
+    }
 
-        return emails.get(recipientUserName).stream()
-                .filter(email -> email.getRecipientUsername().equals(recipientUserName))
-                .toList();
+    @Override
+    public List<Email> getSentEmails(String senderUserName) {
+        return listEmails(senderUserName, SearchType.SENT);
+    }
 
+    @Override
+    public Optional<Email> readEmail(Integer emailId, String userName) {
+
+        return shardFor(userName).call("readEmail", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return Optional.empty();
+            }
+            IdCollector newlyRead = new IdCollector();
+            Optional<Email> email = readEmail(mailbox, emailId, true, newlyRead);
+            notifyRead(userName, newlyRead);
+            return email;
+        });
     }
 
     @Override
-    public List<Email> getSentEmails(String senderUserName) {
+    public List<Optional<Email>> readEmails(String userName, List<Integer> emailIds, boolean markRead) {
 
-        return emails.get(senderUserName).stream()
-                .filter(email -> email.getSenderUsername().equals(senderUserName))
-                .toList();
+        return shardFor(userName).call("readEmails", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            List<Optional<Email>> result = new ArrayList<>(emailIds.size());
+            IdCollector newlyRead = new IdCollector();
+            for (Integer emailId : emailIds) {
+                result.add(mailbox == null ? Optional.empty() : readEmail(mailbox, emailId, markRead, newlyRead));
+            }
+            notifyRead(userName, newlyRead);
+            return result;
+        });
+    }
 
+    @Override
+    public List<Email> searchEmails(String userName, SearchType type, String subjectQuery){
+        return searchEmails(userName, EmailQuery.builder().type(type).subjectQuery(subjectQuery).build());
     }
 
     @Override
-    public Optional<Email> readEmail(Integer emailId, String userName) {
+    public List<Email> searchEmails(String userName, EmailQuery query) {
 
-         Optional<Email> email = emails.getOrDefault(userName, new CopyOnWriteArrayList<>()).stream()
-                .filter(m -> m.getId() == emailId)
-                .findFirst()
-                .map(e -> {
-                    e.setRead(true);
-                    return e;
-                });
+        long fromMillis = query.getFrom() == null ? Long.MIN_VALUE : toEpochMillis(query.getFrom());
+        long toMillis = query.getTo() == null ? Long.MAX_VALUE : toEpochMillis(query.getTo());
+        String subjectQuery = query.getSubjectQuery();
+        String counterparty = query.getCounterparty();
+        boolean byCounterparty = counterparty != null || query.getType() == SearchType.FROM || query.getType() == SearchType.TO;
+        int counterpartyId = counterparty == null ? UserIdInterner.UNKNOWN : userIds.idOf(counterparty);
 
+        return shardFor(userName).call("search", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null || fromMillis > toMillis) {
+                return List.of();
+            }
+            MailList list = mailbox.list(query.getType());
+            int start = list.firstPositionAtOrAfter(fromMillis);
+            int end = toMillis == Long.MAX_VALUE ? list.endPosition() : list.firstPositionAtOrAfter(toMillis + 1);
 
-        email.ifPresent(value -> value.setRead(true));
+            List<Email> result = new ArrayList<>();
+            if (byCounterparty) {
+//                Intersect the counterparty's sorted postings with the time slice; only those emails are visited.
+                Postings postings = counterpartyId == UserIdInterner.UNKNOWN ? null : list.positionsWith(counterpartyId);
+                if (postings == null) {
+                    return result;
+                }
+                for (int i = postings.lowerBound(start); i < postings.size() && postings.get(i) < end; i++) {
+                    addIfSubjectMatches(result, list, postings.get(i), subjectQuery);
+                }
+            } else {
+                for (int position = start; position < end; position++) {
+                    addIfSubjectMatches(result, list, position, subjectQuery);
+                }
+            }
+            return result;
+        });
+    }
 
-        return email;
+    @Override
+    public int markAllRead(String userName, SearchType type) {
+        return shardFor(userName).call("markAllRead", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return 0;
+            }
+            MailList list = mailbox.list(type);
+            return markRead(userName, mailbox, list, list.firstPosition(), list.endPosition());
+        });
     }
 
     @Override
-    public List<Email> searchEmails(String userName, SearchType type, String subjectQuery){
+    public int markRangeRead(String userName, SearchType type, int fromIndex, int toIndex) {
+        return shardFor(userName).call("markRangeRead", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return 0;
+            }
+            MailList list = mailbox.list(type);
+            return markRead(userName, mailbox, list, list.firstPosition() + fromIndex, list.firstPosition() + toIndex);
+        });
+    }
+
+    @Override
+    public List<EmailThread> listThreads(String userName, int offset, int limit) {
+        return shardFor(userName).call("listThreads", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null || offset < 0 || limit <= 0) {
+                return List.of();
+            }
+            return mailbox.threads.page(offset, limit).stream()
+                    .map(entry -> EmailThread.builder()
+                            .threadId(entry.threadId)
+                            .subject(entry.subject)
+                            .participantUsername(userIds.nameOf(entry.participantId))
+                            .messageCount(entry.messageCount)
+                            .unreadCount(entry.unreadCount)
+                            .latestEmailId(entry.latestEmailId)
+                            .latestAt(toLocalDateTime(entry.latestAtMillis))
+                            .build())
+                    .toList();
+        });
+    }
+
+    @Override
+    public int labelEmails(String userName, SearchType type, String label, List<Integer> emailIds) {
+        return updateLabels(userName, type, label, emailIds, true);
+    }
+
+    @Override
+    public int unlabelEmails(String userName, SearchType type, String label, List<Integer> emailIds) {
+        return updateLabels(userName, type, label, emailIds, false);
+    }
+
+    @Override
+    public List<Email> filterEmails(String userName, LabelFilter filter) {
+        return shardFor(userName).call("filter", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return List.of();
+            }
+            MailList list = mailbox.list(filter.getType());
+            PositionBitmap matches = list.live(list.firstPosition(), list.endPosition());
+            for (String label : filter.getWithLabels()) {
+                matches = matches.and(list.labelled(label));
+            }
+            for (String label : filter.getWithoutLabels()) {
+                matches = matches.andNot(list.labelled(label));
+            }
+            if (filter.getRead() != null) {
+                matches = filter.getRead() ? matches.and(list.readPositions()) : matches.andNot(list.readPositions());
+            }
+            List<Email> result = new ArrayList<>(matches.cardinality());
+            matches.forEach(position -> result.add(toEmail(list, position)));
+            return result;
+        });
+    }
+
+    @Override
+    public RelayReceipt deliverRelayed(String senderUsername, String recipientUsername, String subject, String body, Integer inReplyToId) {
+        if (checkIfNull(senderUsername, recipientUsername, subject, body)) {
+            return new RelayReceipt(ResponseStatus.INVALID, -1, -1);
+        }
+
+        int sizeBytes = EmailRecord.utf8Length(subject) + EmailRecord.utf8Length(body);
+        int senderId = userIds.intern(senderUsername);
+        int recipientId = userIds.idOf(recipientUsername);
+        String threadKey = ThreadIndex.key(subject, senderId, recipientId);
+        long contentHandle = bodyStore.store(body);
+        long sentAtMillis = System.currentTimeMillis();
+
+        RelayReceipt receipt = shardFor(recipientUsername).call(shard -> {
+            Mailbox recipient = shard.mailbox(recipientUsername);
+            if (recipient == null) {
+                return new RelayReceipt(ResponseStatus.USER_NOT_FOUND, -1, -1);
+            }
+            if (isOverQuota(recipient, sizeBytes)) {
+                return new RelayReceipt(ResponseStatus.QUOTA_EXCEEDED, -1, -1);
+            }
+            int emailId = shard.nextEmailId();
+            if (emailId < 0) {
+                return new RelayReceipt(ResponseStatus.EMAIL_IDS_EXHAUSTED, -1, -1);
+            }
+            int threadId = findThread(recipient, inReplyToId, threadKey);
+            EmailRecord email = singleListRecord(emailId, senderId, recipientId, threadId < 0 ? emailId : threadId,
+                    subject, contentHandle, sentAtMillis, sizeBytes);
+            append(recipient, recipient.inbox, email, threadKey);
+            listener.emailDelivered(emailId, email.threadId, senderUsername, recipientUsername, subject, body, sentAtMillis);
+            return new RelayReceipt(ResponseStatus.SUCCESS, emailId, sentAtMillis);
+        });
+
+        if (receipt.status() != ResponseStatus.SUCCESS) {
+            bodyStore.release(contentHandle);
+        }
+        return receipt;
+    }
+
+    @Override
+    public ResponseStatus recordRelayedSent(int emailId, String senderUsername, String recipientUsername, String subject,
+                                            String body, long sentAtMillis, Integer inReplyToId) {
+        if (checkIfNull(senderUsername, recipientUsername, subject, body)) {
+            return ResponseStatus.INVALID;
+        }
+
+        int sizeBytes = EmailRecord.utf8Length(subject) + EmailRecord.utf8Length(body);
+        int senderId = userIds.idOf(senderUsername);
+        int recipientId = userIds.intern(recipientUsername);
+        String threadKey = ThreadIndex.key(subject, senderId, recipientId);
+        long contentHandle = bodyStore.store(body);
+
+//        The recipient already has the email, so the sender's quota is not enforced here.
+        ResponseStatus status = shardFor(senderUsername).call(shard -> {
+            Mailbox sender = shard.mailbox(senderUsername);
+            if (sender == null) {
+                return ResponseStatus.USER_NOT_FOUND;
+            }
+//            A proxy retrying after a lost response must not record the email twice.
+            if (sender.sent.positionOf(emailId) >= 0) {
+                bodyStore.release(contentHandle);
+                return ResponseStatus.SUCCESS;
+            }
+            int threadId = findThread(sender, inReplyToId, threadKey);
+            EmailRecord email = singleListRecord(emailId, senderId, recipientId, threadId < 0 ? emailId : threadId,
+                    subject, contentHandle, sentAtMillis, sizeBytes);
+            append(sender, sender.sent, email, threadKey);
+            listener.sentRecorded(emailId, email.threadId, senderUsername, recipientUsername, subject, body, sentAtMillis);
+            return ResponseStatus.SUCCESS;
+        });
+
+        if (status != ResponseStatus.SUCCESS) {
+            bodyStore.release(contentHandle);
+        }
+        return status;
+    }
+
+    @Override
+    public List<ExportedEmail> exportMailbox(String userName) {
+        return shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return List.of();
+            }
+            List<ExportedEmail> result = new ArrayList<>(mailbox.emailCount());
+            for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+                for (int position = list.firstPosition(); position < list.endPosition(); position++) {
+                    EmailRecord record = list.get(position);
+                    result.add(new ExportedEmail(
+                            list == mailbox.inbox,
+                            record.id,
+                            userIds.nameOf(record.senderId),
+                            userIds.nameOf(record.recipientId),
+                            record.subject,
+                            bodyStore.load(record.contentHandle),
+                            record.sentAtMillis,
+                            list.isRead(position),
+                            list.labelsOf(position)
+                    ));
+                }
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public void importMailbox(String userName, List<ExportedEmail> emails) {
+        int ownerId = userIds.intern(userName);
+        shardFor(userName).call(shard -> {
+            if (shard.mailbox(userName) != null) {
+                throw new IllegalArgumentException("Mailbox already exists for user: " + userName);
+            }
+            Mailbox mailbox = new Mailbox(ownerId);
+            for (ExportedEmail exported : emails) {
+                int senderId = userIds.intern(exported.senderUsername());
+                int recipientId = userIds.intern(exported.recipientUsername());
+                String threadKey = ThreadIndex.key(exported.subject(), senderId, recipientId);
+                int threadId = mailbox.threads.find(threadKey);
+                EmailRecord email = singleListRecord(exported.id(), senderId, recipientId, threadId < 0 ? exported.id() : threadId,
+                        exported.subject(), bodyStore.store(exported.body()), exported.sentAtMillis(),
+                        EmailRecord.utf8Length(exported.subject()) + EmailRecord.utf8Length(exported.body()));
+                MailList list = exported.inbox() ? mailbox.inbox : mailbox.sent;
+                int position = append(mailbox, list, email, threadKey);
+                if (exported.read()) {
+                    markRead(mailbox, list, position, new IdCollector());
+                }
+                exported.labels().forEach(label -> list.addLabel(position, label));
+            }
+            shard.addMailbox(userName, mailbox);
+            listener.mailboxImported(userName, emails);
+            return null;
+        });
+    }
+
+    @Override
+    public int getMailboxSize(String userName) {
+        return shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            return mailbox == null ? -1 : mailbox.emailCount();
+        });
+    }
 
-        return emails.get(userName).stream()
-                .filter(email -> {
-                    if (type == SearchType.RECEIVED) {
-                        return email.getRecipientUsername().equals(userName);
-                    } else {
-                        return email.getSenderUsername().equals(userName);
+    @Override
+    public boolean removeMailbox(String userName) {
+        return shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.removeMailbox(userName);
+            if (mailbox == null) {
+                return false;
+            }
+            for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+                for (int position = list.firstPosition(); position < list.endPosition(); position++) {
+                    EmailRecord email = list.get(position);
+                    if (email.releaseReference()) {
+                        bodyStore.release(email.contentHandle);
+                    }
+                }
+            }
+            listener.mailboxRemoved(userName);
+            return true;
+        });
+    }
+
+
+    /**
+     * Registers the listener notified of every mutation, replacing the previous one.
+     */
+    public void setListener(MailboxListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Applies an email delivered by another server, keeping its id, thread and timestamp.
+     * Quotas are not checked; the originating server already did. Ids this manager could generate
+     * itself, such as ids replayed from its own log after a restart, are not handed out again.
+     */
+    public void applyDelivery(int emailId, int threadId, String senderUsername, String recipientUsername,
+                              String subject, String body, long sentAtMillis) {
+        int senderId = userIds.intern(senderUsername);
+        int recipientId = userIds.intern(recipientUsername);
+        String threadKey = ThreadIndex.key(subject, senderId, recipientId);
+        EmailRecord email = new EmailRecord(
+                emailId,
+                senderId,
+                recipientId,
+                threadId,
+                subject,
+                bodyStore.store(body),
+                sentAtMillis,
+                EmailRecord.utf8Length(subject) + EmailRecord.utf8Length(body)
+        );
+        applyAppend(recipientUsername, email, threadKey, true);
+        applyAppend(senderUsername, email, threadKey, false);
+        advanceGenerator(emailId);
+    }
+
+    /**
+     * Applies an email recorded in the sender's sent list only, as done by {@link #recordRelayedSent}
+     * on the server that owns the sender's mailbox.
+     */
+    public void applySent(int emailId, int threadId, String senderUsername, String recipientUsername,
+                          String subject, String body, long sentAtMillis) {
+        int senderId = userIds.intern(senderUsername);
+        int recipientId = userIds.intern(recipientUsername);
+        String threadKey = ThreadIndex.key(subject, senderId, recipientId);
+        EmailRecord email = singleListRecord(emailId, senderId, recipientId, threadId, subject, bodyStore.store(body),
+                sentAtMillis, EmailRecord.utf8Length(subject) + EmailRecord.utf8Length(body));
+        applyAppend(senderUsername, email, threadKey, false);
+        advanceGenerator(emailId);
+    }
+
+    /**
+     * Applies read-state changes made on another server.
+     */
+    public void applyRead(String userName, int[] emailIds) {
+        shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox != null) {
+                IdCollector newlyRead = new IdCollector();
+                for (int emailId : emailIds) {
+                    for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+                        int position = list.positionOf(emailId);
+                        if (position >= 0) {
+                            markRead(mailbox, list, position, newlyRead);
+                        }
+                    }
+                }
+                notifyRead(userName, newlyRead);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Applies label changes made on another server.
+     */
+    public void applyLabels(String userName, SearchType type, String label, int[] emailIds, boolean added) {
+        updateLabels(userName, type, label, Arrays.stream(emailIds).boxed().toList(), added);
+    }
+
+
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    /**
+     * Removes every email older than the retention period, one bounded batch per shard step.
+     * Returns the number of removed emails (each email counts once per list it was removed from).
+     */
+    public long compactExpired() {
+        if (retentionMillis <= 0) {
+            return 0;
+        }
+        long cutoffMillis = System.currentTimeMillis() - retentionMillis;
+        long removed = 0;
+        for (MailboxShard shard : shards) {
+            int batch;
+            do {
+                batch = shard.call(owner -> compactShard(owner, cutoffMillis));
+                removed += batch;
+            } while (batch >= compactionBatchSize);
+        }
+        return removed;
+    }
+
+    /**
+     * Number of emails removed by retention since startup, counted once per list.
+     */
+    public long getExpiredEmails() {
+        return expiredEmails.sum();
+    }
+
+    /**
+     * UTF-8 bytes of subjects and bodies freed by retention since startup. Bodies still shared
+     * with other emails are not counted.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    /**
+     * Stops the shard threads and the compactor. The manager must not be used afterwards.
+     */
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        for (MailboxShard shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+
+    private static BodyStore defaultBodyStore(EmailStorageConfig config) {
+        return new DedupBodyStore(new TieredBodyStore(
+                new OffHeapBodyStore(),
+                SegmentFileBodyStore.temporary(),
+                new BodyCache(config.getColdCacheChars()),
+                TieredBodyStore.backgroundDemoter()
+        ));
+    }
+
+    /**
+     * Appends the email on the shard thread and moves the body of the email that just left
+     * the list's hot window to cold storage.
+     */
+    private int append(Mailbox mailbox, MailList list, EmailRecord email, String threadKey) {
+        int position = list.append(email);
+        mailbox.usedBytes += email.sizeBytes;
+        mailbox.threads.add(email, threadKey, list.counterpartyOf(email), list == mailbox.inbox);
+        int leavingHotWindow = position - hotEmailsPerList;
+        if (leavingHotWindow >= list.firstPosition()) {
+            bodyStore.demote(list.get(leavingHotWindow).contentHandle);
+        }
+        return position;
+    }
+
+    /**
+     * Runs on the shard thread. Returns the thread of the replied-to email or of the conversation
+     * with the same key, or -1 if the email starts a new thread.
+     */
+    private int findThread(Mailbox mailbox, Integer inReplyToId, String threadKey) {
+        if (inReplyToId != null) {
+            for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+                int position = list.positionOf(inReplyToId);
+                if (position >= 0) {
+                    return list.get(position).threadId;
+                }
+            }
+        }
+        return mailbox.threads.find(threadKey);
+    }
+
+    /**
+     * Runs on the shard thread. Looks the email up by id in both lists, optionally marking it read
+     * and keeping the thread's unread count in sync. Emails that were unread are added to {@code newlyRead}.
+     */
+    private Optional<Email> readEmail(Mailbox mailbox, Integer emailId, boolean markRead, IdCollector newlyRead) {
+        if (emailId == null) {
+            return Optional.empty();
+        }
+        for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+            int position = list.positionOf(emailId);
+            if (position >= 0) {
+                if (markRead) {
+                    markRead(mailbox, list, position, newlyRead);
+                }
+                return Optional.of(toEmail(list, position));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Runs on the shard thread. Marks one email read, keeping the unread count of its thread in sync.
+     */
+    private void markRead(Mailbox mailbox, MailList list, int position, IdCollector newlyRead) {
+        if (list.markRead(position)) {
+            if (list == mailbox.inbox) {
+                mailbox.threads.markRead(list.get(position).threadId);
+            }
+            newlyRead.add(list.get(position).id);
+        }
+    }
+
+    private void notifyRead(String userName, IdCollector newlyRead) {
+        if (newlyRead.size() > 0) {
+            listener.emailsRead(userName, newlyRead.toArray());
+        }
+    }
+
+    /**
+     * Runs on the shard thread. Marks the range read, keeping the unread counts of the threads in sync.
+     */
+    private int markRead(String userName, Mailbox mailbox, MailList list, int fromPosition, int toPosition) {
+        IdCollector newlyRead = new IdCollector();
+        list.forEachUnread(fromPosition, toPosition, position -> {
+            if (list == mailbox.inbox) {
+                mailbox.threads.markRead(list.get(position).threadId);
+            }
+            newlyRead.add(list.get(position).id);
+        });
+        notifyRead(userName, newlyRead);
+        return list.markRead(fromPosition, toPosition);
+    }
+
+    private int updateLabels(String userName, SearchType type, String label, List<Integer> emailIds, boolean add) {
+        if (checkIfNull(label) || emailIds == null) {
+            return 0;
+        }
+        return shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return 0;
+            }
+            MailList list = mailbox.list(type);
+            IdCollector changed = new IdCollector();
+            for (Integer emailId : emailIds) {
+                int position = emailId == null ? -1 : list.positionOf(emailId);
+                if (position >= 0 && (add ? list.addLabel(position, label) : list.removeLabel(position, label))) {
+                    changed.add(emailId);
+                }
+            }
+            if (changed.size() > 0) {
+                listener.labelsChanged(userName, type, label, changed.toArray(), add);
+            }
+            return changed.size();
+        });
+    }
+
+    /**
+     * Record held by a single list, because the other side of the email lives on another server.
+     */
+    private static EmailRecord singleListRecord(int id, int senderId, int recipientId, int threadId, String subject,
+                                                long contentHandle, long sentAtMillis, int sizeBytes) {
+        EmailRecord email = new EmailRecord(id, senderId, recipientId, threadId, subject, contentHandle, sentAtMillis, sizeBytes);
+        email.releaseReference();
+        return email;
+    }
+
+    private void applyAppend(String userName, EmailRecord email, String threadKey, boolean inbox) {
+        boolean appended = shardFor(userName).call(shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return false;
+            }
+            append(mailbox, inbox ? mailbox.inbox : mailbox.sent, email, threadKey);
+            return true;
+        });
+        if (!appended && email.releaseReference()) {
+            bodyStore.release(email.contentHandle);
+        }
+    }
+
+    /**
+     * Keeps the shard that could have generated the id from handing it out again.
+     */
+    private void advanceGenerator(int emailId) {
+        for (MailboxShard origin : shards) {
+            if (origin.generates(emailId)) {
+                origin.call(shard -> {
+                    shard.advancePast(emailId);
+                    return null;
+                });
+            }
+        }
+    }
+
+    private boolean isOverQuota(Mailbox mailbox, int additionalBytes) {
+        if (maxEmailsPerUser > 0 && mailbox.emailCount() + mailbox.reservedEmails >= maxEmailsPerUser) {
+            return true;
+        }
+        return maxBytesPerUser > 0 && mailbox.usedBytes + mailbox.reservedBytes + additionalBytes > maxBytesPerUser;
+    }
+
+    private void runCompaction() {
+        try {
+            long reclaimedBefore = reclaimedBytes.sum();
+            long removed = compactExpired();
+            if (removed > 0) {
+                log.info("Compaction removed {} expired emails, reclaimed {} bytes", removed, reclaimedBytes.sum() - reclaimedBefore);
+            }
+        } catch (RuntimeException e) {
+            log.error("Mailbox compaction failed: ", e);
+        }
+    }
+
+    /**
+     * Runs on the shard thread. Removes at most one batch of expired emails from the shard's mailboxes.
+     */
+    private int compactShard(MailboxShard shard, long cutoffMillis) {
+        int removed = 0;
+        for (Mailbox mailbox : shard.mailboxes()) {
+            for (MailList list : List.of(mailbox.inbox, mailbox.sent)) {
+                while (removed < compactionBatchSize) {
+                    boolean unread = list == mailbox.inbox && list.count() > 0 && !list.isRead(list.firstPosition());
+                    EmailRecord expired = list.removeFirstIfOlderThan(cutoffMillis);
+                    if (expired == null) {
+                        break;
+                    }
+                    mailbox.usedBytes -= expired.sizeBytes;
+                    mailbox.threads.remove(expired, unread);
+                    expiredEmails.increment();
+                    removed++;
+                    if (expired.releaseReference()) {
+//                        The subject goes with the record; the body only if the store held its last reference.
+                        long bodyBytes = bodyStore.release(expired.contentHandle);
+                        reclaimedBytes.add(EmailRecord.utf8Length(expired.subject) + bodyBytes);
                     }
-                })
-                .filter(email -> email.getSubject().contains(subjectQuery))
-                .toList();
+                }
+                if (removed >= compactionBatchSize) {
+                    return removed;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private List<Email> listEmails(String userName, SearchType type) {
+        return shardFor(userName).call("listEmails", userName, shard -> {
+            Mailbox mailbox = shard.mailbox(userName);
+            if (mailbox == null) {
+                return List.of();
+            }
+            MailList list = mailbox.list(type);
+            List<Email> result = new ArrayList<>(list.count());
+            for (int position = list.firstPosition(); position < list.endPosition(); position++) {
+                result.add(toEmail(list, position));
+            }
+            return result;
+        });
+    }
+
+    private void addIfSubjectMatches(List<Email> result, MailList list, int position, String subjectQuery) {
+        if (subjectQuery == null || list.get(position).subject.contains(subjectQuery)) {
+            result.add(toEmail(list, position));
+        }
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+    private static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private record SendSlot(ResponseStatus status, int emailId, int threadId, Mailbox sender) {
     }
 
+    /**
+     * Growable list of email ids collected on a shard thread.
+     */
+    private static final class IdCollector {
+
+        private int[] ids = new int[8];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+    private MailboxShard shardFor(String userName) {
+        int hash = userName.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    /**
+     * Runs on the shard thread. Materializes the public view of the email at the position, with the
+     * list owner's read state. The content is decoded here, while the shard still holds the body.
+     */
+    private Email toEmail(MailList list, int position) {
+        EmailRecord record = list.get(position);
+        return Email.builder()
+                .id(record.id)
+                .senderUsername(userIds.nameOf(record.senderId))
+                .recipientUsername(userIds.nameOf(record.recipientId))
+                .subject(record.subject)
+                .content(bodyStore.load(record.contentHandle))
+                .sentAt(toLocalDateTime(record.sentAtMillis))
+                .read(list.isRead(position))
+                .build();
+    }
 
     private boolean checkIfNull(String... strings){
         for (String string : strings) {
@@ -0,0 +1,42 @@
+package model.email;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Criteria for {@link EmailManager#searchEmails(String, EmailQuery)}.
+ * Criteria left {@code null} do not restrict the result.
+ */
+@Getter
+@Builder
+public class EmailQuery {
+
+    /**
+     * Searched side of the mailbox.
+     */
+    @Builder.Default
+    private SearchType type = SearchType.RECEIVED;
+
+    /**
+     * Username of the other party: the sender of received emails or the recipient of sent emails.
+     * Required for {@link SearchType#FROM} and {@link SearchType#TO}.
+     */
+    private String counterparty;
+
+    /**
+     * Text the subject must contain.
+     */
+    private String subjectQuery;
+
+    /**
+     * Earliest delivery time, inclusive.
+     */
+    private LocalDateTime from;
+
+    /**
+     * Latest delivery time, inclusive.
+     */
+    private LocalDateTime to;
+}
@@ -0,0 +1,72 @@
+package model.email;
+
+/**
+ * Compact internal representation of a stored email.
+ * <p>
+ * Users are referenced by their interned int id and the timestamp is kept as epoch millis.
+ * The body lives in a {@link BodyStore} and read state in the {@link MailList}s holding the record.
+ * {@link Email} instances are only built from records when they are returned to callers.
+ * <p>
+ * A record is shared by the sender's sent list and the recipient's inbox. It counts those
+ * references so the body can be released once both lists have dropped the email.
+ */
+final class EmailRecord {
+
+    final int id;
+    final int senderId;
+    final int recipientId;
+
+    /**
+     * Id of the conversation the email belongs to.
+     */
+    final int threadId;
+    final String subject;
+    final long contentHandle;
+    final long sentAtMillis;
+
+    /**
+     * UTF-8 size of subject and body, used for quota accounting.
+     */
+    final int sizeBytes;
+
+    private int references = 2;
+
+    EmailRecord(int id, int senderId, int recipientId, int threadId, String subject, long contentHandle, long sentAtMillis, int sizeBytes) {
+        this.id = id;
+        this.senderId = senderId;
+        this.recipientId = recipientId;
+        this.threadId = threadId;
+        this.subject = subject;
+        this.contentHandle = contentHandle;
+        this.sentAtMillis = sentAtMillis;
+        this.sizeBytes = sizeBytes;
+    }
+
+    /**
+     * Drops one list's reference and returns {@code true} if it was the last one.
+     */
+    synchronized boolean releaseReference() {
+        return --references == 0;
+    }
+
+    /**
+     * Number of bytes the string takes when encoded as UTF-8, without encoding it.
+     */
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
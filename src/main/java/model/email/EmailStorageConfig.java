@@ -0,0 +1,83 @@
+package model.email;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * Tuning settings of {@link EmailManagerImpl}.
+ * Defaults can be overridden with system properties, e.g. {@code -Demail.shards=8}.
+ */
+@Getter
+@Builder
+public class EmailStorageConfig {
+
+    /**
+     * Number of single-writer mailbox shards.
+     */
+    @Builder.Default
+    private int shardCount = Integer.getInteger("email.shards", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of most recent emails per inbox or sent list whose bodies stay in memory.
+     * Bodies of older emails are moved to cold storage.
+     */
+    @Builder.Default
+    private int hotEmailsPerList = Integer.getInteger("email.hot.perList", 1000);
+
+    /**
+     * Approximate number of characters of cold bodies kept in the read cache.
+     */
+    @Builder.Default
+    private long coldCacheChars = Long.getLong("email.cold.cacheChars", 16L * 1024 * 1024);
+
+    /**
+     * Maximum number of emails (received and sent) per user, 0 for no limit.
+     */
+    @Builder.Default
+    private int maxEmailsPerUser = Integer.getInteger("email.quota.maxEmails", 0);
+
+    /**
+     * Maximum UTF-8 bytes of subjects and bodies (received and sent) per user, 0 for no limit.
+     */
+    @Builder.Default
+    private long maxBytesPerUser = Long.getLong("email.quota.maxBytes", 0L);
+
+    /**
+     * How long emails are kept before compaction removes them, zero to keep them forever.
+     */
+    @Builder.Default
+    private Duration retention = Duration.ofHours(Long.getLong("email.retention.hours", 0L));
+
+    /**
+     * Interval between background compaction runs.
+     */
+    @Builder.Default
+    private Duration compactionInterval = Duration.ofSeconds(Long.getLong("email.compaction.intervalSeconds", 60L));
+
+    /**
+     * Maximum number of emails a shard removes per compaction step before letting queued operations run.
+     */
+    @Builder.Default
+    private int compactionBatchSize = Integer.getInteger("email.compaction.batchSize", 1000);
+
+    /**
+     * Index of this server among the nodes sharing one user space behind a routing proxy.
+     */
+    @Builder.Default
+    private int nodeIndex = Integer.getInteger("email.node.index", 0);
+
+    /**
+     * Maximum number of such nodes. Email ids are generated as {@code localId * maxNodes + nodeIndex},
+     * so ids stay unique when emails or whole mailboxes move between nodes. Each shard can generate
+     * about {@code Integer.MAX_VALUE / (shardCount * maxNodes)} ids, sends fail with
+     * {@code EMAIL_IDS_EXHAUSTED} after that.
+     */
+    @Builder.Default
+    private int maxNodes = Integer.getInteger("email.node.max", 1);
+
+    public static EmailStorageConfig defaults() {
+        return builder().build();
+    }
+}
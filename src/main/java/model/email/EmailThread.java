@@ -0,0 +1,53 @@
+package model.email;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Summary of a conversation in one user's mailbox.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EmailThread {
+
+    /**
+     * Id of the thread, which is the id of its first email.
+     */
+    private int threadId;
+
+    /**
+     * Subject of the conversation without reply and forward prefixes.
+     */
+    private String subject;
+
+    /**
+     * Username of the other participant.
+     */
+    private String participantUsername;
+
+    /**
+     * Number of emails of the thread in the mailbox, received and sent.
+     */
+    private int messageCount;
+
+    /**
+     * Number of received emails of the thread not read yet.
+     */
+    private int unreadCount;
+
+    /**
+     * Id of the most recent email of the thread.
+     */
+    private int latestEmailId;
+
+    /**
+     * Timestamp of the most recent email of the thread.
+     */
+    private LocalDateTime latestAt;
+}
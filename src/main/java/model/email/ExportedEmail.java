@@ -0,0 +1,12 @@
+package model.email;
+
+import java.util.Set;
+
+/**
+ * One email of a mailbox moved between servers, as seen by the mailbox owner.
+ *
+ * @param inbox whether the email is in the owner's inbox rather than their sent list
+ */
+public record ExportedEmail(boolean inbox, int id, String senderUsername, String recipientUsername,
+                            String subject, String body, long sentAtMillis, boolean read, Set<String> labels) {
+}
@@ -0,0 +1,40 @@
+package model.email;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Singular;
+
+import java.util.Set;
+
+/**
+ * Criteria for {@link EmailManager#filterEmails(String, LabelFilter)}.
+ * All criteria must hold; empty or {@code null} criteria do not restrict the result.
+ */
+@Getter
+@Builder
+public class LabelFilter {
+
+    /**
+     * Filtered side of the mailbox; {@link SearchType#FROM} and {@link SearchType#TO} select the same lists
+     * as {@link SearchType#RECEIVED} and {@link SearchType#SENT}.
+     */
+    @Builder.Default
+    private SearchType type = SearchType.RECEIVED;
+
+    /**
+     * Labels every email must have.
+     */
+    @Singular
+    private Set<String> withLabels;
+
+    /**
+     * Labels no email may have.
+     */
+    @Singular
+    private Set<String> withoutLabels;
+
+    /**
+     * Required read state.
+     */
+    private Boolean read;
+}
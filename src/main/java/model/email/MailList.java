@@ -0,0 +1,264 @@
+package model.email;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Append-only list of the records in one side (inbox or sent) of a mailbox.
+ * <p>
+ * Records are addressed by their position in the list, which never changes once assigned.
+ * Expired records are trimmed from the head; the positions of the remaining records stay the same,
+ * and the live positions are {@code [firstPosition(), endPosition())}.
+ * <p>
+ * Read state belongs to the list rather than to the shared record, so the sender and the recipient
+ * each have their own. Read flags and user labels are {@link PositionBitmap}s over positions, so
+ * filters combining them are evaluated as bitmap operations.
+ * <p>
+ * A parallel array of delivery timestamps, kept non-decreasing, serves as a time index:
+ * a time range maps to a contiguous slice of positions found by binary search.
+ * A secondary index maps each counterparty (the sender for an inbox, the recipient for a sent list)
+ * to the sorted positions of the emails exchanged with them.
+ * Only the thread owning the mailbox shard touches a list, so it is not synchronized.
+ */
+final class MailList {
+
+    private static final PositionBitmap EMPTY = new PositionBitmap();
+
+    private final boolean inbox;
+    private EmailRecord[] records = new EmailRecord[16];
+
+    /**
+     * Time index; {@code timestamps[i]} is the delivery time of {@code records[i]} in epoch millis.
+     * Emails sent concurrently can arrive slightly out of order, so the key is clamped to
+     * the previous one to keep the array sorted.
+     */
+    private long[] timestamps = new long[16];
+
+    /**
+     * Position of {@code records[0]}.
+     */
+    private int offset;
+    private int firstPosition;
+    private int endPosition;
+    private final Map<Integer, Integer> positionsById = new HashMap<>();
+
+    private final PositionBitmap read = new PositionBitmap();
+
+    /**
+     * Label name to the positions carrying the label.
+     */
+    private final Map<String, PositionBitmap> labels = new HashMap<>();
+
+    /**
+     * Counterparty index: user id to the positions of the emails exchanged with that user.
+     */
+    private final Map<Integer, Postings> positionsByCounterparty = new HashMap<>();
+
+    MailList(boolean inbox) {
+        this.inbox = inbox;
+    }
+
+    /**
+     * Appends the record and returns its position.
+     */
+    int append(EmailRecord record) {
+        if (endPosition - offset == records.length) {
+            compact();
+        }
+        int position = endPosition++;
+        records[position - offset] = record;
+        long previous = position > firstPosition ? timestamps[position - 1 - offset] : Long.MIN_VALUE;
+        timestamps[position - offset] = Math.max(record.sentAtMillis, previous);
+        positionsById.put(record.id, position);
+        positionsByCounterparty.computeIfAbsent(counterpartyOf(record), id -> new Postings()).append(position);
+        return position;
+    }
+
+    EmailRecord get(int position) {
+        return records[position - offset];
+    }
+
+    /**
+     * Returns the first live position delivered at or after the time, or {@link #endPosition()} if there is none.
+     */
+    int firstPositionAtOrAfter(long epochMillis) {
+        int low = firstPosition - offset;
+        int high = endPosition - offset;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < epochMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low + offset;
+    }
+
+    /**
+     * Returns the positions of the emails exchanged with the user, or {@code null} if there are none.
+     */
+    Postings positionsWith(int counterpartyId) {
+        return positionsByCounterparty.get(counterpartyId);
+    }
+
+    int counterpartyOf(EmailRecord record) {
+        return inbox ? record.senderId : record.recipientId;
+    }
+
+    /**
+     * Returns the position of the email with the id, or -1 if the list does not contain it.
+     */
+    int positionOf(int emailId) {
+        return positionsById.getOrDefault(emailId, -1);
+    }
+
+    int firstPosition() {
+        return firstPosition;
+    }
+
+    int endPosition() {
+        return endPosition;
+    }
+
+    /**
+     * Number of live records.
+     */
+    int count() {
+        return endPosition - firstPosition;
+    }
+
+    boolean isRead(int position) {
+        return read.contains(position);
+    }
+
+    /**
+     * Marks the position read and returns {@code true} if it was unread.
+     */
+    boolean markRead(int position) {
+        return read.add(position);
+    }
+
+    /**
+     * Marks the positions in {@code [fromPosition, toPosition)} read and returns how many were unread.
+     * The range is clamped to the live positions.
+     */
+    int markRead(int fromPosition, int toPosition) {
+        return read.addRange(Math.max(fromPosition, firstPosition), Math.min(toPosition, endPosition));
+    }
+
+    /**
+     * Calls the action with every unread live position in {@code [fromPosition, toPosition)}.
+     */
+    void forEachUnread(int fromPosition, int toPosition, IntConsumer action) {
+        live(fromPosition, toPosition).andNot(read).forEach(action);
+    }
+
+    /**
+     * Live positions in {@code [fromPosition, toPosition)} as a bitmap.
+     */
+    PositionBitmap live(int fromPosition, int toPosition) {
+        return PositionBitmap.range(Math.max(fromPosition, firstPosition), Math.min(toPosition, endPosition));
+    }
+
+    /**
+     * Read positions. The bitmap is owned by the list and must not be modified.
+     */
+    PositionBitmap readPositions() {
+        return read;
+    }
+
+    /**
+     * Positions carrying the label, or an empty bitmap. The bitmap must not be modified.
+     */
+    PositionBitmap labelled(String label) {
+        return labels.getOrDefault(label, EMPTY);
+    }
+
+    /**
+     * Labels of the position.
+     */
+    Set<String> labelsOf(int position) {
+        Set<String> result = new HashSet<>();
+        labels.forEach((label, positions) -> {
+            if (positions.contains(position)) {
+                result.add(label);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds the label to the position and returns {@code true} if it did not have it.
+     */
+    boolean addLabel(int position, String label) {
+        return labels.computeIfAbsent(label, name -> new PositionBitmap()).add(position);
+    }
+
+    /**
+     * Removes the label from the position and returns {@code true} if it had it.
+     */
+    boolean removeLabel(int position, String label) {
+        PositionBitmap positions = labels.get(label);
+        if (positions == null || !positions.remove(position)) {
+            return false;
+        }
+        if (positions.isEmpty()) {
+            labels.remove(label);
+        }
+        return true;
+    }
+
+    /**
+     * Marks every live record read and returns how many were unread.
+     */
+    int markAllRead() {
+        return markRead(firstPosition, endPosition);
+    }
+
+    /**
+     * Removes and returns the first record if it was sent before the cutoff, otherwise returns {@code null}.
+     */
+    EmailRecord removeFirstIfOlderThan(long cutoffMillis) {
+        if (firstPosition == endPosition) {
+            return null;
+        }
+        EmailRecord first = get(firstPosition);
+        if (first.sentAtMillis >= cutoffMillis) {
+            return null;
+        }
+        records[firstPosition - offset] = null;
+        read.remove(firstPosition);
+        labels.values().removeIf(positions -> positions.remove(firstPosition) && positions.isEmpty());
+        positionsById.remove(first.id);
+        firstPosition++;
+        Postings postings = positionsByCounterparty.get(counterpartyOf(first));
+        postings.removeBelow(firstPosition);
+        if (postings.isEmpty()) {
+            positionsByCounterparty.remove(counterpartyOf(first));
+        }
+        return first;
+    }
+
+    /**
+     * Drops the trimmed head of the array, growing it if it is more than half full.
+     */
+    private void compact() {
+        int live = count();
+        boolean grow = live * 2 > records.length;
+        EmailRecord[] target = grow ? new EmailRecord[records.length * 2] : records;
+        long[] targetTimestamps = grow ? new long[records.length * 2] : timestamps;
+        System.arraycopy(records, firstPosition - offset, target, 0, live);
+        System.arraycopy(timestamps, firstPosition - offset, targetTimestamps, 0, live);
+        if (!grow) {
+            Arrays.fill(records, live, records.length, null);
+        }
+        records = target;
+        timestamps = targetTimestamps;
+        offset = firstPosition;
+    }
+}
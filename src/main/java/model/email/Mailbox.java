@@ -0,0 +1,49 @@
+package model.email;
+
+/**
+ * Mailbox of a single user, split into received and sent mail, with a conversation index over both.
+ * Owned by exactly one {@link MailboxShard} and only accessed from its thread.
+ */
+final class Mailbox {
+
+    final int ownerId;
+    final MailList inbox = new MailList(true);
+    final MailList sent = new MailList(false);
+    final ThreadIndex threads = new ThreadIndex();
+
+    /**
+     * UTF-8 bytes of all emails in both lists, for quota accounting.
+     */
+    long usedBytes;
+
+    /**
+     * Emails and bytes reserved by cross-shard sends that are being delivered, counted against the quota.
+     */
+    int reservedEmails;
+    long reservedBytes;
+
+    Mailbox(int ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    MailList list(SearchType type) {
+        return switch (type) {
+            case RECEIVED, FROM -> inbox;
+            case SENT, TO -> sent;
+        };
+    }
+
+    void reserve(int sizeBytes) {
+        reservedEmails++;
+        reservedBytes += sizeBytes;
+    }
+
+    void release(int sizeBytes) {
+        reservedEmails--;
+        reservedBytes -= sizeBytes;
+    }
+
+    int emailCount() {
+        return inbox.count() + sent.count();
+    }
+}
@@ -0,0 +1,54 @@
+package model.email;
+
+import java.util.List;
+
+/**
+ * Receives the mutations applied by {@link EmailManagerImpl}, e.g. to replicate them.
+ * <p>
+ * Callbacks run on the thread of the shard that applied the mutation, right after applying it,
+ * so the callbacks for one mailbox arrive in the order its state changed. They must be fast and
+ * must not call back into the email manager.
+ */
+public interface MailboxListener {
+
+    MailboxListener NONE = new MailboxListener() {
+    };
+
+    /**
+     * An email was delivered to the recipient's inbox.
+     */
+    default void emailDelivered(int emailId, int threadId, String senderUsername, String recipientUsername,
+                                String subject, String body, long sentAtMillis) {
+    }
+
+    /**
+     * An email delivered by another server was recorded in the sender's sent list.
+     */
+    default void sentRecorded(int emailId, int threadId, String senderUsername, String recipientUsername,
+                              String subject, String body, long sentAtMillis) {
+    }
+
+    /**
+     * The user's mailbox was created from emails exported by another server.
+     */
+    default void mailboxImported(String userName, List<ExportedEmail> emails) {
+    }
+
+    /**
+     * The user's mailbox was deleted, e.g. because it moved to another server.
+     */
+    default void mailboxRemoved(String userName) {
+    }
+
+    /**
+     * Emails of the user changed from unread to read.
+     */
+    default void emailsRead(String userName, int[] emailIds) {
+    }
+
+    /**
+     * The label was added to or removed from emails of the user.
+     */
+    default void labelsChanged(String userName, SearchType type, String label, int[] emailIds, boolean added) {
+    }
+}
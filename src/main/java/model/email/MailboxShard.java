@@ -0,0 +1,161 @@
+package model.email;
+
+import metrics.RequestStages;
+import metrics.StorageOperationEvent;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Partition of the mailbox state owned by a single writer thread.
+ * <p>
+ * Every operation on the shard's mailboxes is submitted to the shard's command queue and
+ * executed by its one thread, so the mailboxes themselves need no locking.
+ * Email ids are generated per shard as {@code (sequence * shardCount + shardIndex) * maxNodes + nodeIndex},
+ * which keeps them unique across shards and nodes without a shared counter. A shard can therefore
+ * hand out about {@code Integer.MAX_VALUE / (shardCount * maxNodes)} ids; after that
+ * {@link #nextEmailId()} returns -1.
+ * Operations must not call into another shard's {@link #call(Function)} themselves.
+ */
+final class MailboxShard {
+
+    private static final long IDLE_SECONDS = 60;
+
+    private final int index;
+    private final int shardCount;
+    private final int nodeIndex;
+    private final int maxNodes;
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+    private int sequence;
+
+    MailboxShard(int index, int shardCount, int nodeIndex, int maxNodes) {
+        this.index = index;
+        this.shardCount = shardCount;
+        this.nodeIndex = nodeIndex;
+        this.maxNodes = maxNodes;
+        this.executor = new ThreadPoolExecutor(
+                1,
+                1,
+                IDLE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "mailbox-shard-" + index);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+//        An idle shard lets its thread exit, so managers that are dropped without shutdown() do not keep threads.
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the operation on the shard thread and waits for its result.
+     * Runtime exceptions thrown by the operation are rethrown to the caller.
+     */
+    <T> T call(Function<MailboxShard, T> operation) {
+        return call("other", null, operation);
+    }
+
+    /**
+     * Like {@link #call(Function)}, naming the operation and the mailbox owner in a
+     * {@link StorageOperationEvent} when the event is enabled in a flight recording.
+     * The time until the result is available counts as storage time of the caller's {@link RequestStages}.
+     */
+    <T> T call(String operationName, String userName, Function<MailboxShard, T> operation) {
+        RequestStages stages = RequestStages.current();
+        long startedAt = stages == null ? 0 : System.nanoTime();
+        StorageOperationEvent event = new StorageOperationEvent();
+        boolean recorded = event.isEnabled();
+        Future<T> result;
+        if (recorded) {
+            event.begin();
+            long submittedAt = System.nanoTime();
+            result = executor.submit(() -> {
+                event.queuedNanos = System.nanoTime() - submittedAt;
+                return operation.apply(this);
+            });
+        } else {
+            result = executor.submit(() -> operation.apply(this));
+        }
+        try {
+            T value = result.get();
+            if (recorded && event.shouldCommit()) {
+                event.operation = operationName;
+                event.user = userName;
+                event.shard = index;
+                event.commit();
+            }
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for mailbox shard " + index, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Mailbox shard " + index + " operation failed", e.getCause());
+        } finally {
+            if (stages != null) {
+                stages.addStorage(System.nanoTime() - startedAt);
+            }
+        }
+    }
+
+    Mailbox mailbox(String userName) {
+        return mailboxes.get(userName);
+    }
+
+    Collection<Mailbox> mailboxes() {
+        return mailboxes.values();
+    }
+
+    void addMailbox(String userName, Mailbox mailbox) {
+        mailboxes.put(userName, mailbox);
+    }
+
+    /**
+     * Returns the next email id, or -1 once the ids of this shard no longer fit in an {@code int}.
+     */
+    int nextEmailId() {
+        try {
+            int next = Math.addExact(sequence, 1);
+            int emailId = Math.addExact(Math.multiplyExact(Math.addExact(Math.multiplyExact(next, shardCount), index), maxNodes), nodeIndex);
+            sequence = next;
+            return emailId;
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether the id has this shard's and node's layout. Safe to call from any thread.
+     */
+    boolean generates(int emailId) {
+        return emailId % maxNodes == nodeIndex && (emailId / maxNodes) % shardCount == index;
+    }
+
+    /**
+     * Moves the id sequence past an id this shard {@link #generates(int) generates}, so an id applied
+     * from a replication log is never handed out again.
+     */
+    void advancePast(int emailId) {
+        sequence = Math.max(sequence, emailId / maxNodes / shardCount);
+    }
+
+    Mailbox removeMailbox(String userName) {
+        return mailboxes.remove(userName);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,144 @@
+package model.email;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keeps email bodies outside the Java heap in an arena of direct buffers.
+ * <p>
+ * Bodies are appended to the current chunk as a length prefix followed by the UTF-8 bytes.
+ * The handle encodes the chunk index in the upper 32 bits and the offset in the lower 32 bits.
+ * A chunk is dropped once every body in it has been released; chunk indexes are never reused,
+ * so a stale handle can never point at another body.
+ */
+@Slf4j
+public class OffHeapBodyStore implements BodyStore {
+
+    private static final int DEFAULT_CHUNK_BYTES = Integer.getInteger("email.body.chunkBytes", 4 * 1024 * 1024);
+    private static final int LENGTH_PREFIX_BYTES = Integer.BYTES;
+
+    private final int chunkBytes;
+
+    /**
+     * Chunks by index. Released chunks are set to {@code null}. The array is replaced when it grows.
+     */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+    private int[] liveBytes = new int[16];
+    private int chunkCount;
+    private int currentChunk = -1;
+
+    private long usedBytes;
+    private long reservedBytes;
+
+    public OffHeapBodyStore() {
+        this(DEFAULT_CHUNK_BYTES);
+    }
+
+    public OffHeapBodyStore(int chunkBytes) {
+        if (chunkBytes <= LENGTH_PREFIX_BYTES) {
+            throw new IllegalArgumentException("Chunk size too small: " + chunkBytes);
+        }
+        this.chunkBytes = chunkBytes;
+    }
+
+    @Override
+    public synchronized long store(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        int required = bytes.length + LENGTH_PREFIX_BYTES;
+
+        int chunkIndex;
+        if (required > chunkBytes) {
+//            Oversized bodies get a dedicated chunk so they do not waste the rest of the current one.
+            chunkIndex = allocateChunk(required);
+        } else {
+            if (currentChunk < 0 || chunks[currentChunk].remaining() < required) {
+                int previousChunk = currentChunk;
+                currentChunk = allocateChunk(chunkBytes);
+                if (previousChunk >= 0 && liveBytes[previousChunk] == 0) {
+                    dropChunk(previousChunk);
+                }
+            }
+            chunkIndex = currentChunk;
+        }
+
+        ByteBuffer chunk = chunks[chunkIndex];
+        int offset = chunk.position();
+        chunk.putInt(bytes.length).put(bytes);
+
+        liveBytes[chunkIndex] += required;
+        usedBytes += required;
+
+        return ((long) chunkIndex << 32) | offset;
+    }
+
+    @Override
+    public String load(long handle) {
+        ByteBuffer chunk = chunks[chunkIndex(handle)];
+        if (chunk == null) {
+            throw new IllegalStateException("Body already released: " + handle);
+        }
+        int offset = offset(handle);
+        byte[] bytes = new byte[chunk.getInt(offset)];
+        chunk.get(offset + LENGTH_PREFIX_BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized long release(long handle) {
+        int chunkIndex = chunkIndex(handle);
+        ByteBuffer chunk = chunks[chunkIndex];
+        if (chunk == null) {
+            return 0;
+        }
+
+        int length = chunk.getInt(offset(handle));
+        int released = length + LENGTH_PREFIX_BYTES;
+        liveBytes[chunkIndex] -= released;
+        usedBytes -= released;
+
+        if (liveBytes[chunkIndex] == 0 && chunkIndex != currentChunk) {
+            dropChunk(chunkIndex);
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    private int allocateChunk(int capacity) {
+        if (chunkCount == chunks.length) {
+            liveBytes = Arrays.copyOf(liveBytes, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        ByteBuffer[] current = chunks;
+        current[chunkCount] = ByteBuffer.allocateDirect(capacity);
+//        Volatile write publishes the new chunk to readers.
+        chunks = current;
+        reservedBytes += capacity;
+        return chunkCount++;
+    }
+
+    private void dropChunk(int chunkIndex) {
+        reservedBytes -= chunks[chunkIndex].capacity();
+        chunks[chunkIndex] = null;
+        log.debug("Released body chunk {}", chunkIndex);
+    }
+
+    private static int chunkIndex(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,443 @@
+package model.email;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed bitmap over non-negative mailbox positions, organised like a Roaring bitmap.
+ * <p>
+ * Positions are split into a 16 bit high part, selecting a container, and a 16 bit low part
+ * stored in it. Sparse containers hold a sorted {@code char[]}, containers with more than
+ * {@value #ARRAY_LIMIT} values switch to a 65536 bit {@code long[]} bitmap. Set operations work
+ * container by container, so their cost follows the number of containers and their density
+ * rather than the number of positions.
+ * Not thread-safe; bitmaps are owned by the mailbox shard thread.
+ */
+public final class PositionBitmap {
+
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+    private static final int CONTAINER_SPAN = 1 << 16;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    /**
+     * Bitmap containing every position in {@code [from, to)}.
+     */
+    public static PositionBitmap range(int from, int to) {
+        PositionBitmap bitmap = new PositionBitmap();
+        bitmap.addRange(from, to);
+        return bitmap;
+    }
+
+    public boolean contains(int position) {
+        int index = indexOf(high(position));
+        return index >= 0 && containers[index].contains(low(position));
+    }
+
+    /**
+     * Adds the position and returns {@code true} if it was not present.
+     */
+    public boolean add(int position) {
+        checkPosition(position);
+        return containerFor(high(position)).add(low(position));
+    }
+
+    /**
+     * Removes the position and returns {@code true} if it was present.
+     */
+    public boolean remove(int position) {
+        int index = indexOf(high(position));
+        if (index < 0 || !containers[index].remove(low(position))) {
+            return false;
+        }
+        if (containers[index].cardinality == 0) {
+            removeContainerAt(index);
+        }
+        return true;
+    }
+
+    /**
+     * Adds every position in {@code [from, to)} and returns how many were not present.
+     */
+    public int addRange(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        checkPosition(from);
+        int added = 0;
+        for (int high = high(from); high <= high(to - 1); high++) {
+            int start = high == high(from) ? low(from) : 0;
+            int end = high == high(to - 1) ? low(to - 1) + 1 : CONTAINER_SPAN;
+            added += containerFor((char) high).addRange(start, end);
+        }
+        return added;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls the action with every position, in increasing order.
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    public int[] toArray() {
+        int[] positions = new int[cardinality()];
+        int[] next = {0};
+        forEach(position -> positions[next[0]++] = position);
+        return positions;
+    }
+
+    public PositionBitmap and(PositionBitmap other) {
+        PositionBitmap result = new PositionBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.appendContainer(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public PositionBitmap or(PositionBitmap other) {
+        PositionBitmap result = new PositionBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.appendContainer(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.appendContainer(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public PositionBitmap andNot(PositionBitmap other) {
+        PositionBitmap result = new PositionBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                result.appendContainer(keys[i], containers[i].andNot(other.containers[j]));
+            } else {
+                result.appendContainer(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    private Container containerFor(char high) {
+        int index = indexOf(high);
+        if (index >= 0) {
+            return containers[index];
+        }
+        index = -index - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = high;
+        containers[index] = new Container();
+        size++;
+        return containers[index];
+    }
+
+    /**
+     * Appends a container with a key greater than every present key; empty containers are skipped.
+     */
+    private void appendContainer(char high, Container container) {
+        if (container == null || container.cardinality == 0) {
+            return;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        keys[size] = high;
+        containers[size] = container;
+        size++;
+    }
+
+    private void removeContainerAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    private int indexOf(char high) {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private static void checkPosition(int position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Position must not be negative: " + position);
+        }
+    }
+
+    private static char high(int position) {
+        return (char) (position >>> 16);
+    }
+
+    private static char low(int position) {
+        return (char) position;
+    }
+
+    /**
+     * Values of one 65536 position span, as a sorted array or as a bitmap.
+     */
+    private static final class Container {
+
+        private char[] array = new char[4];
+        private long[] bitmap;
+        private int cardinality;
+
+        boolean contains(char value) {
+            if (bitmap != null) {
+                return (bitmap[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+        }
+
+        boolean add(char value) {
+            if (bitmap != null) {
+                long word = bitmap[value >>> 6];
+                long updated = word | (1L << value);
+                bitmap[value >>> 6] = updated;
+                if (updated == word) {
+                    return false;
+                }
+                cardinality++;
+                return true;
+            }
+            int index = Arrays.binarySearch(array, 0, cardinality, value);
+            if (index >= 0) {
+                return false;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                toBitmap();
+                return add(value);
+            }
+            index = -index - 1;
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(cardinality * 2, ARRAY_LIMIT));
+            }
+            System.arraycopy(array, index, array, index + 1, cardinality - index);
+            array[index] = value;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char value) {
+            if (bitmap != null) {
+                long word = bitmap[value >>> 6];
+                long updated = word & ~(1L << value);
+                bitmap[value >>> 6] = updated;
+                if (updated == word) {
+                    return false;
+                }
+                cardinality--;
+//                Convert back well below the limit so alternating add/remove does not flip the representation.
+                if (cardinality < ARRAY_LIMIT / 2) {
+                    toArray();
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(array, 0, cardinality, value);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(array, index + 1, array, index, cardinality - index - 1);
+            cardinality--;
+            return true;
+        }
+
+        /**
+         * Adds the low values in {@code [start, end)} and returns how many were not present.
+         */
+        int addRange(int start, int end) {
+            if (bitmap == null && cardinality + (end - start) <= ARRAY_LIMIT) {
+                int added = 0;
+                for (int value = start; value < end; value++) {
+                    if (add((char) value)) {
+                        added++;
+                    }
+                }
+                return added;
+            }
+            if (bitmap == null) {
+                toBitmap();
+            }
+            int before = cardinality;
+            int firstWord = start >>> 6;
+            int lastWord = (end - 1) >>> 6;
+            for (int word = firstWord; word <= lastWord; word++) {
+                long mask = -1L;
+                if (word == firstWord) {
+                    mask &= -1L << start;
+                }
+                if (word == lastWord) {
+                    mask &= -1L >>> (63 - ((end - 1) & 63));
+                }
+                cardinality += Long.bitCount(mask & ~bitmap[word]);
+                bitmap[word] |= mask;
+            }
+            return cardinality - before;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            if (bitmap == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    action.accept(base | array[i]);
+                }
+                return;
+            }
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                long bits = bitmap[word];
+                while (bits != 0) {
+                    action.accept(base | (word << 6) | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        Container and(Container other) {
+            if (bitmap == null || other.bitmap == null) {
+                Container sparse = bitmap == null ? this : other;
+                Container dense = sparse == this ? other : this;
+                Container result = new Container();
+                result.array = new char[Math.max(sparse.cardinality, 1)];
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    if (dense.contains(sparse.array[i])) {
+                        result.array[result.cardinality++] = sparse.array[i];
+                    }
+                }
+                return result;
+            }
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] = bitmap[i] & other.bitmap[i];
+            }
+            return fromWords(words);
+        }
+
+        Container or(Container other) {
+            long[] words = words();
+            long[] otherWords = other.words();
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] |= otherWords[i];
+            }
+            return fromWords(words);
+        }
+
+        Container andNot(Container other) {
+            if (bitmap == null) {
+                Container result = new Container();
+                result.array = new char[Math.max(cardinality, 1)];
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(array[i])) {
+                        result.array[result.cardinality++] = array[i];
+                    }
+                }
+                return result;
+            }
+            long[] words = words();
+            long[] otherWords = other.words();
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] &= ~otherWords[i];
+            }
+            return fromWords(words);
+        }
+
+        Container copy() {
+            Container copy = new Container();
+            copy.cardinality = cardinality;
+            if (bitmap != null) {
+                copy.bitmap = bitmap.clone();
+                copy.array = null;
+            } else {
+                copy.array = Arrays.copyOf(array, Math.max(cardinality, 1));
+            }
+            return copy;
+        }
+
+        /**
+         * Returns the values as a new bitmap.
+         */
+        private long[] words() {
+            if (bitmap != null) {
+                return bitmap.clone();
+            }
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[array[i] >>> 6] |= 1L << array[i];
+            }
+            return words;
+        }
+
+        private static Container fromWords(long[] words) {
+            Container container = new Container();
+            container.bitmap = words;
+            container.array = null;
+            for (long word : words) {
+                container.cardinality += Long.bitCount(word);
+            }
+            if (container.cardinality <= ARRAY_LIMIT) {
+                container.toArray();
+            }
+            return container;
+        }
+
+        private void toBitmap() {
+            bitmap = words();
+            array = null;
+        }
+
+        private void toArray() {
+            char[] values = new char[Math.max(cardinality, 1)];
+            int next = 0;
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                long bits = bitmap[word];
+                while (bits != 0) {
+                    values[next++] = (char) ((word << 6) | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            array = values;
+            bitmap = null;
+        }
+    }
+}
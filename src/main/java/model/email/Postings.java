@@ -0,0 +1,55 @@
+package model.email;
+
+import java.util.Arrays;
+
+/**
+ * Sorted list of mailbox positions, used as a posting list of a secondary index.
+ * Positions are appended in increasing order and removed from the head only.
+ */
+final class Postings {
+
+    private int[] positions = new int[4];
+    private int start;
+    private int end;
+
+    void append(int position) {
+        if (end == positions.length) {
+            int live = end - start;
+            int[] target = live * 2 > positions.length ? new int[positions.length * 2] : positions;
+            System.arraycopy(positions, start, target, 0, live);
+            positions = target;
+            start = 0;
+            end = live;
+        }
+        positions[end++] = position;
+    }
+
+    /**
+     * Drops the head entries below the position.
+     */
+    void removeBelow(int position) {
+        while (start < end && positions[start] < position) {
+            start++;
+        }
+    }
+
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    int get(int index) {
+        return positions[start + index];
+    }
+
+    /**
+     * Index of the first entry that is at least the position, or {@link #size()} if there is none.
+     */
+    int lowerBound(int position) {
+        int index = Arrays.binarySearch(positions, start, end, position);
+        return (index >= 0 ? index : -index - 1) - start;
+    }
+}
@@ -0,0 +1,10 @@
+package model.email;
+
+import service.ResponseStatus;
+
+/**
+ * Outcome of {@link EmailManager#deliverRelayed}: the status and, on success,
+ * the id and timestamp the recipient's server assigned to the email.
+ */
+public record RelayReceipt(ResponseStatus status, int emailId, long sentAtMillis) {
+}
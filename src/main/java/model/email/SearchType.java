@@ -2,5 +2,15 @@ package model.email;
 
 public enum SearchType {
     RECEIVED,
-    SENT
+    SENT,
+
+    /**
+     * Received emails from one sender.
+     */
+    FROM,
+
+    /**
+     * Sent emails to one recipient.
+     */
+    TO
 }
\ No newline at end of file
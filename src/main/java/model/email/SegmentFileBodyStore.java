@@ -0,0 +1,200 @@
+package model.email;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Keeps email bodies on disk in append-only segment files.
+ * <p>
+ * Bodies are appended to the current segment as a length prefix followed by the UTF-8 bytes.
+ * The handle encodes the segment index in the upper 24 bits and the file offset in the lower 40 bits.
+ * A segment file is deleted once every body in it has been released.
+ */
+@Slf4j
+public class SegmentFileBodyStore implements BodyStore {
+
+    private static final long DEFAULT_SEGMENT_BYTES = Long.getLong("email.cold.segmentBytes", 64L * 1024 * 1024);
+    private static final int LENGTH_PREFIX_BYTES = Integer.BYTES;
+    private static final long OFFSET_MASK = (1L << 40) - 1;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean temporary;
+
+    private volatile FileChannel[] segments = new FileChannel[16];
+    private long[] liveBytes = new long[16];
+    private int segmentCount;
+    private int currentSegment = -1;
+
+    private long usedBytes;
+    private long reservedBytes;
+
+    public SegmentFileBodyStore(Path directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, false);
+    }
+
+    private SegmentFileBodyStore(Path directory, long segmentBytes, boolean temporary) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Creates a store in a new temporary directory that is removed when the JVM exits.
+     */
+    public static SegmentFileBodyStore temporary() {
+        try {
+            Path directory = Files.createTempDirectory("email-cold-");
+            directory.toFile().deleteOnExit();
+            return new SegmentFileBodyStore(directory, DEFAULT_SEGMENT_BYTES, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create cold storage directory", e);
+        }
+    }
+
+    @Override
+    public synchronized long store(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        int required = bytes.length + LENGTH_PREFIX_BYTES;
+
+        try {
+            if (currentSegment < 0 || segments[currentSegment].size() + required > segmentBytes) {
+                int previousSegment = currentSegment;
+                currentSegment = openSegment();
+                if (previousSegment >= 0 && liveBytes[previousSegment] == 0) {
+                    dropSegment(previousSegment);
+                }
+            }
+
+            FileChannel segment = segments[currentSegment];
+            long offset = segment.size();
+            ByteBuffer buffer = ByteBuffer.allocate(required).putInt(bytes.length).put(bytes).flip();
+            while (buffer.hasRemaining()) {
+                segment.write(buffer, offset + buffer.position());
+            }
+
+            liveBytes[currentSegment] += required;
+            usedBytes += required;
+            reservedBytes += required;
+
+            return ((long) currentSegment << 40) | offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write body to cold storage", e);
+        }
+    }
+
+    @Override
+    public String load(long handle) {
+        FileChannel segment = segments[segmentIndex(handle)];
+        if (segment == null) {
+            throw new IllegalStateException("Body already released: " + handle);
+        }
+        try {
+            long offset = offset(handle);
+            ByteBuffer length = readFully(segment, ByteBuffer.allocate(LENGTH_PREFIX_BYTES), offset);
+            ByteBuffer bytes = readFully(segment, ByteBuffer.allocate(length.getInt(0)), offset + LENGTH_PREFIX_BYTES);
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        } catch (ClosedChannelException e) {
+//            The segment was dropped while it was being read, so every body in it has been released.
+            throw new IllegalStateException("Body already released: " + handle, e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read body from cold storage", e);
+        }
+    }
+
+    @Override
+    public synchronized long release(long handle) {
+        int segmentIndex = segmentIndex(handle);
+        FileChannel segment = segments[segmentIndex];
+        if (segment == null) {
+            return 0;
+        }
+
+        int length;
+        try {
+            length = readFully(segment, ByteBuffer.allocate(LENGTH_PREFIX_BYTES), offset(handle)).getInt(0);
+            long released = length + LENGTH_PREFIX_BYTES;
+            liveBytes[segmentIndex] -= released;
+            usedBytes -= released;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot release body from cold storage", e);
+        }
+
+        if (liveBytes[segmentIndex] == 0 && segmentIndex != currentSegment) {
+            dropSegment(segmentIndex);
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    private int openSegment() throws IOException {
+        if (segmentCount == segments.length) {
+            liveBytes = Arrays.copyOf(liveBytes, segmentCount * 2);
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        }
+        Path file = segmentFile(segmentCount);
+        if (temporary) {
+            file.toFile().deleteOnExit();
+        }
+        FileChannel[] current = segments;
+        current[segmentCount] = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+//        Volatile write publishes the new segment to readers.
+        segments = current;
+        return segmentCount++;
+    }
+
+    private void dropSegment(int segmentIndex) {
+        FileChannel segment = segments[segmentIndex];
+        segments[segmentIndex] = null;
+        try {
+            reservedBytes -= segment.size();
+            segment.close();
+            Files.deleteIfExists(segmentFile(segmentIndex));
+            log.debug("Deleted cold body segment {}", segmentIndex);
+        } catch (IOException e) {
+            log.warn("Cannot delete cold body segment {}: {}", segmentIndex, e.getMessage());
+        }
+    }
+
+    private Path segmentFile(int segmentIndex) {
+        return directory.resolve(String.format("bodies-%06d.seg", segmentIndex));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of cold body segment");
+            }
+        }
+        return buffer;
+    }
+
+    private static int segmentIndex(long handle) {
+        return (int) (handle >>> 40);
+    }
+
+    private static long offset(long handle) {
+        return handle & OFFSET_MASK;
+    }
+}
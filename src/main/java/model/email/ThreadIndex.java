@@ -0,0 +1,125 @@
+package model.email;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Conversation index of one mailbox.
+ * <p>
+ * Emails are grouped by thread id. A new email joins the thread of the email it replies to or,
+ * failing that, the thread with the same normalized subject between the same two users.
+ * Threads are kept in order of latest activity, so a page of the most recent threads
+ * is read without touching individual emails.
+ * Only the thread owning the mailbox shard touches the index.
+ */
+final class ThreadIndex {
+
+    private static final Pattern REPLY_PREFIX = Pattern.compile("^\\s*((re|fw|fwd)\\s*:\\s*)+", Pattern.CASE_INSENSITIVE);
+
+    private final Map<String, Integer> threadIdsByKey = new HashMap<>();
+
+    /**
+     * Threads by id, in order of latest activity (most recent last).
+     */
+    private final LinkedHashMap<Integer, Entry> threads = new LinkedHashMap<>();
+
+    /**
+     * Returns the id of the thread with the key, or -1 if there is none.
+     */
+    int find(String key) {
+        return threadIdsByKey.getOrDefault(key, -1);
+    }
+
+    /**
+     * Adds the email to its thread, creating the thread if needed.
+     */
+    void add(EmailRecord email, String key, int participantId, boolean unread) {
+        Entry entry = threads.remove(email.threadId);
+        if (entry == null) {
+            entry = new Entry(email.threadId, stripPrefixes(email.subject), participantId, key);
+        }
+        entry.messageCount++;
+        if (unread) {
+            entry.unreadCount++;
+        }
+        if (email.sentAtMillis >= entry.latestAtMillis) {
+            entry.latestEmailId = email.id;
+            entry.latestAtMillis = email.sentAtMillis;
+        }
+        threads.put(email.threadId, entry);
+        threadIdsByKey.put(key, email.threadId);
+    }
+
+    void markRead(int threadId) {
+        Entry entry = threads.get(threadId);
+        if (entry != null && entry.unreadCount > 0) {
+            entry.unreadCount--;
+        }
+    }
+
+    /**
+     * Removes an expired email from its thread, dropping the thread once it is empty.
+     */
+    void remove(EmailRecord email, boolean unread) {
+        Entry entry = threads.get(email.threadId);
+        if (entry == null) {
+            return;
+        }
+        if (unread && entry.unreadCount > 0) {
+            entry.unreadCount--;
+        }
+        if (--entry.messageCount == 0) {
+            threads.remove(email.threadId);
+            threadIdsByKey.remove(entry.key, email.threadId);
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} threads, most recently active first, skipping the first {@code offset}.
+     */
+    List<Entry> page(int offset, int limit) {
+        return threads.sequencedValues().reversed().stream()
+                .skip(offset)
+                .limit(limit)
+                .toList();
+    }
+
+    int size() {
+        return threads.size();
+    }
+
+    /**
+     * Thread key of an email: the normalized subject and the unordered pair of participants.
+     */
+    static String key(String subject, int firstUserId, int secondUserId) {
+        return stripPrefixes(subject).toLowerCase(Locale.ROOT)
+                + '\u0000' + Math.min(firstUserId, secondUserId)
+                + ':' + Math.max(firstUserId, secondUserId);
+    }
+
+    static String stripPrefixes(String subject) {
+        return REPLY_PREFIX.matcher(subject).replaceFirst("").trim();
+    }
+
+    static final class Entry {
+        final int threadId;
+        final String subject;
+        final int participantId;
+        final String key;
+        int messageCount;
+        int unreadCount;
+        int latestEmailId;
+        long latestAtMillis = Long.MIN_VALUE;
+
+        private Entry(int threadId, String subject, int participantId, String key) {
+            this.threadId = threadId;
+            this.subject = subject;
+            this.participantId = participantId;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package model.email;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Body store with a hot in-memory tier and a cold on-disk tier.
+ * <p>
+ * New bodies go to the hot tier. {@link #demote(long)} moves a body to the cold tier, after which
+ * it is read back through a {@link BodyCache}. Handles handed out by this store combine a slot number,
+ * which stays valid across demotion and maps to the body's handle in its current tier, with the slot's
+ * generation. Released slots are reused with the next generation, so a stale handle is rejected
+ * instead of reading the body now stored in its slot.
+ */
+public class TieredBodyStore implements BodyStore {
+
+    private static final long COLD_BIT = 1L << 63;
+    private static final long EMPTY = -1L;
+    private static final long DEMOTER_IDLE_SECONDS = 60;
+
+    private final BodyStore hot;
+    private final BodyStore cold;
+    private final BodyCache cache;
+    private final Executor demotions;
+
+    private long[] slots = new long[1024];
+    private int[] generations = new int[1024];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int slotCount;
+
+    private long demotionCount;
+
+    /**
+     * Store that demotes bodies on the calling thread.
+     */
+    public TieredBodyStore(BodyStore hot, BodyStore cold, BodyCache cache) {
+        this(hot, cold, cache, Runnable::run);
+    }
+
+    /**
+     * Store that runs demotions, which write to the cold tier, on the given executor.
+     */
+    public TieredBodyStore(BodyStore hot, BodyStore cold, BodyCache cache, Executor demotions) {
+        this.hot = hot;
+        this.cold = cold;
+        this.cache = cache;
+        this.demotions = demotions;
+    }
+
+    /**
+     * Single daemon thread for demotions that exits when idle.
+     */
+    public static Executor backgroundDemoter() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, DEMOTER_IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "body-demoter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public long store(String body) {
+        long hotHandle = hot.store(body);
+        synchronized (this) {
+            int slot = allocateSlot();
+            slots[slot] = hotHandle;
+            return handle(slot);
+        }
+    }
+
+    @Override
+    public String load(long handle) {
+        while (true) {
+            long physical = physical(handle);
+            try {
+                if (physical == EMPTY) {
+                    throw new IllegalStateException("Body already released: " + handle);
+                }
+                if ((physical & COLD_BIT) == 0) {
+                    return hot.load(physical);
+                }
+                String body = cache.get(handle);
+                if (body == null) {
+                    body = cold.load(physical & ~COLD_BIT);
+                    cache.put(handle, body);
+//                    A release racing with the read may have invalidated the cache before the put.
+                    if (physical(handle) != physical) {
+                        cache.invalidate(handle);
+                    }
+                }
+                return body;
+            } catch (IllegalStateException e) {
+//                The body was demoted while it was being read; retry against its new location.
+                if (physical(handle) == physical) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long release(long handle) {
+        int slot = slot(handle);
+        long physical;
+        synchronized (this) {
+            physical = physical(handle);
+            if (physical == EMPTY) {
+                return 0;
+            }
+            slots[slot] = EMPTY;
+            generations[slot]++;
+            freeSlot(slot);
+        }
+        if ((physical & COLD_BIT) == 0) {
+            return hot.release(physical);
+        }
+        cache.invalidate(handle);
+        return cold.release(physical & ~COLD_BIT);
+    }
+
+    /**
+     * Moves the body to the cold tier on the demotion executor. Does nothing if it is already there
+     * or released by then.
+     */
+    @Override
+    public void demote(long handle) {
+        demotions.execute(() -> demoteNow(handle));
+    }
+
+    private void demoteNow(long handle) {
+        long hotHandle = physical(handle);
+        if (hotHandle == EMPTY || (hotHandle & COLD_BIT) != 0) {
+            return;
+        }
+
+        String body;
+        try {
+            body = hot.load(hotHandle);
+        } catch (IllegalStateException e) {
+//            Released concurrently.
+            return;
+        }
+        long coldHandle = cold.store(body);
+        synchronized (this) {
+            if (physical(handle) != hotHandle) {
+//                Released or demoted concurrently.
+                cold.release(coldHandle);
+                return;
+            }
+            slots[slot(handle)] = coldHandle | COLD_BIT;
+            demotionCount++;
+        }
+        hot.release(hotHandle);
+    }
+
+    @Override
+    public long usedBytes() {
+        return hot.usedBytes() + cold.usedBytes();
+    }
+
+    @Override
+    public long reservedBytes() {
+        return hot.reservedBytes() + cold.reservedBytes();
+    }
+
+    public long hotBytes() {
+        return hot.usedBytes();
+    }
+
+    public long coldBytes() {
+        return cold.usedBytes();
+    }
+
+    public synchronized long demotions() {
+        return demotionCount;
+    }
+
+    public BodyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Current location of the body, or {@link #EMPTY} if the handle's slot was released since.
+     */
+    private synchronized long physical(long handle) {
+        int slot = slot(handle);
+        if (slot >= slotCount || generations[slot] != generation(handle)) {
+            return EMPTY;
+        }
+        return slots[slot];
+    }
+
+    private long handle(int slot) {
+        return ((long) generations[slot] << 32) | slot;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotCount == slots.length) {
+            slots = Arrays.copyOf(slots, slotCount * 2);
+            generations = Arrays.copyOf(generations, slotCount * 2);
+        }
+        return slotCount++;
+    }
+
+    private static int slot(long handle) {
+        return (int) handle;
+    }
+
+    private static int generation(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private void freeSlot(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+}
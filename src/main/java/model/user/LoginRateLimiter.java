@@ -0,0 +1,186 @@
+package model.user;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets limiting how often a key, such as a remote address or a username, may attempt a
+ * password check.
+ * <p>
+ * Each key gets a bucket of {@code capacity} attempts refilled at a steady rate. Buckets live in
+ * lock-striped tables, each an access-ordered map capped at its share of {@code maxKeys}; buckets
+ * that refilled completely carry no state and are dropped, and when a stripe is full its least
+ * recently used bucket is evicted.
+ * Defaults can be overridden with system properties {@code auth.rateLimit.capacity},
+ * {@code auth.rateLimit.perMinute} and {@code auth.rateLimit.maxKeys}.
+ */
+public class LoginRateLimiter {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final double capacity;
+    private final double tokensPerMilli;
+    private final int maxKeysPerStripe;
+    private final LongSupplier clock;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public LoginRateLimiter() {
+        this(Integer.getInteger("auth.rateLimit.capacity", 10),
+                Integer.getInteger("auth.rateLimit.perMinute", 30),
+                Integer.getInteger("auth.rateLimit.maxKeys", 64 * 1024),
+                System::currentTimeMillis);
+    }
+
+    public LoginRateLimiter(int capacity, int perMinute, int maxKeys, LongSupplier clock) {
+        this.capacity = capacity;
+        this.tokensPerMilli = perMinute / 60_000.0;
+        this.maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+        this.clock = clock;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes one attempt from the bucket of every given key, {@code null} keys are skipped.
+     * Returns {@code false}, taking nothing, if any of the buckets is empty.
+     */
+    public boolean tryAcquire(String... keys) {
+        long now = clock.getAsLong();
+        for (String key : keys) {
+            if (key != null && available(key, now) < 1) {
+                throttled.increment();
+                return false;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && !take(keys[i], now)) {
+//                Another thread emptied the bucket in between; give back what was taken from the earlier keys.
+                for (int taken = 0; taken < i; taken++) {
+                    if (keys[taken] != null) {
+                        refund(keys[taken]);
+                    }
+                }
+                throttled.increment();
+                return false;
+            }
+        }
+        allowed.increment();
+        return true;
+    }
+
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Number of keys currently holding a partially used bucket.
+     */
+    public int getTrackedKeys() {
+        int keys = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                keys += stripe.buckets.size();
+            }
+        }
+        return keys;
+    }
+
+
+    private double available(String key, long now) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            return bucket == null ? capacity : refill(bucket, now);
+        }
+    }
+
+    private boolean take(String key, long now) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                evictIdle(stripe, now);
+                bucket = new Bucket(capacity, now);
+                stripe.buckets.put(key, bucket);
+            }
+            if (refill(bucket, now) < 1) {
+                return false;
+            }
+            bucket.tokens -= 1;
+            return true;
+        }
+    }
+
+    private void refund(String key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket != null) {
+                bucket.tokens = Math.min(capacity, bucket.tokens + 1);
+            }
+        }
+    }
+
+    private double refill(Bucket bucket, long now) {
+        if (now > bucket.updatedAtMillis) {
+            bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.updatedAtMillis) * tokensPerMilli);
+            bucket.updatedAtMillis = now;
+        }
+        return bucket.tokens;
+    }
+
+    /**
+     * Drops full buckets from the least recently used end, then the eldest bucket if the stripe is still full.
+     */
+    private void evictIdle(Stripe stripe, long now) {
+        Iterator<Bucket> buckets = stripe.buckets.values().iterator();
+        while (buckets.hasNext()) {
+            Bucket bucket = buckets.next();
+            if (refill(bucket, now) < capacity) {
+                break;
+            }
+            buckets.remove();
+        }
+        if (stripe.buckets.size() >= maxKeysPerStripe) {
+            buckets = stripe.buckets.values().iterator();
+            buckets.next();
+            buckets.remove();
+            evicted.increment();
+        }
+    }
+
+    private Stripe stripeFor(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Stripe {
+        private final Map<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long updatedAtMillis;
+
+        private Bucket(double tokens, long updatedAtMillis) {
+            this.tokens = tokens;
+            this.updatedAtMillis = updatedAtMillis;
+        }
+    }
+}
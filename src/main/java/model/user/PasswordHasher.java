@@ -0,0 +1,251 @@
+package model.user;
+
+import lombok.extern.slf4j.Slf4j;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs BCrypt hashing and verification on a dedicated pool sized to the cores.
+ * <p>
+ * A burst of logins then competes for at most that many cores instead of every connection thread.
+ * Once the queued hashes would keep a new request waiting longer than the wait budget, or the bounded
+ * queue is full, further requests fail immediately with a {@link RejectedExecutionException} rather
+ * than piling up. The expected wait is the queue depth times the average hash time, divided by the
+ * threads. Time spent queued and time spent hashing are measured separately.
+ * <p>
+ * The BCrypt cost is {@value #DEFAULT_COST} unless {@code auth.hash.targetMillis} is set, in which case
+ * it is calibrated at startup to the highest cost whose hash time stays within that target, but not
+ * below {@code auth.hash.minCost}.
+ * Defaults can be overridden with system properties {@code auth.hash.threads}, {@code auth.hash.queue}
+ * and {@code auth.hash.maxWaitMillis}.
+ */
+@Slf4j
+public class PasswordHasher {
+
+    public static final int DEFAULT_COST = 12;
+    public static final int MIN_COST = 4;
+    public static final int MAX_COST = 31;
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 250;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final long maxWaitNanos;
+    private volatile int cost;
+
+    private final LongAdder queuedNanos = new LongAdder();
+    private final LongAdder hashingNanos = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHasher() {
+        this(Integer.getInteger("auth.hash.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("auth.hash.queue", 4 * Runtime.getRuntime().availableProcessors()),
+                configuredCost(),
+                Duration.ofMillis(Long.getLong("auth.hash.maxWaitMillis", DEFAULT_MAX_WAIT_MILLIS)));
+    }
+
+    /**
+     * Hasher without a wait budget, rejecting only when the queue is full.
+     */
+    public PasswordHasher(int threads, int queueCapacity, int cost) {
+        this(threads, queueCapacity, cost, Duration.ZERO);
+    }
+
+    /**
+     * @param maxWait longest expected queue wait a new request accepts, {@link Duration#ZERO} for no budget
+     */
+    public PasswordHasher(int threads, int queueCapacity, int cost, Duration maxWait) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        this.threads = threads;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.cost = cost;
+    }
+
+    /**
+     * Hashes the password with a new salt at the current cost.
+     *
+     * @throws RejectedExecutionException if the hashing queue is full or over the wait budget
+     */
+    public String hash(String password) {
+        int currentCost = cost;
+        return run(() -> BCrypt.hashpw(password, BCrypt.gensalt(currentCost)));
+    }
+
+    /**
+     * Checks the password against a BCrypt hash.
+     *
+     * @throws RejectedExecutionException if the hashing queue is full or over the wait budget
+     */
+    public boolean check(String password, String hashed) {
+        return run(() -> BCrypt.checkpw(password, hashed));
+    }
+
+    /**
+     * Returns the highest cost, between {@code minCost} and {@code maxCost}, whose measured hash time
+     * stays within the target. Each step up doubles the work, so the next cost is only measured when
+     * twice the last measurement still fits.
+     */
+    public static int calibrate(Duration target, int minCost, int maxCost) {
+        long targetNanos = target.toNanos();
+        int cost = minCost;
+        long nanos = timeHash(cost);
+        while (cost < maxCost && nanos * 2 <= targetNanos) {
+            long next = timeHash(cost + 1);
+            if (next > targetNanos) {
+                break;
+            }
+            cost++;
+            nanos = next;
+        }
+        log.info("Calibrated BCrypt cost {} ({} ms per hash, target {} ms)", cost, nanos / 1_000_000, target.toMillis());
+        return cost;
+    }
+
+    /**
+     * Cost a BCrypt hash was created with, or -1 if it is not a BCrypt hash.
+     */
+    public static int costOf(String hashed) {
+        if (hashed == null || hashed.length() < 7 || hashed.charAt(0) != '$' || hashed.charAt(3) != '$') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(hashed, 4, 6, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public void setCost(int cost) {
+        this.cost = cost;
+    }
+
+    /**
+     * Number of hash operations waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Total time completed operations spent waiting in the queue.
+     */
+    public long getQueuedNanos() {
+        return queuedNanos.sum();
+    }
+
+    /**
+     * Total time completed operations spent hashing.
+     */
+    public long getHashingNanos() {
+        return hashingNanos.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    private static int configuredCost() {
+        Long targetMillis = Long.getLong("auth.hash.targetMillis");
+        if (targetMillis == null) {
+            return DEFAULT_COST;
+        }
+        return calibrate(Duration.ofMillis(targetMillis), Integer.getInteger("auth.hash.minCost", 10), MAX_COST);
+    }
+
+    /**
+     * Takes the faster of two runs, so a cold first run does not push the cost down.
+     */
+    private static long timeHash(int cost) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long start = System.nanoTime();
+            BCrypt.hashpw("calibration", BCrypt.gensalt(cost));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Whether a request queued now would wait longer than the budget, judged by the average hash time so far.
+     */
+    private boolean exceedsWaitBudget() {
+        long done = completed.sum();
+        if (maxWaitNanos <= 0 || done == 0) {
+            return false;
+        }
+        long averageNanos = hashingNanos.sum() / done;
+        return executor.getQueue().size() * averageNanos / threads > maxWaitNanos;
+    }
+
+    private <T> T run(Callable<T> operation) {
+        long submittedAt = System.nanoTime();
+        Future<T> result;
+        try {
+            if (exceedsWaitBudget()) {
+                throw new RejectedExecutionException("Password hashing wait budget exceeded");
+            }
+            result = executor.submit(() -> {
+                long startedAt = System.nanoTime();
+                queuedNanos.add(startedAt - submittedAt);
+                try {
+                    return operation.call();
+                } finally {
+                    hashingNanos.add(System.nanoTime() - startedAt);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+//            Counted by getRejectedCount(); a warning per request would flood the log during a login storm.
+            log.debug("Rejecting password hashing request: {}", e.getMessage());
+            throw e;
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for password hashing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package model.user;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Random session tokens handed out after a successful login, so that a reconnecting client
+ * can resume its session without another BCrypt check.
+ * <p>
+ * Tokens expire a fixed time after they were issued. Expired tokens are dropped when they are
+ * presented and by a sweep every {@value #SWEEP_INTERVAL} issued tokens. Once the table holds
+ * {@code maxSessions} tokens, the {@value #EVICTION_PERCENT}% closest to expiring are evicted together,
+ * so a full table is sorted once per batch rather than once per issued token.
+ * Defaults can be overridden with system properties {@code auth.session.ttlMinutes} and {@code auth.session.maxSessions}.
+ */
+@Slf4j
+public class SessionTokens {
+
+    private static final int TOKEN_BYTES = 32;
+    private static final int SWEEP_INTERVAL = 1024;
+    private static final int EVICTION_PERCENT = 10;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong issued = new AtomicLong();
+    private final long ttlMillis;
+    private final int maxSessions;
+    private final LongSupplier clock;
+
+    public SessionTokens() {
+        this(Duration.ofMinutes(Long.getLong("auth.session.ttlMinutes", 24 * 60L)),
+                Integer.getInteger("auth.session.maxSessions", 100_000),
+                System::currentTimeMillis);
+    }
+
+    public SessionTokens(Duration ttl, int maxSessions, LongSupplier clock) {
+        this.ttlMillis = ttl.toMillis();
+        this.maxSessions = maxSessions;
+        this.clock = clock;
+    }
+
+    /**
+     * Issues a new token for the user.
+     */
+    public String issue(String username) {
+        if (issued.incrementAndGet() % SWEEP_INTERVAL == 0 || sessions.size() >= maxSessions) {
+            evictExpired();
+            if (sessions.size() >= maxSessions) {
+                evictOldest(Math.max(sessions.size() - maxSessions + 1, maxSessions * EVICTION_PERCENT / 100));
+            }
+        }
+
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, clock.getAsLong() + ttlMillis));
+        return token;
+    }
+
+    /**
+     * Returns {@code true} if the token was issued to the user and has not expired or been revoked.
+     */
+    public boolean isValid(String username, String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return false;
+        }
+        if (session.expiresAtMillis() <= clock.getAsLong()) {
+            sessions.remove(token, session);
+            return false;
+        }
+        return session.username().equals(username);
+    }
+
+    public void revoke(String token) {
+        sessions.remove(token);
+    }
+
+    /**
+     * Revokes every token of the user, e.g. when the user moves to another server.
+     */
+    public void revokeAll(String username) {
+        sessions.values().removeIf(session -> session.username().equals(username));
+    }
+
+    /**
+     * Removes expired tokens and returns how many were removed.
+     */
+    public int evictExpired() {
+        long now = clock.getAsLong();
+        int before = sessions.size();
+        sessions.values().removeIf(session -> session.expiresAtMillis() <= now);
+        return Math.max(0, before - sessions.size());
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+
+    private void evictOldest(int count) {
+        log.warn("Session table is full, evicting {} sessions", count);
+        sessions.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().expiresAtMillis()))
+                .limit(count)
+                .map(Map.Entry::getKey)
+                .toList()
+                .forEach(sessions::remove);
+    }
+
+    private record Session(String username, long expiresAtMillis) {
+    }
+}
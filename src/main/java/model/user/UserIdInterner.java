@@ -0,0 +1,57 @@
+package model.user;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps usernames to dense int ids so that stored emails can reference users
+ * with a 4 byte id instead of a username String.
+ * Ids are never reused or removed.
+ */
+public class UserIdInterner {
+
+    /**
+     * Returned by {@link #idOf(String)} when the username has not been interned.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int nextId;
+
+    /**
+     * Returns the id of the username, assigning a new one if it has none yet.
+     */
+    public int intern(String username) {
+        Integer id = ids.get(username);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(username, this::assign);
+    }
+
+    /**
+     * Returns the id of the username or {@link #UNKNOWN}.
+     */
+    public int idOf(String username) {
+        return ids.getOrDefault(username, UNKNOWN);
+    }
+
+    /**
+     * Returns the username for the id.
+     */
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    private synchronized int assign(String username) {
+        String[] current = names;
+        if (nextId == current.length) {
+            current = Arrays.copyOf(current, nextId * 2);
+        }
+        current[nextId] = username;
+//        Volatile write publishes the name before the id becomes visible through the map.
+        names = current;
+        return nextId++;
+    }
+}
@@ -0,0 +1,18 @@
+package model.user;
+
+/**
+ * Receives new and removed users from {@link UserManagerImpl}, e.g. to replicate them.
+ */
+public interface UserListener {
+
+    UserListener NONE = (username, passwordHash) -> {
+    };
+
+    void userRegistered(String username, String passwordHash);
+
+    /**
+     * The user was removed, e.g. because it moved to another node.
+     */
+    default void userRemoved(String username) {
+    }
+}
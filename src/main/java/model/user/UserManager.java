@@ -3,14 +3,49 @@ package model.user;
 import service.ResponseStatus;
 
 import java.net.Socket;
+import java.util.List;
 
 public interface UserManager {
 
     ResponseStatus register(String username, String password);
 
+    /**
+     * Registers a user on behalf of a client connection, which may be throttled.
+     */
+    ResponseStatus register(String username, String password, Socket socket);
+
     ResponseStatus login(String username, String password, Socket socket);
 
     User getUserByUsername(String username);
 
     User getUser(String username);
+
+    UserIdInterner getUserIds();
+
+    /**
+     * Adds a user whose password is already hashed, e.g. one replicated from another server.
+     */
+    ResponseStatus importUser(String username, String passwordHash);
+
+    /**
+     * Usernames of all registered users.
+     */
+    List<String> getUsernames();
+
+    /**
+     * Removes the user, e.g. after it moved to another server. Returns {@code false} if there was no such user.
+     */
+    boolean removeUser(String username);
+
+    /**
+     * Issues a session token the user can later present to {@link #resumeSession(String, String)}.
+     */
+    String createSession(String username);
+
+    /**
+     * Returns {@code true} if the token is a live session of the user.
+     */
+    boolean resumeSession(String username, String token);
+
+    void revokeSession(String token);
 }
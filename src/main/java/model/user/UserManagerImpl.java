@@ -2,17 +2,55 @@ package model.user;
 
 
 import lombok.extern.slf4j.Slf4j;
-import org.mindrot.jbcrypt.BCrypt;
 import service.ResponseStatus;
 
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class UserManagerImpl implements UserManager {
 
     private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final UserIdInterner userIds = new UserIdInterner();
+    private final PasswordHasher passwordHasher;
+    private final SessionTokens sessions = new SessionTokens();
+    private final LoginRateLimiter rateLimiter;
+    private volatile UserListener listener = UserListener.NONE;
+
+    /**
+     * Durable copy of the users, {@code null} when users are only kept in memory.
+     */
+    private volatile UserStore store;
+
+    public UserManagerImpl() {
+        this(new PasswordHasher());
+    }
+
+    public UserManagerImpl(PasswordHasher passwordHasher) {
+        this(passwordHasher, new LoginRateLimiter());
+    }
+
+    public UserManagerImpl(PasswordHasher passwordHasher, LoginRateLimiter rateLimiter) {
+        this.passwordHasher = passwordHasher;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public ResponseStatus register(String username, String password, Socket socket) {
+        if (!rateLimiter.tryAcquire(addressKey(socket))) {
+            log.debug("Throttled register attempt for user {}", username);
+            return ResponseStatus.TOO_MANY_ATTEMPTS;
+        }
+        return register(username, password);
+    }
 
     @Override
     public ResponseStatus register(String username, String password) {
@@ -25,24 +63,111 @@ public class UserManagerImpl implements UserManager {
             return ResponseStatus.USER_ALREADY_EXISTS; // User already exists
         }
 
+        String hashed;
+        try {
+            hashed = hashPassword(password);
+        } catch (RejectedExecutionException e) {
+            return ResponseStatus.SERVER_BUSY;
+        }
+
 //        Build a new user
         User user = User.builder()
                 .id(UUID.randomUUID())
                 .username(username)
-                .password(hashPassword(password))
+                .password(hashed)
                 .build();
 
 //        Add the user to the map: username -> user.
 //        We still have UUID for user as a unique identifier as it is safer for unique identification + we can
 //        implement it with database later.
-        users.put(username, user);
+        if (users.putIfAbsent(username, user) != null) {
+            return ResponseStatus.USER_ALREADY_EXISTS;
+        }
+        userIds.intern(username);
+        persist(username, user.getPassword());
+        listener.userRegistered(username, user.getPassword());
+
+        return ResponseStatus.SUCCESS;
+    }
+
+    @Override
+    public ResponseStatus importUser(String username, String passwordHash) {
+        if (username == null || passwordHash == null) {
+            return ResponseStatus.INVALID_USERNAME_OR_PASSWORD;
+        }
+
+        User user = User.builder()
+                .id(UUID.randomUUID())
+                .username(username)
+                .password(passwordHash)
+                .build();
+
+        if (users.putIfAbsent(username, user) != null) {
+            return ResponseStatus.USER_ALREADY_EXISTS;
+        }
+        userIds.intern(username);
+        persist(username, passwordHash);
+        listener.userRegistered(username, passwordHash);
 
         return ResponseStatus.SUCCESS;
     }
 
+    /**
+     * Adds users whose passwords are already hashed and persists them with one write.
+     * Returns the usernames that were added; existing users are left unchanged.
+     */
+    public List<String> importUsers(Map<String, String> passwordHashes) {
+        Map<String, String> added = new LinkedHashMap<>();
+        passwordHashes.forEach((username, passwordHash) -> {
+            User user = User.builder()
+                    .id(UUID.randomUUID())
+                    .username(username)
+                    .password(passwordHash)
+                    .build();
+            if (users.putIfAbsent(username, user) == null) {
+                userIds.intern(username);
+                added.put(username, passwordHash);
+                listener.userRegistered(username, passwordHash);
+            }
+        });
+        UserStore current = store;
+        if (current != null && !added.isEmpty()) {
+            current.putAll(added);
+        }
+        return List.copyOf(added.keySet());
+    }
+
+    /**
+     * Loads the users of the store and writes every later change through to it.
+     * Users not known yet are reported to the listener as registrations.
+     * Returns the number of users loaded.
+     */
+    public int attachStore(UserStore store) {
+        int loaded = 0;
+        for (Map.Entry<String, String> entry : store.getLoadedUsers().entrySet()) {
+            User user = User.builder()
+                    .id(UUID.randomUUID())
+                    .username(entry.getKey())
+                    .password(entry.getValue())
+                    .build();
+            if (users.putIfAbsent(entry.getKey(), user) == null) {
+                userIds.intern(entry.getKey());
+                listener.userRegistered(entry.getKey(), entry.getValue());
+                loaded++;
+            }
+        }
+        this.store = store;
+        return loaded;
+    }
+
     @Override
     public ResponseStatus login(String username, String password, Socket socket) {
 
+        if (!rateLimiter.tryAcquire(addressKey(socket), "user:" + username)) {
+            log.debug("Throttled login attempt for user {}", username);
+            return ResponseStatus.TOO_MANY_ATTEMPTS;
+        }
+
         User user = users.get(username);
 
         if (user == null) {
@@ -50,11 +175,23 @@ public class UserManagerImpl implements UserManager {
             return ResponseStatus.INVALID_USERNAME_OR_PASSWORD; // User not found
         }
 
-        if (!checkPassword(password, user.getPassword())) {
+        boolean passwordMatches;
+        try {
+            passwordMatches = checkPassword(password, user.getPassword());
+        } catch (RejectedExecutionException e) {
+            log.debug("User {} tried to login while password hashing was saturated", username);
+            return ResponseStatus.SERVER_BUSY;
+        }
+
+        if (!passwordMatches) {
             log.debug("User {} tried to login with invalid password", username);
             return ResponseStatus.INVALID_USERNAME_OR_PASSWORD; // Invalid password
         }
 
+        if (PasswordHasher.costOf(user.getPassword()) != passwordHasher.getCost()) {
+            rehash(user, password);
+        }
+
         return ResponseStatus.SUCCESS;
 
     }
@@ -74,11 +211,107 @@ public class UserManagerImpl implements UserManager {
     }
 
 
+    @Override
+    public UserIdInterner getUserIds() {
+        return userIds;
+    }
+
+    @Override
+    public List<String> getUsernames() {
+        return List.copyOf(users.keySet());
+    }
+
+    @Override
+    public boolean removeUser(String username) {
+        sessions.revokeAll(username);
+        if (users.remove(username) == null) {
+            return false;
+        }
+        UserStore current = store;
+        if (current != null) {
+            current.delete(username);
+        }
+        listener.userRemoved(username);
+        return true;
+    }
+
+    @Override
+    public String createSession(String username) {
+        return sessions.issue(username);
+    }
+
+    @Override
+    public boolean resumeSession(String username, String token) {
+        return users.containsKey(username) && sessions.isValid(username, token);
+    }
+
+    @Override
+    public void revokeSession(String token) {
+        sessions.revoke(token);
+    }
+
+    public void setListener(UserListener listener) {
+        this.listener = listener;
+    }
+
+
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
+    }
+
+    /**
+     * Number of stored password hashes per BCrypt cost; hashes that are not BCrypt are counted under -1.
+     */
+    public SortedMap<Integer, Long> getCostDistribution() {
+        return users.values().stream()
+                .collect(Collectors.groupingBy(user -> PasswordHasher.costOf(user.getPassword()), TreeMap::new, Collectors.counting()));
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public LoginRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+
+    /**
+     * Replaces the stored hash with one at the current cost, now that the plain password is known.
+     * Skipped when hashing is saturated; the next login tries again.
+     */
+    private void rehash(User user, String password) {
+        String rehashed;
+        try {
+            rehashed = hashPassword(password);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        if (users.replace(user.getUsername(), user, new User(user.getId(), user.getUsername(), rehashed))) {
+            persist(user.getUsername(), rehashed);
+            log.debug("Rehashed password of user {} from cost {} to {}", user.getUsername(), PasswordHasher.costOf(user.getPassword()), PasswordHasher.costOf(rehashed));
+        }
+    }
+
+    private void persist(String username, String passwordHash) {
+        UserStore current = store;
+        if (current != null) {
+            current.put(username, passwordHash);
+        }
+    }
+
     private String hashPassword(String password) {
-        return BCrypt.hashpw(password, BCrypt.gensalt(12));
+        return passwordHasher.hash(password);
     }
 
     private boolean checkPassword(String password, String hashed) {
-        return BCrypt.checkpw(password, hashed);
+        return passwordHasher.check(password, hashed);
+    }
+
+    /**
+     * Rate limit key of the remote address, {@code null} for an unconnected socket.
+     */
+    private static String addressKey(Socket socket) {
+        return socket == null || socket.getInetAddress() == null ? null : "addr:" + socket.getInetAddress().getHostAddress();
     }
 }
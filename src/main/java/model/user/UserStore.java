@@ -0,0 +1,148 @@
+package model.user;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static service.EmailUtils.DELIMITER;
+
+/**
+ * Append-only file of user records, one line per change: {@code PUT%%username%%passwordHash} or
+ * {@code DELETE%%username}. The last record of a user wins.
+ * <p>
+ * The file is read into an index when the store is opened. A partly written last line, left by a crash,
+ * is cut off so new records start on a line of their own. If superseded records outnumber the
+ * live ones by then, the file is rewritten with only the live records before appending resumes.
+ */
+@Slf4j
+public class UserStore implements Closeable {
+
+    private static final String PUT = "PUT";
+    private static final String DELETE = "DELETE";
+
+    private final Path path;
+    private final Map<String, String> loaded;
+    private final BufferedWriter writer;
+
+    public UserStore(Path path) throws IOException {
+        this.path = path;
+        int records = 0;
+        Map<String, String> users = new LinkedHashMap<>();
+        if (Files.exists(path)) {
+            long validBytes = 0;
+            long position = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int next;
+                while ((next = in.read()) >= 0) {
+                    position++;
+                    if (next != '\n') {
+                        bytes.write(next);
+                        continue;
+                    }
+                    String line = bytes.toString(StandardCharsets.UTF_8).stripTrailing();
+                    bytes.reset();
+                    validBytes = position;
+                    String[] parts = line.split(DELIMITER);
+                    if (parts[0].equals(PUT) && parts.length == 3) {
+                        users.remove(parts[1]);
+                        users.put(parts[1], parts[2]);
+                    } else if (parts[0].equals(DELETE) && parts.length == 2) {
+                        users.remove(parts[1]);
+                    } else {
+                        log.warn("Skipping malformed record in user store {}: {}", path, line);
+                    }
+                    records++;
+                }
+            }
+//            A torn last line after a crash; everything before it is intact.
+            if (validBytes < position) {
+                log.warn("Cutting off {} bytes of a partly written record in user store {}", position - validBytes, path);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validBytes);
+                }
+            }
+        }
+        this.loaded = Collections.unmodifiableMap(users);
+        if (records > 2 * users.size() + 1024) {
+            rewrite(users);
+            log.info("Compacted user store {} from {} to {} records", path, records, users.size());
+        }
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        log.info("Loaded {} users from {}", users.size(), path);
+    }
+
+    /**
+     * Users present when the store was opened, username to password hash, in the order they were added.
+     */
+    public Map<String, String> getLoadedUsers() {
+        return loaded;
+    }
+
+    public synchronized void put(String username, String passwordHash) {
+        write(PUT + DELIMITER + username + DELIMITER + passwordHash);
+        flush();
+    }
+
+    /**
+     * Appends all users with a single flush.
+     */
+    public synchronized void putAll(Map<String, String> users) {
+        users.forEach((username, passwordHash) -> write(PUT + DELIMITER + username + DELIMITER + passwordHash));
+        flush();
+    }
+
+    public synchronized void delete(String username) {
+        write(DELETE + DELIMITER + username);
+        flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+
+    private void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to user store " + path, e);
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to user store " + path, e);
+        }
+    }
+
+    private void rewrite(Map<String, String> users) throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                out.write(PUT + DELIMITER + user.getKey() + DELIMITER + user.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,108 @@
+package replication;
+
+import lombok.extern.slf4j.Slf4j;
+import model.email.EmailManagerImpl;
+import model.email.ExportedEmail;
+import model.email.SearchType;
+import model.user.UserManager;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static service.EmailUtils.ANY;
+import static service.EmailUtils.DELIMITER;
+import static service.EmailUtils.decodeExportedEmail;
+import static service.EmailUtils.decodeField;
+import static service.EmailUtils.LIST_DELIMITER;
+
+/**
+ * Applies {@link ReplicationLog} entries to local managers. Used by followers for the entries streamed
+ * by the leader, and by a restarted leader to rebuild its state from its own log.
+ */
+@Slf4j
+public class ReplicationApplier {
+
+    private final EmailManagerImpl emailManager;
+    private final UserManager userManager;
+
+    public ReplicationApplier(EmailManagerImpl emailManager, UserManager userManager) {
+        this.emailManager = emailManager;
+        this.userManager = userManager;
+    }
+
+    /**
+     * Applies every entry already flushed to the log and returns the number applied.
+     * The managers must not have a replication listener attached yet.
+     */
+    public long replay(ReplicationLog replicationLog) throws IOException {
+        long applied = 0;
+        try (ReplicationLog.Cursor cursor = replicationLog.openCursor(1)) {
+            String entry;
+            while ((entry = cursor.next(0)) != null) {
+                apply(entry.split(DELIMITER, -1));
+                applied++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return applied;
+    }
+
+    /**
+     * Applies one entry, split into its fields: sequence, timestamp, type and the type's fields.
+     */
+    public void apply(String[] parts) {
+        switch (parts[2]) {
+            case ReplicationLog.REGISTER -> {
+//                Users loaded from a local user store already exist, so both steps skip them.
+                userManager.importUser(parts[3], parts[4]);
+                emailManager.initializeMailboxes(List.of(parts[3]));
+            }
+            case ReplicationLog.SEND -> emailManager.applyDelivery(
+                    Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]),
+                    parts[5],
+                    parts[6],
+                    decodeField(parts[7]),
+                    decodeField(parts[8]),
+                    Long.parseLong(parts[9]));
+            case ReplicationLog.SENT -> emailManager.applySent(
+                    Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]),
+                    parts[5],
+                    parts[6],
+                    decodeField(parts[7]),
+                    decodeField(parts[8]),
+                    Long.parseLong(parts[9]));
+            case ReplicationLog.IMPORT -> {
+//                A replayed import may find the mailbox it created before, so it replaces it.
+                emailManager.removeMailbox(parts[3]);
+                emailManager.importMailbox(parts[3], parseEmails(parts[4]));
+            }
+            case ReplicationLog.DROP -> emailManager.removeMailbox(parts[3]);
+            case ReplicationLog.UNREGISTER -> userManager.removeUser(parts[3]);
+            case ReplicationLog.READ -> emailManager.applyRead(parts[3], parseIds(parts[4]));
+            case ReplicationLog.LABEL, ReplicationLog.UNLABEL -> emailManager.applyLabels(
+                    parts[3],
+                    SearchType.valueOf(parts[4]),
+                    decodeField(parts[5]),
+                    parseIds(parts[6]),
+                    parts[2].equals(ReplicationLog.LABEL));
+            default -> log.error("Skipping unknown replication entry type {} at sequence {}", parts[2], parts[0]);
+        }
+    }
+
+    private static List<ExportedEmail> parseEmails(String emails) {
+        if (emails.equals(ANY)) {
+            return List.of();
+        }
+        return Arrays.stream(emails.split(LIST_DELIMITER))
+                .map(email -> decodeExportedEmail(decodeField(email)))
+                .toList();
+    }
+
+    private static int[] parseIds(String ids) {
+        return Arrays.stream(ids.split(LIST_DELIMITER)).mapToInt(Integer::parseInt).toArray();
+    }
+}
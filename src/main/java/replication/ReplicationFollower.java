@@ -0,0 +1,180 @@
+package replication;
+
+import lombok.extern.slf4j.Slf4j;
+import model.email.EmailManagerImpl;
+import model.user.UserManager;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static service.EmailUtils.DELIMITER;
+
+/**
+ * Keeps local managers in sync with a {@link ReplicationLeader} by applying its log in order.
+ * <p>
+ * The follower reconnects after connection failures and resumes from the entry after the last one
+ * it applied. If the leader's log ends before that entry, the leader answers {@code RESYNC} and the
+ * follower stops, because its state can only be rebuilt by starting it again with empty managers. Lag is measured against the sequence and timestamps announced by the leader.
+ */
+@Slf4j
+public class ReplicationFollower implements ReplicationMetrics, Closeable {
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final String leaderHost;
+    private final int leaderPort;
+    private final ReplicationApplier applier;
+
+    private volatile long appliedSequence;
+    private volatile long appliedTimestamp;
+    private volatile long leaderSequence;
+    private volatile boolean running;
+    private volatile Socket socket;
+    private Thread thread;
+
+    public ReplicationFollower(String leaderHost, int leaderPort, EmailManagerImpl emailManager, UserManager userManager) {
+        this.leaderHost = leaderHost;
+        this.leaderPort = leaderPort;
+        this.applier = new ReplicationApplier(emailManager, userManager);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::followLeader, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the entry with the sequence number has been applied.
+     * Returns {@code false} if it was not applied within the timeout.
+     */
+    public boolean awaitSequence(long sequence, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (appliedSequence < sequence) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+
+    @Override
+    public String getRole() {
+        return "FOLLOWER";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    @Override
+    public long getLeaderSequence() {
+        return leaderSequence;
+    }
+
+    /**
+     * Time since the leader logged the last applied entry while entries are pending, otherwise 0.
+     * Before the first entry is applied there is no such time and the lag is -1.
+     */
+    @Override
+    public long getLagMillis() {
+        if (appliedSequence >= leaderSequence) {
+            return 0;
+        }
+        long applied = appliedTimestamp;
+        if (applied == 0) {
+            return -1;
+        }
+        return Math.max(0, System.currentTimeMillis() - applied);
+    }
+
+    public long getLagEntries() {
+        return Math.max(0, leaderSequence - appliedSequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    private void followLeader() {
+        while (running) {
+            try (Socket connection = new Socket(leaderHost, leaderPort);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), true)) {
+
+                socket = connection;
+                out.println(ReplicationLeader.FOLLOW + DELIMITER + (appliedSequence + 1));
+                log.info("Following leader {}:{} from sequence {}", leaderHost, leaderPort, appliedSequence + 1);
+
+                String entry;
+                while ((entry = in.readLine()) != null) {
+                    apply(entry);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Lost connection to replication leader {}:{}: {}", leaderHost, leaderPort, e.getMessage());
+                }
+            } catch (RuntimeException e) {
+//                The local state can no longer be trusted to match the leader's.
+                log.error("Replication stopped at sequence {}: ", appliedSequence, e);
+                running = false;
+            }
+            if (running) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(String entry) {
+        String[] parts = entry.split(DELIMITER, -1);
+        if (parts[0].equals(ReplicationLeader.HEARTBEAT)) {
+            leaderSequence = Math.max(leaderSequence, Long.parseLong(parts[1]));
+            return;
+        }
+        if (parts[0].equals(ReplicationLeader.RESYNC)) {
+            throw new IllegalStateException("Leader log ends at sequence " + parts[1] + ", behind the applied sequence "
+                    + appliedSequence + "; restart the follower with empty state to resync");
+        }
+
+        long sequence = Long.parseLong(parts[0]);
+        if (sequence != appliedSequence + 1) {
+            throw new IllegalStateException("Replication log gap: expected " + (appliedSequence + 1) + ", got " + sequence);
+        }
+
+        applier.apply(parts);
+
+        appliedTimestamp = Long.parseLong(parts[1]);
+        leaderSequence = Math.max(leaderSequence, sequence);
+        appliedSequence = sequence;
+    }
+}
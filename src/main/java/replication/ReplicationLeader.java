@@ -0,0 +1,237 @@
+package replication;
+
+import lombok.extern.slf4j.Slf4j;
+import model.email.ExportedEmail;
+import model.email.MailboxListener;
+import model.email.SearchType;
+import model.user.UserListener;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static service.EmailUtils.ANY;
+import static service.EmailUtils.DELIMITER;
+import static service.EmailUtils.encodeExportedEmail;
+import static service.EmailUtils.encodeField;
+import static service.EmailUtils.LIST_DELIMITER;
+
+/**
+ * Records the mutations of the local managers in a {@link ReplicationLog} and streams the log
+ * to followers connecting over TCP.
+ * <p>
+ * A follower sends {@code FOLLOW%%nextSequence} and then receives every entry from that sequence on,
+ * one per line. A follower that is ahead of the log, for example because the log file was replaced,
+ * gets {@code RESYNC%%lastSequence} and is disconnected. While the log is idle the leader sends {@code HEARTBEAT%%lastSequence%%timestampMillis}
+ * once per {@value #HEARTBEAT_MILLIS} ms so followers can tell how far behind they are.
+ */
+@Slf4j
+public class ReplicationLeader implements MailboxListener, UserListener, ReplicationMetrics, Closeable {
+
+    public static final String FOLLOW = "FOLLOW";
+    public static final String HEARTBEAT = "HEARTBEAT";
+    public static final String RESYNC = "RESYNC";
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private final ReplicationLog replicationLog;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+
+    public ReplicationLeader(ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+    /**
+     * Starts accepting followers on the port, 0 for any free port.
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Replication leader listening on port {}", serverSocket.getLocalPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+
+    @Override
+    public void userRegistered(String username, String passwordHash) {
+        replicationLog.append(ReplicationLog.REGISTER, username, passwordHash);
+    }
+
+    @Override
+    public void userRemoved(String username) {
+        replicationLog.append(ReplicationLog.UNREGISTER, username);
+    }
+
+    @Override
+    public void emailDelivered(int emailId, int threadId, String senderUsername, String recipientUsername,
+                               String subject, String body, long sentAtMillis) {
+        replicationLog.append(ReplicationLog.SEND,
+                String.valueOf(emailId),
+                String.valueOf(threadId),
+                senderUsername,
+                recipientUsername,
+                encodeField(subject),
+                encodeField(body),
+                String.valueOf(sentAtMillis));
+    }
+
+    @Override
+    public void sentRecorded(int emailId, int threadId, String senderUsername, String recipientUsername,
+                             String subject, String body, long sentAtMillis) {
+        replicationLog.append(ReplicationLog.SENT,
+                String.valueOf(emailId),
+                String.valueOf(threadId),
+                senderUsername,
+                recipientUsername,
+                encodeField(subject),
+                encodeField(body),
+                String.valueOf(sentAtMillis));
+    }
+
+    @Override
+    public void mailboxImported(String userName, List<ExportedEmail> emails) {
+        String encoded = emails.isEmpty() ? ANY : emails.stream()
+                .map(email -> encodeField(encodeExportedEmail(email)))
+                .collect(Collectors.joining(LIST_DELIMITER));
+        replicationLog.append(ReplicationLog.IMPORT, userName, encoded);
+    }
+
+    @Override
+    public void mailboxRemoved(String userName) {
+        replicationLog.append(ReplicationLog.DROP, userName);
+    }
+
+    @Override
+    public void emailsRead(String userName, int[] emailIds) {
+        replicationLog.append(ReplicationLog.READ, userName, joinIds(emailIds));
+    }
+
+    @Override
+    public void labelsChanged(String userName, SearchType type, String label, int[] emailIds, boolean added) {
+        replicationLog.append(added ? ReplicationLog.LABEL : ReplicationLog.UNLABEL,
+                userName, type.name(), encodeField(label), joinIds(emailIds));
+    }
+
+
+    @Override
+    public String getRole() {
+        return "LEADER";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public long getAppliedSequence() {
+        return replicationLog.lastSequence();
+    }
+
+    @Override
+    public long getLeaderSequence() {
+        return replicationLog.lastSequence();
+    }
+
+    @Override
+    public long getLagMillis() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Socket follower : followers) {
+            follower.close();
+        }
+    }
+
+
+    private void acceptFollowers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket follower = serverSocket.accept();
+                Thread sender = new Thread(() -> stream(follower), "replication-sender-" + follower.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("Error accepting replication follower: ", e);
+                }
+            }
+        }
+    }
+
+    private void stream(Socket follower) {
+        followers.add(follower);
+        try (follower;
+             BufferedReader in = new BufferedReader(new InputStreamReader(follower.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(follower.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            String[] handshake = String.valueOf(in.readLine()).split(DELIMITER);
+            if (handshake.length != 2 || !handshake[0].equals(FOLLOW)) {
+                log.error("Invalid replication handshake from {}", follower.getRemoteSocketAddress());
+                return;
+            }
+            long fromSequence = Long.parseLong(handshake[1]);
+            log.info("Follower {} connected from sequence {}", follower.getRemoteSocketAddress(), fromSequence);
+            long flushedSequence = replicationLog.flushedSequence();
+            if (fromSequence - 1 > flushedSequence) {
+                log.error("Follower {} is ahead of the log at sequence {}, asking it to resync",
+                        follower.getRemoteSocketAddress(), flushedSequence);
+                out.write(RESYNC + DELIMITER + flushedSequence);
+                out.newLine();
+                out.flush();
+                return;
+            }
+
+            try (ReplicationLog.Cursor cursor = replicationLog.openCursor(fromSequence)) {
+                while (!follower.isClosed()) {
+//                    Flush only when caught up, so a backlog is sent in large writes.
+                    String entry = cursor.next(0);
+                    if (entry == null) {
+                        out.flush();
+                        entry = cursor.next(HEARTBEAT_MILLIS);
+                    }
+                    if (entry == null) {
+                        entry = HEARTBEAT + DELIMITER + replicationLog.flushedSequence() + DELIMITER + System.currentTimeMillis();
+                    }
+                    out.write(entry);
+                    out.newLine();
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Replication to {} stopped: {}", follower.getRemoteSocketAddress(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+        }
+    }
+
+    static String joinIds(int[] emailIds) {
+        return Arrays.stream(emailIds).mapToObj(String::valueOf).collect(Collectors.joining(LIST_DELIMITER));
+    }
+}
@@ -0,0 +1,306 @@
+package replication;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static service.EmailUtils.DELIMITER;
+
+/**
+ * Ordered log of the mutations applied by a leader, one line per entry:
+ * {@code sequence%%timestampMillis%%TYPE%%fields...}. Sequences start at 1 and have no gaps.
+ * <p>
+ * Entries are appended to a file rather than kept in memory, so a follower joining late
+ * replays the whole history from disk. Free text fields are Base64 encoded so they can
+ * never contain the delimiter or a line break.
+ * <p>
+ * Appending only assigns the sequence and queues the line. A dedicated writer thread writes the
+ * queued lines and flushes once per batch, and cursors only see entries once they are flushed,
+ * so callers on the mailbox shard threads never wait for file I/O.
+ */
+@Slf4j
+public class ReplicationLog implements Closeable {
+
+    public static final String REGISTER = "REGISTER";
+    public static final String SEND = "SEND";
+    public static final String READ = "READ";
+    public static final String LABEL = "LABEL";
+    public static final String UNLABEL = "UNLABEL";
+    public static final String SENT = "SENT";
+    public static final String IMPORT = "IMPORT";
+    public static final String DROP = "DROP";
+    public static final String UNREGISTER = "UNREGISTER";
+
+    private final Path path;
+    private final BufferedWriter writer;
+    private final Thread writerThread;
+
+    /**
+     * Guards the queue of appended lines; the log's own monitor guards the flushed position.
+     */
+    private final Object queueLock = new Object();
+    private List<String> queued = new ArrayList<>();
+    private long lastSequence;
+    private long lastTimestamp;
+    private boolean closed;
+    private volatile IOException failure;
+
+    private long flushedSequence;
+
+    /**
+     * Opens the log in the file, continuing after its last complete entry. A partly written
+     * last line, left by a crash, is cut off.
+     */
+    public ReplicationLog(Path path) throws IOException {
+        this.path = path;
+        recover();
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writerThread = new Thread(this::writeQueued, "replication-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Log in a temporary file deleted on exit.
+     */
+    public static ReplicationLog temporary() {
+        try {
+            Path path = Files.createTempFile("replication-", ".log");
+            path.toFile().deleteOnExit();
+            return new ReplicationLog(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create replication log", e);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Queues an entry and returns its sequence number.
+     *
+     * @throws UncheckedIOException if writing an earlier entry failed
+     */
+    public long append(String type, String... fields) {
+        IOException writeFailure = failure;
+        if (writeFailure != null) {
+            throw new UncheckedIOException("Cannot append to replication log " + path, writeFailure);
+        }
+        synchronized (queueLock) {
+            if (closed) {
+                throw new IllegalStateException("Replication log is closed: " + path);
+            }
+            long sequence = lastSequence + 1;
+            long timestamp = System.currentTimeMillis();
+            StringBuilder line = new StringBuilder()
+                    .append(sequence).append(DELIMITER)
+                    .append(timestamp).append(DELIMITER)
+                    .append(type);
+            for (String field : fields) {
+                line.append(DELIMITER).append(field);
+            }
+            queued.add(line.toString());
+            lastSequence = sequence;
+            lastTimestamp = timestamp;
+            queueLock.notify();
+            return sequence;
+        }
+    }
+
+    /**
+     * Sequence of the last appended entry, which may not be flushed yet.
+     */
+    public long lastSequence() {
+        synchronized (queueLock) {
+            return lastSequence;
+        }
+    }
+
+    public long lastTimestamp() {
+        synchronized (queueLock) {
+            return lastTimestamp;
+        }
+    }
+
+    /**
+     * Sequence of the last entry written to the file and visible to cursors.
+     */
+    public synchronized long flushedSequence() {
+        return flushedSequence;
+    }
+
+    /**
+     * Opens a cursor positioned at the entry with the sequence number.
+     *
+     * @throws IllegalArgumentException if the log has fewer than {@code fromSequence - 1} flushed entries
+     */
+    public Cursor openCursor(long fromSequence) throws IOException {
+        if (fromSequence < 1 || fromSequence - 1 > flushedSequence()) {
+            throw new IllegalArgumentException("Sequence " + fromSequence + " is beyond the end of the log");
+        }
+        Cursor cursor = new Cursor(Files.newBufferedReader(path, StandardCharsets.UTF_8));
+//        Every skipped entry is already in the file, see the check above.
+        while (cursor.nextSequence < fromSequence) {
+            cursor.reader.readLine();
+            cursor.nextSequence++;
+        }
+        return cursor;
+    }
+
+    /**
+     * Writes the queued entries and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queueLock) {
+            closed = true;
+            queueLock.notify();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+
+    private void writeQueued() {
+        while (true) {
+            List<String> batch;
+            long batchSequence;
+            synchronized (queueLock) {
+                while (queued.isEmpty() && !closed) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (queued.isEmpty()) {
+                    return;
+                }
+                batch = queued;
+                queued = new ArrayList<>();
+                batchSequence = lastSequence;
+            }
+            try {
+                for (String line : batch) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+                writer.flush();
+            } catch (IOException e) {
+                log.error("Cannot write to replication log {}, entries after {} are lost: ", path, flushedSequence(), e);
+                failure = e;
+                return;
+            }
+            synchronized (this) {
+                flushedSequence = batchSequence;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Finds the last complete entry of an existing file and cuts off anything after it.
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        long validBytes = 0;
+        long position = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next;
+            while ((next = in.read()) >= 0) {
+                position++;
+                if (next != '\n') {
+                    line.write(next);
+                    continue;
+                }
+                String[] fields = line.toString(StandardCharsets.UTF_8).split(DELIMITER, 3);
+                line.reset();
+                long sequence;
+                try {
+                    sequence = Long.parseLong(fields[0]);
+                    lastTimestamp = Long.parseLong(fields[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    break;
+                }
+                if (sequence != flushedSequence + 1) {
+                    throw new IOException("Replication log " + path + " has a gap after sequence " + flushedSequence);
+                }
+                flushedSequence = sequence;
+                validBytes = position;
+            }
+        }
+        if (validBytes < Files.size(path)) {
+            log.warn("Cutting off {} bytes after sequence {} in replication log {}", Files.size(path) - validBytes, flushedSequence, path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+        lastSequence = flushedSequence;
+        if (flushedSequence > 0) {
+            log.info("Recovered replication log {} up to sequence {}", path, flushedSequence);
+        }
+    }
+
+    /**
+     * Sequential reader of the log, used by one thread.
+     */
+    public final class Cursor implements Closeable {
+
+        private final BufferedReader reader;
+        private long nextSequence = 1;
+
+        private Cursor(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Returns the next entry, waiting up to the timeout for it to be flushed,
+         * or {@code null} if there is none yet. A timeout of 0 does not wait.
+         */
+        public String next(long timeoutMillis) throws IOException, InterruptedException {
+            synchronized (ReplicationLog.this) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                while (flushedSequence < nextSequence) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    ReplicationLog.this.wait(remaining);
+                }
+            }
+//            The entry was flushed before flushedSequence was advanced, so the whole line is in the file.
+            String line = reader.readLine();
+            nextSequence++;
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
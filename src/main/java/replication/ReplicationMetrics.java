@@ -0,0 +1,32 @@
+package replication;
+
+/**
+ * Replication state of a server, reported by {@code REPLICATION_STATUS}.
+ */
+public interface ReplicationMetrics {
+
+    /**
+     * {@code LEADER} or {@code FOLLOWER}.
+     */
+    String getRole();
+
+    /**
+     * Whether the server rejects mutating requests.
+     */
+    boolean isReadOnly();
+
+    /**
+     * Sequence number of the last entry applied locally; on the leader, the last entry logged.
+     */
+    long getAppliedSequence();
+
+    /**
+     * Last sequence number known to exist on the leader.
+     */
+    long getLeaderSequence();
+
+    /**
+     * How far behind the leader the local state is, 0 when caught up and -1 while it is not known yet.
+     */
+    long getLagMillis();
+}
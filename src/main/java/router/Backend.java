@@ -0,0 +1,23 @@
+package router;
+
+/**
+ * Address of a backend {@code EmailServer} node.
+ */
+public record Backend(String host, int port) {
+
+    /**
+     * Parses {@code host:port}.
+     */
+    public static Backend parse(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got: " + address);
+        }
+        return new Backend(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
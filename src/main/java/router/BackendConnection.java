@@ -0,0 +1,50 @@
+package router;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connection to a backend speaking the line based {@code EmailUtils} protocol.
+ */
+final class BackendConnection implements Closeable {
+
+    private final Backend backend;
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    BackendConnection(Backend backend) throws IOException {
+        this.backend = backend;
+        this.socket = new Socket(backend.host(), backend.port());
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    Backend backend() {
+        return backend;
+    }
+
+    /**
+     * Sends one request line and returns the response line.
+     */
+    String request(String line) throws IOException {
+        out.println(line);
+        out.flush();
+        String response = in.readLine();
+        if (response == null) {
+            throw new IOException("Backend " + backend + " closed the connection");
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,450 @@
+package router;
+
+import lombok.extern.slf4j.Slf4j;
+import service.EmailUtils;
+import service.ResponseStatus;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Front-end speaking the {@link EmailUtils} protocol that spreads users over several {@code EmailServer} nodes.
+ * <p>
+ * Each user lives on the node a {@link ConsistentHashRing} assigns to the username. A client session is
+ * forwarded over one backend connection to the node of the user who registered or logged in on it.
+ * A {@code SEND_EMAIL} to a user on another node is relayed: {@code DELIVER} on the recipient's node,
+ * then {@code RECORD_SENT} on the sender's, retried when the connection fails. Relay requests use pooled connections and carry the secret
+ * from the {@code email.relay.secret} system property, which the nodes must share. Nodes should also get
+ * distinct {@code email.node.index} values so email ids stay unique when users move.
+ * <p>
+ * {@code ADD_NODE%%secret%%host:port} adds a node and moves the users it now owns from the other nodes.
+ * Routing is paused while users move; sessions of moved users have to log in again.
+ */
+@Slf4j
+public class RoutingProxy implements Closeable {
+
+    private static final int MAX_IDLE_RELAY_CONNECTIONS = 8;
+    private static final int RECORD_SENT_ATTEMPTS = 3;
+
+    private final ConsistentHashRing<Backend> ring = new ConsistentHashRing<>();
+    private final String relaySecret;
+    private final Map<Backend, BlockingQueue<BackendConnection>> relayConnections = new ConcurrentHashMap<>();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Requests hold the read lock while they are routed and forwarded; moving users takes the write lock.
+     */
+    private final ReentrantReadWriteLock routingLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService sessions = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "proxy-session");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+
+    public RoutingProxy(List<Backend> backends, String relaySecret) {
+        if (relaySecret == null || relaySecret.isEmpty()) {
+            throw new IllegalArgumentException("A relay secret is required");
+        }
+        this.relaySecret = relaySecret;
+        backends.forEach(ring::addNode);
+    }
+
+    /**
+     * Starts accepting clients on the port, 0 for any free port.
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptClients, "proxy-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Routing proxy listening on port {} for nodes {}", serverSocket.getLocalPort(), ring.nodes());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public Backend nodeFor(String username) {
+        return ring.nodeFor(username);
+    }
+
+    /**
+     * Moves the users the node owns once it joins to it, then adds the node to the ring.
+     * Returns the number of moved users. On a failure the users moved so far are moved back
+     * and the node is not added, so every user stays routed to the node that has it.
+     */
+    public int addNode(Backend node) throws IOException {
+        routingLock.writeLock().lock();
+        try {
+            Set<Backend> existing = ring.nodes();
+            if (existing.contains(node)) {
+                return 0;
+            }
+            ConsistentHashRing<Backend> grown = new ConsistentHashRing<>();
+            existing.forEach(grown::addNode);
+            grown.addNode(node);
+
+            Map<String, Backend> moved = new LinkedHashMap<>();
+            try {
+                for (Backend source : existing) {
+                    String[] response = relay(source, EmailUtils.LIST_USERS + EmailUtils.DELIMITER + relaySecret).split(EmailUtils.DELIMITER);
+                    if (!response[0].equals(ResponseStatus.SUCCESS.toString())) {
+                        throw new IOException("Cannot list users of " + source + ": " + response[0]);
+                    }
+                    if (response.length < 2) {
+                        continue;
+                    }
+                    for (String username : response[1].split(EmailUtils.LIST_DELIMITER)) {
+                        if (node.equals(grown.nodeFor(username))) {
+                            moveUser(username, source, node);
+                            moved.put(username, source);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Node {} could not join, moving {} users back: {}", node, moved.size(), e.getMessage());
+                moveBack(moved, node);
+                throw e;
+            }
+            ring.addNode(node);
+            log.info("Node {} joined, moved {} users to it", node, moved.size());
+            return moved.size();
+        } finally {
+            routingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Socket client : clients) {
+            client.close();
+        }
+        sessions.shutdownNow();
+        for (BlockingQueue<BackendConnection> pool : relayConnections.values()) {
+            for (BackendConnection connection : pool) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a proxy: {@code --port <port> --nodes <host:port,host:port,...>}.
+     * The relay secret is read from the {@code email.relay.secret} system property.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = EmailUtils.PORT;
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[i + 1]);
+                case "--nodes" -> {
+                    for (String address : args[i + 1].split(EmailUtils.LIST_DELIMITER)) {
+                        backends.add(Backend.parse(address));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        RoutingProxy proxy = new RoutingProxy(backends, System.getProperty("email.relay.secret"));
+        proxy.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                proxy.close();
+            } catch (IOException e) {
+                log.error("Error closing routing proxy: ", e);
+            }
+        }));
+    }
+
+
+    private void acceptClients() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                sessions.submit(new Session(client));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("Error accepting proxy client: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns users moved to the node to the nodes they came from, logging the ones that cannot be.
+     */
+    private void moveBack(Map<String, Backend> moved, Backend node) {
+        moved.forEach((username, source) -> {
+            try {
+                moveUser(username, node, source);
+            } catch (IOException e) {
+                log.error("User {} is stranded on {}, it could not be moved back to {}: {}", username, node, source, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Copies the user to the target and drops it from the source. If the source refuses the drop,
+     * the copy is dropped again so the user stays only on the source.
+     */
+    private void moveUser(String username, Backend source, Backend target) throws IOException {
+        String export = relay(source, EmailUtils.EXPORT_USER + EmailUtils.DELIMITER + relaySecret + EmailUtils.DELIMITER + username);
+        String prefix = ResponseStatus.SUCCESS + EmailUtils.DELIMITER;
+        if (!export.startsWith(prefix)) {
+            throw new IOException("Cannot export user " + username + " from " + source + ": " + export);
+        }
+        String imported = relay(target, EmailUtils.IMPORT_USER + EmailUtils.DELIMITER + relaySecret
+                + EmailUtils.DELIMITER + username + EmailUtils.DELIMITER + export.substring(prefix.length()));
+        if (!imported.equals(ResponseStatus.SUCCESS.toString())) {
+            throw new IOException("Cannot import user " + username + " to " + target + ": " + imported);
+        }
+        String dropUser = EmailUtils.DROP_USER + EmailUtils.DELIMITER + relaySecret + EmailUtils.DELIMITER + username;
+        String dropped;
+        try {
+            dropped = relay(source, dropUser);
+        } catch (IOException e) {
+//            The drop may have been applied before the connection failed; repeated, it then finds no user.
+            try {
+                dropped = relay(source, dropUser);
+            } catch (IOException retryFailure) {
+                log.error("User {} may be on both {} and {}, its drop could not be confirmed", username, source, target);
+                throw retryFailure;
+            }
+            if (dropped.equals(ResponseStatus.USER_NOT_FOUND.toString())) {
+                dropped = ResponseStatus.SUCCESS.toString();
+            }
+        }
+        if (!dropped.equals(ResponseStatus.SUCCESS.toString())) {
+            String undone;
+            try {
+                undone = relay(target, dropUser);
+            } catch (IOException e) {
+                undone = e.getMessage();
+            }
+            if (!undone.equals(ResponseStatus.SUCCESS.toString())) {
+                log.error("User {} is on both {} and {}, dropping the copy failed: {}", username, source, target, undone);
+            }
+            throw new IOException("Cannot drop user " + username + " from " + source + ": " + dropped);
+        }
+        log.debug("Moved user {} from {} to {}", username, source, target);
+    }
+
+    /**
+     * Sends a request over a pooled relay connection to the node.
+     */
+    private String relay(Backend node, String request) throws IOException {
+        BlockingQueue<BackendConnection> pool = relayConnections.computeIfAbsent(node, key -> new ArrayBlockingQueue<>(MAX_IDLE_RELAY_CONNECTIONS));
+        BackendConnection connection = pool.poll();
+        if (connection == null) {
+            connection = new BackendConnection(node);
+        }
+        try {
+            String response = connection.request(request);
+            if (!pool.offer(connection)) {
+                connection.close();
+            }
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * One client connection and the backend connection of the user logged in on it.
+     */
+    private final class Session implements Runnable {
+
+        private final Socket client;
+        private BackendConnection backend;
+        private String username;
+
+        private Session(Socket client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            clients.add(client);
+            try (client;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+
+                String request;
+                while ((request = in.readLine()) != null) {
+                    out.println(handle(request));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.debug("Proxy session ended: {}", e.getMessage());
+            } finally {
+                clients.remove(client);
+                disconnectBackend();
+            }
+        }
+
+        private String handle(String request) throws IOException {
+            String[] requestParts = request.split(EmailUtils.DELIMITER);
+
+//            Adding a node moves users, which needs the write lock, so it runs outside the read lock.
+            if (requestParts[0].equals(EmailUtils.ADD_NODE)) {
+                return handleAddNode(requestParts);
+            }
+
+            routingLock.readLock().lock();
+            try {
+                return route(request, requestParts);
+            } finally {
+                routingLock.readLock().unlock();
+            }
+        }
+
+        private String route(String request, String[] requestParts) throws IOException {
+            switch (requestParts[0]) {
+                case EmailUtils.REGISTER:
+                case EmailUtils.LOGIN:
+                case EmailUtils.RESUME:
+                    if (requestParts.length < 2) {
+                        return ResponseStatus.INVALID.toString();
+                    }
+                    connectBackend(ring.nodeFor(requestParts[1]));
+                    String response = backend.request(request);
+                    username = response.startsWith(ResponseStatus.SUCCESS.toString()) ? requestParts[1] : null;
+                    return response;
+
+                case EmailUtils.SEND_EMAIL:
+                    if (!isLoggedIn()) {
+                        return ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                    }
+                    Backend recipientNode = requestParts.length > 1 ? ring.nodeFor(requestParts[1]) : null;
+                    if (recipientNode == null || recipientNode.equals(backend.backend())) {
+                        return backend.request(request);
+                    }
+                    return relaySend(requestParts, recipientNode);
+
+                default:
+                    if (backend == null) {
+                        return ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                    }
+                    if (username != null && !isLoggedIn()) {
+                        return ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                    }
+                    response = backend.request(request);
+                    if (requestParts[0].equals(EmailUtils.LOGOUT)) {
+                        username = null;
+                    }
+                    return response;
+            }
+        }
+
+        /**
+         * Delivers on the recipient's node first, so a failed delivery leaves nothing in the sender's sent list.
+         * If the email is delivered but cannot be recorded as sent, the client gets {@link ResponseStatus#SENT_NOT_RECORDED}.
+         */
+        private String relaySend(String[] requestParts, Backend recipientNode) throws IOException {
+            if (requestParts.length != 4 && requestParts.length != 5) {
+                return ResponseStatus.INVALID.toString();
+            }
+            String subject = EmailUtils.encodeField(requestParts[2]);
+            String body = EmailUtils.encodeField(requestParts[3]);
+            String inReplyTo = requestParts.length == 5 ? EmailUtils.DELIMITER + requestParts[4] : "";
+
+            String delivered = relay(recipientNode, String.join(EmailUtils.DELIMITER,
+                    EmailUtils.DELIVER, relaySecret, username, requestParts[1], subject, body) + inReplyTo);
+            String[] receipt = delivered.split(EmailUtils.DELIMITER);
+            if (!receipt[0].equals(ResponseStatus.SUCCESS.toString())) {
+                return receipt[0];
+            }
+
+            String recordSent = String.join(EmailUtils.DELIMITER,
+                    EmailUtils.RECORD_SENT, relaySecret, receipt[1], username, requestParts[1], subject, body, receipt[2]) + inReplyTo;
+            String recorded;
+//            Recording the same email again is a no-op on the node, so a lost response can be retried.
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    recorded = relay(backend.backend(), recordSent);
+                    break;
+                } catch (IOException e) {
+                    if (attempt == RECORD_SENT_ATTEMPTS) {
+                        recorded = e.getMessage();
+                        break;
+                    }
+                    log.warn("Retrying to record email {} as sent by {}: {}", receipt[1], username, e.getMessage());
+                }
+            }
+            if (!recorded.equals(ResponseStatus.SUCCESS.toString())) {
+                log.error("Email {} was delivered to {} but not recorded as sent by {}: {}", receipt[1], requestParts[1], username, recorded);
+                return ResponseStatus.SENT_NOT_RECORDED.toString();
+            }
+            return ResponseStatus.SUCCESS.toString();
+        }
+
+        private String handleAddNode(String[] requestParts) throws IOException {
+            if (requestParts.length != 3
+                    || !MessageDigest.isEqual(relaySecret.getBytes(StandardCharsets.UTF_8), requestParts[1].getBytes(StandardCharsets.UTF_8))) {
+                return ResponseStatus.INVALID.toString();
+            }
+            return ResponseStatus.SUCCESS + EmailUtils.DELIMITER + addNode(Backend.parse(requestParts[2]));
+        }
+
+        /**
+         * Whether a user is logged in and still lives on the session's node; drops the session's login if the user moved.
+         */
+        private boolean isLoggedIn() {
+            if (username == null || backend == null) {
+                return false;
+            }
+            if (!backend.backend().equals(ring.nodeFor(username))) {
+                log.info("User {} moved to another node, session has to log in again", username);
+                disconnectBackend();
+                username = null;
+                return false;
+            }
+            return true;
+        }
+
+        private void connectBackend(Backend node) throws IOException {
+            if (backend != null && backend.backend().equals(node)) {
+                return;
+            }
+            disconnectBackend();
+            backend = new BackendConnection(node);
+        }
+
+        private void disconnectBackend() {
+            if (backend != null) {
+                try {
+                    backend.close();
+                } catch (IOException e) {
+                    log.debug("Error closing backend connection: {}", e.getMessage());
+                }
+                backend = null;
+            }
+        }
+    }
+}
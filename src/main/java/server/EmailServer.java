@@ -1,19 +1,34 @@
 package server;
 
 import lombok.extern.slf4j.Slf4j;
-import model.email.EmailManager;
+import metrics.AccessLog;
+import metrics.InstrumentedThreadPoolExecutor;
+import metrics.JmxExporter;
+import metrics.MetricsRegistry;
+import metrics.SlowRequestTracker;
+import model.email.DedupBodyStore;
 import model.email.EmailManagerImpl;
-import model.user.UserManager;
+import model.user.LoginRateLimiter;
+import model.user.PasswordHasher;
 import model.user.UserManagerImpl;
+import model.user.UserStore;
+import replication.ReplicationApplier;
+import replication.ReplicationFollower;
+import replication.ReplicationLeader;
+import replication.ReplicationLog;
+import replication.ReplicationMetrics;
 import service.EmailUtils;
 import service.ServiceClientHandler;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
@@ -23,34 +38,65 @@ public class EmailServer {
     private static final int MAX_POOL_SIZE = 10;
     private static final long KEEP_ALIVE_TIME = 30L;
     private static final int QUEUE_CAPACITY = 50;
-
-
+    private static final long METRICS_DUMP_INTERVAL_SECONDS = Long.getLong("metrics.dump.intervalSeconds", 60L);
+    private static final String RELAY_SECRET = System.getProperty("email.relay.secret");
+
+
+    /**
+     * Starts the server. Without arguments it runs standalone on {@link EmailUtils#PORT}.
+     * <ul>
+     *     <li>{@code --port <port>} listens for clients on another port</li>
+     *     <li>{@code --replication-port <port>} runs as replication leader, serving followers on the port</li>
+     *     <li>{@code --replication-log <file>} keeps the leader's log in the file instead of a temporary one;
+     *     a restarted leader replays the file and continues it</li>
+     *     <li>{@code --follow <host:port>} runs as read-only follower of the leader's replication port</li>
+     *     <li>{@code --user-store <file>} keeps registered users in the file and loads them at startup</li>
+     *     <li>{@code --import-users <csv>} registers the users of a {@code username,password} file before accepting clients</li>
+     * </ul>
+     * Relay requests from a routing proxy are accepted only when the {@code email.relay.secret} system property is set.
+     */
     public static void main(String[] args) {
 
+        Map<String, String> options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            return;
+        }
+        int port = Integer.parseInt(options.getOrDefault("--port", String.valueOf(EmailUtils.PORT)));
 
 
-        ExecutorService clientHandlerPool = new ThreadPoolExecutor(
+        InstrumentedThreadPoolExecutor clientHandlerPool = new InstrumentedThreadPoolExecutor(
+                "clientHandlers",
                 CORE_POOL_SIZE,
                 MAX_POOL_SIZE,
                 KEEP_ALIVE_TIME,
                 TimeUnit.SECONDS,
-                new ArrayBlockingQueue<>(QUEUE_CAPACITY)
+                QUEUE_CAPACITY
         );
 
-        try (ServerSocket connectionSocket = new ServerSocket(EmailUtils.PORT)
+        try (ServerSocket connectionSocket = new ServerSocket(port)
 
         ) {
-            log.info("Server started on port " + EmailUtils.PORT);
+            log.info("Server started on port " + port);
 
 
-            EmailManager emailManager = new EmailManagerImpl();
-            UserManager userManager = new UserManagerImpl();
+            UserManagerImpl userManager = new UserManagerImpl();
+            EmailManagerImpl emailManager = new EmailManagerImpl(userManager.getUserIds());
+            ReplicationMetrics replication = initialize(options, userManager, emailManager);
+            startMetrics(userManager, emailManager, replication, clientHandlerPool);
 
             boolean validServerSession = true;
             while(validServerSession){
                 Socket clientDataSocket = connectionSocket.accept();
-                ServiceClientHandler clientHandler = new ServiceClientHandler(clientDataSocket, emailManager, userManager);
-                clientHandlerPool.submit(clientHandler);
+                ServiceClientHandler clientHandler = new ServiceClientHandler(clientDataSocket, emailManager, userManager, replication, RELAY_SECRET);
+                try {
+                    clientHandlerPool.execute(clientHandler);
+                } catch (RejectedExecutionException e) {
+                    log.warn("Rejecting connection from {}: {}", clientDataSocket.getRemoteSocketAddress(), e.getMessage());
+                    clientDataSocket.close();
+                }
             }
 
         } catch (IOException e) {
@@ -60,4 +106,114 @@ public class EmailServer {
         }
     }
 
+    /**
+     * Loads the users and starts the leader or follower side of replication if requested,
+     * returns {@code null} when standalone.
+     * <p>
+     * A leader records its mutations before the users are loaded, so users from {@code --user-store}
+     * and {@code --import-users} are logged as registrations and reach the followers.
+     */
+    public static ReplicationMetrics initialize(Map<String, String> options, UserManagerImpl userManager,
+                                                EmailManagerImpl emailManager) throws IOException {
+        if (options.containsKey("--follow")) {
+            loadUsers(options, userManager, emailManager);
+            String[] leader = options.get("--follow").split(":");
+            ReplicationFollower follower = new ReplicationFollower(leader[0], Integer.parseInt(leader[1]), emailManager, userManager);
+            follower.start();
+            return follower;
+        }
+        if (options.containsKey("--replication-port")) {
+            ReplicationLog replicationLog = options.containsKey("--replication-log")
+                    ? new ReplicationLog(Path.of(options.get("--replication-log")))
+                    : ReplicationLog.temporary();
+//            A restarted leader rebuilds its mailboxes from its log before it records new mutations.
+            if (replicationLog.flushedSequence() > 0) {
+                long replayed = new ReplicationApplier(emailManager, userManager).replay(replicationLog);
+                log.info("Replayed {} replication log entries", replayed);
+            }
+            ReplicationLeader leader = new ReplicationLeader(replicationLog);
+            userManager.setListener(leader);
+            emailManager.setListener(leader);
+            loadUsers(options, userManager, emailManager);
+            leader.start(Integer.parseInt(options.get("--replication-port")));
+            return leader;
+        }
+        loadUsers(options, userManager, emailManager);
+        return null;
+    }
+
+    /**
+     * Registers gauges for the client pool, connections, authentication, body deduplication and replication counters,
+     * publishes them through JMX and, unless {@code metrics.dump.intervalSeconds} is 0, logs all metrics periodically.
+     */
+    private static void startMetrics(UserManagerImpl userManager, EmailManagerImpl emailManager, ReplicationMetrics replication,
+                                     InstrumentedThreadPoolExecutor clientHandlerPool) {
+        MetricsRegistry metrics = MetricsRegistry.global();
+        clientHandlerPool.registerGauges(metrics);
+        metrics.getConnections().registerGauges(metrics);
+        AccessLog.global().registerGauges(metrics);
+        metrics.registerGauge("slowRequests.captured", SlowRequestTracker.global()::getCapturedCount);
+        JmxExporter.register("ThreadPool", clientHandlerPool.getName(), clientHandlerPool);
+        JmxExporter.register("Connections", "clients", metrics.getConnections());
+        JmxExporter.register("Metrics", "server", metrics);
+
+        PasswordHasher hasher = userManager.getPasswordHasher();
+        metrics.registerGauge("auth.hash.cost", hasher::getCost);
+        metrics.registerGauge("auth.hash.queueDepth", hasher::getQueueDepth);
+        metrics.registerGauge("auth.hash.completed", hasher::getCompletedCount);
+        metrics.registerGauge("auth.hash.rejected", hasher::getRejectedCount);
+        metrics.registerGauge("auth.hash.queuedMillis", () -> hasher.getQueuedNanos() / 1_000_000);
+        metrics.registerGauge("auth.hash.hashingMillis", () -> hasher.getHashingNanos() / 1_000_000);
+        LoginRateLimiter rateLimiter = userManager.getRateLimiter();
+        metrics.registerGauge("auth.rateLimit.allowed", rateLimiter::getAllowedCount);
+        metrics.registerGauge("auth.rateLimit.throttled", rateLimiter::getThrottledCount);
+        metrics.registerGauge("auth.rateLimit.trackedKeys", rateLimiter::getTrackedKeys);
+        metrics.registerGauge("auth.rateLimit.evicted", rateLimiter::getEvictedCount);
+        metrics.registerGauge("auth.sessions", userManager::getSessionCount);
+        metrics.registerGauge("users", () -> userManager.getUsernames().size());
+        if (emailManager.getBodyStore() instanceof DedupBodyStore dedup) {
+            metrics.registerGauge("bodies.dedup.hitRatioPercent", () -> Math.round(dedup.hitRatio() * 100));
+            metrics.registerGauge("bodies.dedup.bytesSaved", dedup::bytesSaved);
+            metrics.registerGauge("bodies.dedup.distinct", dedup::distinctBodies);
+        }
+        if (replication != null) {
+            metrics.registerGauge("replication.appliedSequence", replication::getAppliedSequence);
+            metrics.registerGauge("replication.leaderSequence", replication::getLeaderSequence);
+            metrics.registerGauge("replication.lagMillis", replication::getLagMillis);
+        }
+
+        if (METRICS_DUMP_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> log.info("Server metrics:\n{}", String.join("\n", metrics.render())),
+                    METRICS_DUMP_INTERVAL_SECONDS, METRICS_DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void loadUsers(Map<String, String> options, UserManagerImpl userManager,
+                                  EmailManagerImpl emailManager) throws IOException {
+        if (options.containsKey("--user-store")) {
+            userManager.attachStore(new UserStore(Path.of(options.get("--user-store"))));
+            emailManager.initializeMailboxes(userManager.getUsernames());
+            log.info("Password hash costs of stored users: {}", userManager.getCostDistribution());
+        }
+        if (options.containsKey("--import-users")) {
+            new UserImporter(userManager, emailManager).importCsv(Path.of(options.get("--import-users")));
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Invalid arguments, expected --option value pairs: " + String.join(" ", args));
+            }
+            options.put(args[i], args[i + 1]);
+        }
+        return options;
+    }
+
 }
@@ -0,0 +1,154 @@
+package server;
+
+import lombok.extern.slf4j.Slf4j;
+import model.email.EmailManager;
+import model.user.UserManagerImpl;
+import org.mindrot.jbcrypt.BCrypt;
+import service.EmailUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk import of users from a CSV file of {@code username,password} lines, an optional
+ * {@code username,password} header line included.
+ * <p>
+ * Passwords are hashed on a fork-join pool using every core, one batch at a time. While a batch
+ * is hashed the previous one is added to the user manager, persisted with a single write and
+ * given mailboxes with one hand-off per shard. Hashing here bypasses the login hashing queue,
+ * so an import never turns away interactive logins with {@code SERVER_BUSY}.
+ */
+@Slf4j
+public class UserImporter {
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int HASHES_PER_TASK = 16;
+
+    private final UserManagerImpl userManager;
+    private final EmailManager emailManager;
+    private final int batchSize;
+
+    public UserImporter(UserManagerImpl userManager, EmailManager emailManager) {
+        this(userManager, emailManager, DEFAULT_BATCH_SIZE);
+    }
+
+    public UserImporter(UserManagerImpl userManager, EmailManager emailManager, int batchSize) {
+        this.userManager = userManager;
+        this.emailManager = emailManager;
+        this.batchSize = batchSize;
+    }
+
+    public Result importCsv(Path csv) throws IOException {
+        long start = System.nanoTime();
+        List<String[]> rows = new ArrayList<>();
+        int invalid = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                boolean header = first && line.trim().equalsIgnoreCase("username,password");
+                first = false;
+                if (header || line.isBlank()) {
+                    continue;
+                }
+                String[] row = line.split(",", 2);
+                if (row.length != 2 || !isValid(row[0].trim(), row[1])) {
+                    invalid++;
+                    continue;
+                }
+                rows.add(new String[]{row[0].trim(), row[1]});
+            }
+        }
+        if (invalid > 0) {
+            log.warn("Skipping {} invalid lines in {}", invalid, csv);
+        }
+
+        int cost = userManager.getPasswordHasher().getCost();
+        int imported = 0;
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            String[] hashes = new String[rows.size()];
+            ForkJoinTask<Void> hashing = pool.submit(new HashTask(rows, hashes, 0, Math.min(batchSize, rows.size()), cost));
+            for (int from = 0; from < rows.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, rows.size());
+                hashing.join();
+                if (to < rows.size()) {
+                    hashing = pool.submit(new HashTask(rows, hashes, to, Math.min(to + batchSize, rows.size()), cost));
+                }
+
+                Map<String, String> batch = new LinkedHashMap<>();
+                for (int i = from; i < to; i++) {
+                    batch.putIfAbsent(rows.get(i)[0], hashes[i]);
+                    hashes[i] = null;
+                }
+                List<String> added = userManager.importUsers(batch);
+                emailManager.initializeMailboxes(added);
+                imported += added.size();
+
+                double seconds = (System.nanoTime() - start) / 1e9;
+                log.info("Imported {}/{} users ({} users/s)", to, rows.size(), Math.round(to / seconds));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        Result result = new Result(imported, rows.size() - imported, invalid, Duration.ofNanos(System.nanoTime() - start));
+        log.info("Import of {} finished: {} imported, {} already existed, {} invalid in {} ms",
+                csv, result.imported(), result.existing(), result.invalid(), result.elapsed().toMillis());
+        return result;
+    }
+
+    private static boolean isValid(String username, String password) {
+        return !username.isEmpty() && !password.isEmpty()
+                && !username.contains(EmailUtils.DELIMITER) && !username.contains(EmailUtils.EMAIL_DELIMITER);
+    }
+
+    /**
+     * Outcome of an import; {@code existing} counts users that were already registered.
+     */
+    public record Result(int imported, int existing, int invalid, Duration elapsed) {
+    }
+
+    /**
+     * Hashes the passwords of {@code rows[from, to)} into {@code hashes}, splitting until a task holds few enough to run directly.
+     */
+    private static final class HashTask extends RecursiveAction {
+
+        private final List<String[]> rows;
+        private final String[] hashes;
+        private final int from;
+        private final int to;
+        private final int cost;
+
+        private HashTask(List<String[]> rows, String[] hashes, int from, int to, int cost) {
+            this.rows = rows;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= HASHES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    hashes[i] = BCrypt.hashpw(rows.get(i)[1], BCrypt.gensalt(cost));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new HashTask(rows, hashes, from, middle, cost), new HashTask(rows, hashes, middle, to, cost));
+        }
+    }
+}
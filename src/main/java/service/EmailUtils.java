@@ -1,5 +1,14 @@
 package service;
 
+import model.email.ExportedEmail;
+import model.email.SearchType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class EmailUtils {
 
     public static final String HOSTNAME = "localhost";
@@ -8,16 +17,100 @@ public class EmailUtils {
     // REQUESTS
     public static final String REGISTER = "REGISTER";
     public static final String LOGIN = "LOGIN";
+    public static final String RESUME = "RESUME";
     public static final String SEND_EMAIL = "SEND_EMAIL";
     public static final String GET_RECEIVED_EMAILS = "GET_RECEIVED_EMAILS";
     public static final String GET_SENT_EMAILS = "GET_SENT_EMAILS";
     public static final String READ_EMAIL = "READ_EMAIL";
+    public static final String READ_EMAILS = "READ_EMAILS";
     public static final String SEARCH_EMAIL = "SEARCH_DETAILS";
+    public static final String MARK_READ = "MARK_READ";
+    public static final String LIST_THREADS = "LIST_THREADS";
+    public static final String LABEL = "LABEL";
+    public static final String UNLABEL = "UNLABEL";
+    public static final String FILTER_EMAILS = "FILTER_EMAILS";
+    public static final String REPLICATION_STATUS = "REPLICATION_STATUS";
+    public static final String STATS = "STATS";
+    public static final String SLOW_REQUESTS = "SLOW_REQUESTS";
     public static final String LOGOUT = "LOGOUT";
 
+    // RELAY REQUESTS (between servers, authenticated with the relay secret)
+    public static final String DELIVER = "DELIVER";
+    public static final String RECORD_SENT = "RECORD_SENT";
+    public static final String LIST_USERS = "LIST_USERS";
+    public static final String EXPORT_USER = "EXPORT_USER";
+    public static final String IMPORT_USER = "IMPORT_USER";
+    public static final String DROP_USER = "DROP_USER";
+    public static final String ADD_NODE = "ADD_NODE";
+
 
     // DELIMITERS
     public static final String DELIMITER = "%%";
     public static final String EMAIL_DELIMITER = "##";
+    public static final String LIST_DELIMITER = ",";
+    public static final String RANGE_DELIMITER = "-";
+
+    // ARGUMENTS
+    public static final String ALL = "ALL";
+    public static final String ANY = "*";
+    public static final String READ = "READ";
+    public static final String UNREAD = "UNREAD";
+    public static final String MARK = "MARK";
+    public static final String PEEK = "PEEK";
+
+    /**
+     * Encodes free text as Base64 so it can be sent as one field, whatever delimiters or line breaks it contains.
+     */
+    public static String encodeField(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String decodeField(String encoded) {
+        return new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes an exported email as {@code TYPE%%id%%sender%%recipient%%subject%%body%%sentAtMillis%%read%%labels},
+     * with Base64 subject, body and labels and {@code *} for no labels.
+     */
+    public static String encodeExportedEmail(ExportedEmail email) {
+        return String.join(DELIMITER,
+                (email.inbox() ? SearchType.RECEIVED : SearchType.SENT).name(),
+                String.valueOf(email.id()),
+                email.senderUsername(),
+                email.recipientUsername(),
+                encodeField(email.subject()),
+                encodeField(email.body()),
+                String.valueOf(email.sentAtMillis()),
+                String.valueOf(email.read()),
+                email.labels().isEmpty() ? ANY : email.labels().stream()
+                        .map(EmailUtils::encodeField)
+                        .collect(Collectors.joining(LIST_DELIMITER)));
+    }
+
+    /**
+     * Decodes an email encoded by {@link #encodeExportedEmail(ExportedEmail)}.
+     *
+     * @throws IllegalArgumentException if the text is not a valid encoding
+     */
+    public static ExportedEmail decodeExportedEmail(String encoded) {
+        String[] f = encoded.split(DELIMITER, -1);
+        if (f.length != 9) {
+            throw new IllegalArgumentException("Expected 9 exported email fields, got " + f.length);
+        }
+        return new ExportedEmail(
+                SearchType.valueOf(f[0]) == SearchType.RECEIVED,
+                Integer.parseInt(f[1]),
+                f[2],
+                f[3],
+                decodeField(f[4]),
+                decodeField(f[5]),
+                Long.parseLong(f[6]),
+                Boolean.parseBoolean(f[7]),
+                f[8].equals(ANY) ? Set.of() : Arrays.stream(f[8].split(LIST_DELIMITER))
+                        .map(EmailUtils::decodeField)
+                        .collect(Collectors.toSet())
+        );
+    }
 
 }
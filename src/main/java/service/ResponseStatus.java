@@ -23,6 +23,11 @@ public enum ResponseStatus {
      */
     RESOURCE_NOT_FOUND,
 
+    /**
+     * The server is overloaded and rejected the request; it can be retried later.
+     */
+    SERVER_BUSY,
+
 
 
 
@@ -56,6 +61,16 @@ public enum ResponseStatus {
      */
     USER_ALREADY_LOGGED,
 
+    /**
+     * Session token is unknown, expired or was revoked; the client has to log in again.
+     */
+    INVALID_SESSION,
+
+    /**
+     * Too many login or register attempts from this address or for this user; retry later.
+     */
+    TOO_MANY_ATTEMPTS,
+
 
 
 //    Send email response
@@ -64,6 +79,21 @@ public enum ResponseStatus {
      */
     RECIPIENT_NOT_FOUND,
 
+    /**
+     * Sender or recipient mailbox is over its message count or size quota.
+     */
+    QUOTA_EXCEEDED,
+
+    /**
+     * The email was delivered but could not be added to the sender's sent emails; it must not be sent again.
+     */
+    SENT_NOT_RECORDED,
+
+    /**
+     * The mailbox's shard has handed out every email id it can generate; no more emails can be stored there.
+     */
+    EMAIL_IDS_EXHAUSTED,
+
 
 
 //    Get received and sent emails response
@@ -85,6 +115,24 @@ public enum ResponseStatus {
 
 
 
+//    Replication responses:
+    /**
+     * The server is a read-only replica and cannot apply the request.
+     */
+    READ_ONLY_REPLICA,
+
+
+
+
+//    Admin responses:
+    /**
+     * The logged in user is not an admin.
+     */
+    NOT_AUTHORIZED,
+
+
+
+
 //    General malformed response:
     /**
      * Malformed request.
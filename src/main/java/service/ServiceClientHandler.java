@@ -1,32 +1,93 @@
 package service;
 
 import lombok.extern.slf4j.Slf4j;
+import metrics.AccessLog;
+import metrics.MetricsRegistry;
+import metrics.RequestDispatchedEvent;
+import metrics.RequestReceivedEvent;
+import metrics.RequestStages;
+import metrics.ResponseWrittenEvent;
+import metrics.SerializationEvent;
+import metrics.SlowRequestTracker;
 import model.email.Email;
 import model.email.EmailManager;
+import model.email.EmailQuery;
+import model.email.EmailThread;
+import model.email.ExportedEmail;
+import model.email.LabelFilter;
+import model.email.RelayReceipt;
 import model.email.SearchType;
 import model.user.User;
 import model.user.UserManager;
 import network.TcpNetworkLayer;
+import replication.ReplicationMetrics;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class ServiceClientHandler implements Runnable{
 
+    private static final int DEFAULT_THREAD_PAGE_SIZE = 20;
+    private static final int MAX_IDS_PER_REQUEST = 500;
+
+    /**
+     * Users allowed to run admin commands such as STATS, from the comma separated {@code email.admin.users} property.
+     */
+    private static final Set<String> ADMIN_USERS = Arrays.stream(System.getProperty("email.admin.users", "").split(EmailUtils.LIST_DELIMITER))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+
+    private final MetricsRegistry metrics = MetricsRegistry.global();
+    private final AccessLog accessLog = AccessLog.global();
+    private final SlowRequestTracker slowRequests = SlowRequestTracker.global();
+
     private Socket clientDataSocket;
     private TcpNetworkLayer networkLayer;
     private EmailManager emailManager;
     private UserManager userManager;
     private User loggedInUser;
 
+    /**
+     * Session token of the logged in user, revoked on logout.
+     */
+    private String sessionToken;
+
+    /**
+     * Replication state of the server, {@code null} for a standalone server.
+     */
+    private ReplicationMetrics replication;
+
+    /**
+     * Shared secret authenticating relay requests from a routing proxy; relaying is disabled when {@code null}.
+     */
+    private String relaySecret;
+
     public ServiceClientHandler(Socket clientDataSocket, EmailManager emailManager, UserManager userManager) throws IOException {
+        this(clientDataSocket, emailManager, userManager, null, null);
+    }
+
+    public ServiceClientHandler(Socket clientDataSocket, EmailManager emailManager, UserManager userManager,
+                                ReplicationMetrics replication, String relaySecret) throws IOException {
         this.clientDataSocket = clientDataSocket;
         this.networkLayer = new TcpNetworkLayer(clientDataSocket);
         this.emailManager = emailManager;
         this.userManager = userManager;
+        this.replication = replication;
+        this.relaySecret = relaySecret;
     }
 
 
@@ -34,6 +95,8 @@ public class ServiceClientHandler implements Runnable{
     @Override
     public void run() {
 
+        long connectedAtNanos = metrics.getConnections().opened();
+        String remoteAddress = clientDataSocket.getInetAddress() == null ? null : clientDataSocket.getInetAddress().getHostAddress();
         try {
 
 //            Valid client exception can be used for EXIT request, etc..
@@ -42,6 +105,8 @@ public class ServiceClientHandler implements Runnable{
 
             while (validClientSession){
                 String request = networkLayer.receive();
+                long startNanos = System.nanoTime();
+                RequestStages stages = RequestStages.begin();
                 String[] requestParts = request.split(EmailUtils.DELIMITER);
 
                 if(requestParts.length == 0){
@@ -52,7 +117,27 @@ public class ServiceClientHandler implements Runnable{
 
                 String requestType = requestParts[0];
 
-                log.info("Received request: {}", requestType);
+                log.debug("Received request: {}", requestType);
+
+                RequestReceivedEvent received = new RequestReceivedEvent();
+                if (received.shouldCommit()) {
+                    received.command = requestType;
+                    received.user = currentUsername();
+                    received.requestLength = request.length();
+                    received.commit();
+                }
+
+                if (isReadOnly() && isMutation(requestType)) {
+                    networkLayer.send(ResponseStatus.READ_ONLY_REPLICA.toString());
+                    metrics.recordRequest(requestType, System.nanoTime() - startNanos, request, ResponseStatus.READ_ONLY_REPLICA.toString());
+                    accessLog.record(remoteAddress, currentUsername(), requestType, ResponseStatus.READ_ONLY_REPLICA.toString(),
+                            request.length(), ResponseStatus.READ_ONLY_REPLICA.toString().length(), System.nanoTime() - startNanos);
+                    continue;
+                }
+
+                stages.addParse(System.nanoTime() - startNanos);
+                RequestDispatchedEvent dispatched = new RequestDispatchedEvent();
+                dispatched.begin();
 
                 switch (requestType) {
                     case EmailUtils.REGISTER :
@@ -64,6 +149,10 @@ public class ServiceClientHandler implements Runnable{
 
                         break;
 
+                    case EmailUtils.RESUME :
+                        response = handleResume(requestParts);
+                        break;
+
                     case EmailUtils.LOGOUT :
                         response = handleLogout(requestParts);
                         break;
@@ -100,6 +189,14 @@ public class ServiceClientHandler implements Runnable{
                         response = handleReadEmail(requestParts);
                         break;
 
+                    case EmailUtils.READ_EMAILS:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleReadEmails(requestParts);
+                        break;
+
                     case EmailUtils.SEARCH_EMAIL:
                         if (loggedInUser == null) {
                             response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
@@ -108,17 +205,109 @@ public class ServiceClientHandler implements Runnable{
                         response = handleSearchEmail(requestParts);
                         break;
 
+                    case EmailUtils.LIST_THREADS:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleListThreads(requestParts);
+                        break;
+
+                    case EmailUtils.MARK_READ:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleMarkRead(requestParts);
+                        break;
+
+                    case EmailUtils.LABEL:
+                    case EmailUtils.UNLABEL:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleLabel(requestParts);
+                        break;
+
+                    case EmailUtils.FILTER_EMAILS:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleFilterEmails(requestParts);
+                        break;
+
+
+                    case EmailUtils.DELIVER:
+                    case EmailUtils.RECORD_SENT:
+                    case EmailUtils.LIST_USERS:
+                    case EmailUtils.EXPORT_USER:
+                    case EmailUtils.IMPORT_USER:
+                    case EmailUtils.DROP_USER:
+                        response = handleRelay(requestParts);
+                        break;
+
+                    case EmailUtils.REPLICATION_STATUS:
+                        response = handleReplicationStatus(requestParts);
+                        break;
+
+                    case EmailUtils.SLOW_REQUESTS:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleSlowRequests(requestParts);
+                        break;
+
+                    case EmailUtils.STATS:
+                        if (loggedInUser == null) {
+                            response = ResponseStatus.USER_NOT_LOGGED_IN.toString();
+                            break;
+                        }
+                        response = handleStats(requestParts);
+                        break;
+
 
                     default:
                         response = ResponseStatus.INVALID.toString();
                         break;
                 }
 
+                dispatched.end();
+                if (dispatched.shouldCommit()) {
+                    dispatched.command = requestType;
+                    dispatched.user = currentUsername();
+                    dispatched.status = statusOf(response);
+                    dispatched.requestLength = request.length();
+                    dispatched.responseLength = response == null ? 0 : response.length();
+                    dispatched.commit();
+                }
+
                 if (response != null) {
+                    ResponseWrittenEvent written = new ResponseWrittenEvent();
+                    written.begin();
+                    long writeStartNanos = System.nanoTime();
                     networkLayer.send(response);
+                    stages.addWrite(System.nanoTime() - writeStartNanos);
+                    if (written.shouldCommit()) {
+                        written.command = requestType;
+                        written.responseLength = response.length();
+                        written.commit();
+                    }
                 } else {
                     log.error("Response is null for request: " + request);
                 }
+                long elapsedNanos = System.nanoTime() - startNanos;
+                metrics.recordRequest(requestType, elapsedNanos, request, response);
+                RequestStages.end();
+                if (slowRequests.isSlow(elapsedNanos)) {
+                    recordSlowRequest(requestType, elapsedNanos, stages, response);
+                }
+                if (accessLog.isEnabled()) {
+                    accessLog.record(remoteAddress, currentUsername(), requestType, statusOf(response),
+                            request.length(), response == null ? 0 : response.length(), elapsedNanos);
+                }
 
                 response = null;
 
@@ -126,6 +315,9 @@ public class ServiceClientHandler implements Runnable{
 //            TODO: Specify exception type
         } catch (Exception e){
             log.error("Error while handling client request: ", e);
+        } finally {
+            RequestStages.end();
+            metrics.getConnections().closed(connectedAtNanos);
         }
     }
 
@@ -150,11 +342,11 @@ public class ServiceClientHandler implements Runnable{
         String result = null;
 
         try {
-            ResponseStatus status = userManager.register(username, password);
+            ResponseStatus status = userManager.register(username, password, clientDataSocket);
             if (status == ResponseStatus.SUCCESS) {
                 emailManager.initializeMailbox(username);
                 loggedInUser = userManager.getUserByUsername(username);
-                log.info("User registered (and auto-logged in): {}", username);
+                log.debug("User registered (and auto-logged in): {}", username);
             }
             return status.toString();
         } catch (Exception e) {
@@ -174,10 +366,39 @@ public class ServiceClientHandler implements Runnable{
         String password = requestParts[2];
 
         ResponseStatus responseStatus = userManager.login(username, password, clientDataSocket);
+        if (responseStatus != ResponseStatus.SUCCESS) {
+            log.debug("Login failed for user {}: {}", username, responseStatus);
+            return responseStatus.toString();
+        }
         loggedInUser = userManager.getUserByUsername(username);
+        sessionToken = userManager.createSession(username);
 
-        log.info("User logged in successfully: {}", username);
-        return responseStatus.toString();
+        log.debug("User logged in successfully: {}", username);
+        return responseStatus + EmailUtils.DELIMITER + sessionToken;
+    }
+
+    /**
+     * Re-establishes a session from the token returned by LOGIN, without checking the password again.
+     */
+    private String handleResume(String[] requestParts) {
+
+        if (requestParts.length != 3) {
+            log.error("Invalid resume request! Expected 3 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        String username = requestParts[1];
+        String token = requestParts[2];
+
+        if (!userManager.resumeSession(username, token)) {
+            log.debug("Rejected session resume for user {}", username);
+            return ResponseStatus.INVALID_SESSION.toString();
+        }
+        loggedInUser = userManager.getUserByUsername(username);
+        sessionToken = token;
+
+        log.debug("User resumed session: {}", username);
+        return ResponseStatus.SUCCESS.toString();
     }
 
     private String handleLogout(String[] requestParts) {
@@ -193,7 +414,11 @@ public class ServiceClientHandler implements Runnable{
 
         if (responseStatus == ResponseStatus.SUCCESS) {
             loggedInUser = null;
-            log.info("User logged out successfully: {}", username);
+            if (sessionToken != null) {
+                userManager.revokeSession(sessionToken);
+                sessionToken = null;
+            }
+            log.debug("User logged out successfully: {}", username);
         } else {
             log.error("Error logging out user: {}", username);
         }
@@ -201,8 +426,8 @@ public class ServiceClientHandler implements Runnable{
     }
 
     private String handleSendEmail(String[] requestParts) {
-        if (requestParts.length != 4) {
-            log.error("Invalid send email request! Expected 4 parts, got: {}", requestParts.length);
+        if (requestParts.length != 4 && requestParts.length != 5) {
+            log.error("Invalid send email request! Expected 4 or 5 parts, got: {}", requestParts.length);
             return ResponseStatus.INVALID.toString();
         }
 
@@ -211,10 +436,20 @@ public class ServiceClientHandler implements Runnable{
         String subject = requestParts[2];
         String content = requestParts[3];
 
-        ResponseStatus responseStatus = emailManager.sendEmail(senderUsername, recipientUsername, subject, content);
+//        Optional 5th part: id of the email this one replies to.
+        Integer inReplyToId = null;
+        if (requestParts.length == 5) {
+            try {
+                inReplyToId = Integer.parseInt(requestParts[4]);
+            } catch (NumberFormatException e) {
+                return ResponseStatus.INVALID.toString();
+            }
+        }
+
+        ResponseStatus responseStatus = emailManager.sendEmail(senderUsername, recipientUsername, subject, content, inReplyToId);
 
         if (responseStatus == ResponseStatus.SUCCESS) {
-            log.info("Email sent successfully from {} to {}", senderUsername, recipientUsername);
+            log.debug("Email sent successfully from {} to {}", senderUsername, recipientUsername);
         } else {
             log.error("Error sending email from {} to {}: {}", senderUsername, recipientUsername, responseStatus);
         }
@@ -229,7 +464,7 @@ public class ServiceClientHandler implements Runnable{
 
         String recipientUsername = loggedInUser.getUsername();
         List<Email> receivedEmails = emailManager.getReceivedEmails(recipientUsername);
-        log.info("Received emails for user {}: {}", recipientUsername, receivedEmails.size());
+        log.debug("Received emails for user {}: {}", recipientUsername, receivedEmails.size());
 
         return serializeEmails(receivedEmails);
     }
@@ -240,7 +475,7 @@ public class ServiceClientHandler implements Runnable{
 
         List<Email> sentEmails = emailManager.getSentEmails(senderUsername);
 
-        log.info("Sent emails for user {}: {}", senderUsername, sentEmails.size());
+        log.debug("Sent emails for user {}: {}", senderUsername, sentEmails.size());
         return serializeEmails(sentEmails);
     }
 
@@ -252,10 +487,13 @@ public class ServiceClientHandler implements Runnable{
         int emailId = Integer.parseInt(requestParts[1]);
         String userName = loggedInUser.getUsername();
 
-        Optional<Email> result = emailManager.readEmail(emailId, userName);
+//        Replicas cannot change read state, so reading there only peeks.
+        Optional<Email> result = isReadOnly()
+                ? emailManager.readEmails(userName, List.of(emailId), false).get(0)
+                : emailManager.readEmail(emailId, userName);
 
         if (result.isPresent()) {
-            log.info("Email read successfully: {}", result.get());
+            log.debug("Email read successfully: {}", result.get().getId());
             return serializeEmail(result.get());
         } else {
             log.error("Error reading email with ID {}: Email not found", emailId);
@@ -264,14 +502,52 @@ public class ServiceClientHandler implements Runnable{
 
     }
 
+    /**
+     * {@code READ_EMAILS%%ids%%MARK|PEEK}, where the ids are a comma separated list of ids and
+     * inclusive {@code from-to} ranges. {@code PEEK} leaves the read state unchanged.
+     * Responds with one {@code ##} separated chunk per id, in request order: the email as returned by
+     * {@code READ_EMAIL}, or {@code RESOURCE_NOT_FOUND%%id}.
+     */
+    private String handleReadEmails(String[] requestParts) {
+        if (requestParts.length != 3 || !(requestParts[2].equals(EmailUtils.MARK) || requestParts[2].equals(EmailUtils.PEEK))) {
+            log.error("Invalid read emails request! Expected 3 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        List<Integer> emailIds;
+        try {
+            emailIds = parseIds(requestParts[1]);
+        } catch (IllegalArgumentException e) {
+            return ResponseStatus.INVALID.toString();
+        }
+
+        String userName = loggedInUser.getUsername();
+        List<Optional<Email>> results = emailManager.readEmails(userName, emailIds, requestParts[2].equals(EmailUtils.MARK) && !isReadOnly());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(ResponseStatus.SUCCESS);
+        int found = 0;
+        for (int i = 0; i < results.size(); i++) {
+            sb.append(EmailUtils.EMAIL_DELIMITER);
+            if (results.get(i).isPresent()) {
+                sb.append(serializeEmail(results.get(i).get()));
+                found++;
+            } else {
+                sb.append(ResponseStatus.RESOURCE_NOT_FOUND).append(EmailUtils.DELIMITER).append(emailIds.get(i));
+            }
+        }
+
+        log.debug("Read {} of {} requested emails for user {}", found, emailIds.size(), userName);
+        return sb.toString();
+    }
+
     private String handleSearchEmail(String[] requestParts) {
-        if (requestParts.length != 3) {
-            log.error("Invalid search email request! Expected 3 parts, got: {}", requestParts.length);
+        if (requestParts.length < 2) {
+            log.error("Invalid search email request! Expected at least 2 parts, got: {}", requestParts.length);
             return ResponseStatus.INVALID.toString();
         }
 
         String userName = loggedInUser.getUsername();
-        String subjectQuery = requestParts[2];
 
         SearchType searchType;
         try {
@@ -280,15 +556,423 @@ public class ServiceClientHandler implements Runnable{
             return ResponseStatus.INVALID.toString();
         }
 
-        List<Email> result = emailManager.searchEmails(userName, searchType, subjectQuery);
+//        FROM and TO carry the counterparty username before the subject query.
+        int subjectIndex = searchType == SearchType.FROM || searchType == SearchType.TO ? 3 : 2;
+        if (requestParts.length <= 2 && subjectIndex == 3) {
+            log.error("Invalid search email request! Missing counterparty for search type {}", searchType);
+            return ResponseStatus.INVALID.toString();
+        }
+        if (requestParts.length > subjectIndex + 1 && requestParts.length != subjectIndex + 3) {
+            log.error("Invalid search email request! Got {} parts for search type {}", requestParts.length, searchType);
+            return ResponseStatus.INVALID.toString();
+        }
+
+//        An empty or missing subject matches every subject; "*" is searched for literally.
+        String subjectQuery = requestParts.length > subjectIndex ? requestParts[subjectIndex] : "";
+
+        EmailQuery.EmailQueryBuilder query = EmailQuery.builder()
+                .type(searchType)
+                .counterparty(subjectIndex == 3 ? requestParts[2] : null)
+                .subjectQuery(subjectQuery.isEmpty() ? null : subjectQuery);
+
+        if (requestParts.length == subjectIndex + 3) {
+            try {
+                query.from(parseRangeBound(requestParts[subjectIndex + 1], false))
+                        .to(parseRangeBound(requestParts[subjectIndex + 2], true));
+            } catch (DateTimeParseException e) {
+                return ResponseStatus.INVALID.toString();
+            }
+        }
+
+        List<Email> result = emailManager.searchEmails(userName, query.build());
 
         if (result.isEmpty()) {
-            log.info("No emails found for user {} with subject query: {}", userName, subjectQuery);
+            log.debug("No emails found for user {} with subject query: {}", userName, subjectQuery);
+        }
+
+        return serializeEmails(result);
+    }
+
+    /**
+     * Parses a search range bound: {@code *} for an open bound, a date-time, or a date
+     * standing for the start (or, for the upper bound, the end) of that day.
+     */
+    private LocalDateTime parseRangeBound(String value, boolean upperBound) {
+        if (value.equals(EmailUtils.ANY)) {
+            return null;
+        }
+        if (value.contains("T")) {
+            return LocalDateTime.parse(value);
+        }
+        LocalDate date = LocalDate.parse(value);
+        return upperBound ? date.atTime(LocalTime.MAX) : date.atStartOfDay();
+    }
+
+
+    private String handleListThreads(String[] requestParts) {
+        if (requestParts.length != 1 && requestParts.length != 3) {
+            log.error("Invalid list threads request! Expected 1 or 3 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        int offset = 0;
+        int limit = DEFAULT_THREAD_PAGE_SIZE;
+        if (requestParts.length == 3) {
+            try {
+                offset = Integer.parseInt(requestParts[1]);
+                limit = Integer.parseInt(requestParts[2]);
+            } catch (NumberFormatException e) {
+                return ResponseStatus.INVALID.toString();
+            }
+        }
+
+        String userName = loggedInUser.getUsername();
+        List<EmailThread> threads = emailManager.listThreads(userName, offset, limit);
+        log.debug("Threads for user {}: {}", userName, threads.size());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(ResponseStatus.SUCCESS).append(EmailUtils.EMAIL_DELIMITER);
+        for (int i = 0; i < threads.size(); i++) {
+            EmailThread thread = threads.get(i);
+            sb
+                    .append(thread.getThreadId()).append(EmailUtils.DELIMITER)
+                    .append(thread.getSubject()).append(EmailUtils.DELIMITER)
+                    .append(thread.getParticipantUsername()).append(EmailUtils.DELIMITER)
+                    .append(thread.getMessageCount()).append(EmailUtils.DELIMITER)
+                    .append(thread.getUnreadCount()).append(EmailUtils.DELIMITER)
+                    .append(thread.getLatestEmailId()).append(EmailUtils.DELIMITER)
+                    .append(thread.getLatestAt());
+
+            if (i < threads.size() - 1) {
+                sb.append(EmailUtils.EMAIL_DELIMITER);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String handleMarkRead(String[] requestParts) {
+        if (requestParts.length != 3 && requestParts.length != 4) {
+            log.error("Invalid mark read request! Expected 3 or 4 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        String userName = loggedInUser.getUsername();
+
+        SearchType searchType;
+        try {
+            searchType = SearchType.valueOf(requestParts[1]);
+        } catch (IllegalArgumentException e) {
+            return ResponseStatus.INVALID.toString();
+        }
+
+        int marked;
+        if (requestParts.length == 3) {
+            if (!requestParts[2].equals(EmailUtils.ALL)) {
+                return ResponseStatus.INVALID.toString();
+            }
+            marked = emailManager.markAllRead(userName, searchType);
+        } else {
+            try {
+                marked = emailManager.markRangeRead(userName, searchType,
+                        Integer.parseInt(requestParts[2]), Integer.parseInt(requestParts[3]));
+            } catch (NumberFormatException e) {
+                return ResponseStatus.INVALID.toString();
+            }
+        }
+
+        log.debug("Marked {} emails read for user {}", marked, userName);
+        return ResponseStatus.SUCCESS + EmailUtils.DELIMITER + marked;
+    }
+
+    /**
+     * {@code LABEL%%TYPE%%label%%id,id,...} adds the label, {@code UNLABEL} with the same arguments removes it.
+     * Responds with the number of emails that changed.
+     */
+    private String handleLabel(String[] requestParts) {
+        if (requestParts.length != 4) {
+            log.error("Invalid label request! Expected 4 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
         }
 
+        String userName = loggedInUser.getUsername();
+
+        SearchType searchType;
+        List<Integer> emailIds;
+        try {
+            searchType = SearchType.valueOf(requestParts[1]);
+            emailIds = parseIds(requestParts[3]);
+        } catch (IllegalArgumentException e) {
+            return ResponseStatus.INVALID.toString();
+        }
+
+        String label = requestParts[2];
+        int changed = requestParts[0].equals(EmailUtils.LABEL)
+                ? emailManager.labelEmails(userName, searchType, label, emailIds)
+                : emailManager.unlabelEmails(userName, searchType, label, emailIds);
+
+        log.debug("{} changed {} emails of user {} for label {}", requestParts[0], changed, userName, label);
+        return ResponseStatus.SUCCESS + EmailUtils.DELIMITER + changed;
+    }
+
+    /**
+     * {@code FILTER_EMAILS%%TYPE%%withLabels%%withoutLabels%%ALL|READ|UNREAD}, where the label
+     * arguments are comma separated lists or {@code *} for none.
+     */
+    private String handleFilterEmails(String[] requestParts) {
+        if (requestParts.length != 5) {
+            log.error("Invalid filter emails request! Expected 5 parts, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        LabelFilter.LabelFilterBuilder filter = LabelFilter.builder();
+        try {
+            filter.type(SearchType.valueOf(requestParts[1]));
+        } catch (IllegalArgumentException e) {
+            return ResponseStatus.INVALID.toString();
+        }
+        if (!requestParts[2].equals(EmailUtils.ANY)) {
+            filter.withLabels(List.of(requestParts[2].split(EmailUtils.LIST_DELIMITER)));
+        }
+        if (!requestParts[3].equals(EmailUtils.ANY)) {
+            filter.withoutLabels(List.of(requestParts[3].split(EmailUtils.LIST_DELIMITER)));
+        }
+        switch (requestParts[4]) {
+            case EmailUtils.ALL -> filter.read(null);
+            case EmailUtils.READ -> filter.read(true);
+            case EmailUtils.UNREAD -> filter.read(false);
+            default -> {
+                return ResponseStatus.INVALID.toString();
+            }
+        }
+
+        String userName = loggedInUser.getUsername();
+        List<Email> result = emailManager.filterEmails(userName, filter.build());
+        log.debug("Filter matched {} emails for user {}", result.size(), userName);
+
         return serializeEmails(result);
     }
 
+    /**
+     * Parses a comma separated list of email ids and inclusive {@code from-to} id ranges.
+     *
+     * @throws IllegalArgumentException if the list is malformed or has more than {@value #MAX_IDS_PER_REQUEST} ids
+     */
+    private List<Integer> parseIds(String value) {
+        List<Integer> ids = new ArrayList<>();
+        for (String element : value.split(EmailUtils.LIST_DELIMITER)) {
+            String[] bounds = element.trim().split(EmailUtils.RANGE_DELIMITER);
+            if (bounds.length > 2) {
+                throw new IllegalArgumentException("Invalid id range: " + element);
+            }
+            int from = Integer.parseInt(bounds[0]);
+            int to = bounds.length == 2 ? Integer.parseInt(bounds[1]) : from;
+            if (to < from || (long) to - from + 1 > MAX_IDS_PER_REQUEST - ids.size()) {
+                throw new IllegalArgumentException("Invalid or too many ids: " + element);
+            }
+            for (int i = 0; i <= to - from; i++) {
+                ids.add(from + i);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * {@code REPLICATION_STATUS} responds with {@code SUCCESS%%role%%appliedSequence%%leaderSequence%%lagMillis}.
+     */
+    private String handleReplicationStatus(String[] requestParts) {
+        if (requestParts.length != 1) {
+            return ResponseStatus.INVALID.toString();
+        }
+        if (replication == null) {
+            return ResponseStatus.SUCCESS + EmailUtils.DELIMITER + "STANDALONE" + EmailUtils.DELIMITER + 0
+                    + EmailUtils.DELIMITER + 0 + EmailUtils.DELIMITER + 0;
+        }
+        return ResponseStatus.SUCCESS + EmailUtils.DELIMITER + replication.getRole()
+                + EmailUtils.DELIMITER + replication.getAppliedSequence()
+                + EmailUtils.DELIMITER + replication.getLeaderSequence()
+                + EmailUtils.DELIMITER + replication.getLagMillis();
+    }
+
+    /**
+     * Requests sent by a routing proxy on behalf of users living on different servers.
+     * The second part is the relay secret; subjects and bodies are Base64 encoded.
+     * <ul>
+     *     <li>{@code DELIVER%%secret%%sender%%recipient%%subject%%body[%%inReplyTo]} responds {@code SUCCESS%%id%%sentAtMillis}</li>
+     *     <li>{@code RECORD_SENT%%secret%%id%%sender%%recipient%%subject%%body%%sentAtMillis[%%inReplyTo]}</li>
+     *     <li>{@code LIST_USERS%%secret} responds {@code SUCCESS%%user,user,...}</li>
+     *     <li>{@code EXPORT_USER%%secret%%user} responds {@code SUCCESS%%passwordHash##email##...}</li>
+     *     <li>{@code IMPORT_USER%%secret%%user%%passwordHash##email##...} takes an export</li>
+     *     <li>{@code DROP_USER%%secret%%user} deletes the user and their mailbox</li>
+     * </ul>
+     */
+    private String handleRelay(String[] requestParts) {
+        if (relaySecret == null || requestParts.length < 2
+                || !MessageDigest.isEqual(relaySecret.getBytes(StandardCharsets.UTF_8), requestParts[1].getBytes(StandardCharsets.UTF_8))) {
+            log.error("Rejected {} request with missing or wrong relay secret", requestParts[0]);
+            return ResponseStatus.INVALID.toString();
+        }
+
+        try {
+            return switch (requestParts[0]) {
+                case EmailUtils.DELIVER -> {
+                    if (requestParts.length != 6 && requestParts.length != 7) {
+                        yield ResponseStatus.INVALID.toString();
+                    }
+                    RelayReceipt receipt = emailManager.deliverRelayed(requestParts[2], requestParts[3],
+                            EmailUtils.decodeField(requestParts[4]), EmailUtils.decodeField(requestParts[5]),
+                            requestParts.length == 7 ? Integer.valueOf(requestParts[6]) : null);
+                    yield receipt.status() != ResponseStatus.SUCCESS
+                            ? receipt.status().toString()
+                            : ResponseStatus.SUCCESS + EmailUtils.DELIMITER + receipt.emailId() + EmailUtils.DELIMITER + receipt.sentAtMillis();
+                }
+                case EmailUtils.RECORD_SENT -> {
+                    if (requestParts.length != 8 && requestParts.length != 9) {
+                        yield ResponseStatus.INVALID.toString();
+                    }
+                    yield emailManager.recordRelayedSent(Integer.parseInt(requestParts[2]), requestParts[3], requestParts[4],
+                            EmailUtils.decodeField(requestParts[5]), EmailUtils.decodeField(requestParts[6]),
+                            Long.parseLong(requestParts[7]),
+                            requestParts.length == 9 ? Integer.valueOf(requestParts[8]) : null).toString();
+                }
+                case EmailUtils.LIST_USERS ->
+                        ResponseStatus.SUCCESS + EmailUtils.DELIMITER + String.join(EmailUtils.LIST_DELIMITER, userManager.getUsernames());
+                case EmailUtils.EXPORT_USER -> {
+                    User user = requestParts.length == 3 ? userManager.getUser(requestParts[2]) : null;
+                    yield user == null ? ResponseStatus.USER_NOT_FOUND.toString() : exportUser(user);
+                }
+                case EmailUtils.IMPORT_USER -> requestParts.length < 4 ? ResponseStatus.INVALID.toString() : importUser(requestParts);
+                case EmailUtils.DROP_USER -> {
+                    if (requestParts.length != 3) {
+                        yield ResponseStatus.INVALID.toString();
+                    }
+                    emailManager.removeMailbox(requestParts[2]);
+                    yield userManager.removeUser(requestParts[2]) ? ResponseStatus.SUCCESS.toString() : ResponseStatus.USER_NOT_FOUND.toString();
+                }
+                default -> ResponseStatus.INVALID.toString();
+            };
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid {} request: {}", requestParts[0], e.getMessage());
+            return ResponseStatus.INVALID.toString();
+        }
+    }
+
+    private String exportUser(User user) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(ResponseStatus.SUCCESS).append(EmailUtils.DELIMITER).append(user.getPassword());
+        for (ExportedEmail email : emailManager.exportMailbox(user.getUsername())) {
+            sb.append(EmailUtils.EMAIL_DELIMITER).append(EmailUtils.encodeExportedEmail(email));
+        }
+        return sb.toString();
+    }
+
+    private String importUser(String[] requestParts) {
+        String username = requestParts[2];
+//        The export was split on the field delimiter along with the request; rejoin it.
+        String[] chunks = String.join(EmailUtils.DELIMITER, Arrays.copyOfRange(requestParts, 3, requestParts.length))
+                .split(EmailUtils.EMAIL_DELIMITER);
+
+        List<ExportedEmail> emails = new ArrayList<>(chunks.length - 1);
+        for (int i = 1; i < chunks.length; i++) {
+            emails.add(EmailUtils.decodeExportedEmail(chunks[i]));
+        }
+
+//        A leftover mailbox would make the import fail after the user was already added.
+        if (emailManager.getMailboxSize(username) >= 0) {
+            return ResponseStatus.USER_ALREADY_EXISTS.toString();
+        }
+        ResponseStatus status = userManager.importUser(username, chunks[0]);
+        if (status == ResponseStatus.SUCCESS) {
+            try {
+                emailManager.importMailbox(username, emails);
+            } catch (RuntimeException e) {
+                userManager.removeUser(username);
+                throw e;
+            }
+            log.info("Imported user {} with {} emails", username, emails.size());
+        }
+        return status.toString();
+    }
+
+    /**
+     * Dumps the server metrics, one {@code ##} separated chunk per line of {@link MetricsRegistry#render()}.
+     */
+    private String handleStats(String[] requestParts) {
+        if (requestParts.length != 1) {
+            log.error("Invalid stats request! Expected 1 part, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+        if (!isAdmin()) {
+            log.warn("User {} is not allowed to read server stats", loggedInUser.getUsername());
+            return ResponseStatus.NOT_AUTHORIZED.toString();
+        }
+        return ResponseStatus.SUCCESS + EmailUtils.EMAIL_DELIMITER + String.join(EmailUtils.EMAIL_DELIMITER, metrics.render());
+    }
+
+    /**
+     * Status name at the start of a response, e.g. {@code SUCCESS} for {@code SUCCESS%%...}.
+     */
+    private static String statusOf(String response) {
+        if (response == null) {
+            return null;
+        }
+        int end = response.length();
+        int field = response.indexOf(EmailUtils.DELIMITER);
+        int item = response.indexOf(EmailUtils.EMAIL_DELIMITER);
+        if (field >= 0) {
+            end = field;
+        }
+        if (item >= 0 && item < end) {
+            end = item;
+        }
+        return response.substring(0, end);
+    }
+
+    private String currentUsername() {
+        return loggedInUser == null ? null : loggedInUser.getUsername();
+    }
+
+    /**
+     * Lists the captured slow requests, newest first, one {@code ##} separated chunk each.
+     */
+    private String handleSlowRequests(String[] requestParts) {
+        if (requestParts.length != 1) {
+            log.error("Invalid slow requests request! Expected 1 part, got: {}", requestParts.length);
+            return ResponseStatus.INVALID.toString();
+        }
+        if (!isAdmin()) {
+            log.warn("User {} is not allowed to read slow requests", loggedInUser.getUsername());
+            return ResponseStatus.NOT_AUTHORIZED.toString();
+        }
+        StringBuilder response = new StringBuilder(ResponseStatus.SUCCESS.toString());
+        for (SlowRequestTracker.SlowRequest request : slowRequests.recent()) {
+            response.append(EmailUtils.EMAIL_DELIMITER).append(request.describe());
+        }
+        return response.toString();
+    }
+
+    private void recordSlowRequest(String requestType, long elapsedNanos, RequestStages stages, String response) {
+        String user = currentUsername();
+        int mailboxSize = user == null ? -1 : emailManager.getMailboxSize(user);
+        slowRequests.record(requestType, user, elapsedNanos, stages, mailboxSize, response == null ? 0 : response.length());
+        log.warn("Slow {} request of user {}: {} ms", requestType, user, elapsedNanos / 1_000_000);
+    }
+
+    private boolean isAdmin() {
+        return loggedInUser != null && ADMIN_USERS.contains(loggedInUser.getUsername());
+    }
+
+    private boolean isReadOnly() {
+        return replication != null && replication.isReadOnly();
+    }
+
+    private static boolean isMutation(String requestType) {
+        return switch (requestType) {
+            case EmailUtils.REGISTER, EmailUtils.SEND_EMAIL, EmailUtils.MARK_READ, EmailUtils.LABEL, EmailUtils.UNLABEL,
+                 EmailUtils.DELIVER, EmailUtils.RECORD_SENT, EmailUtils.IMPORT_USER, EmailUtils.DROP_USER -> true;
+            default -> false;
+        };
+    }
+
 
     private ResponseStatus logoutUser(String username){
 
@@ -296,7 +980,7 @@ public class ServiceClientHandler implements Runnable{
 
         if (loggedInUser != null) {
             loggedInUser = null;
-            log.info("User logged out successfully: {}", username);
+            log.debug("User logged out successfully: {}", username);
             result = ResponseStatus.SUCCESS.toString();
         } else {
             log.error("Error logging out user: {}. User is not logged in", username);
@@ -307,6 +991,9 @@ public class ServiceClientHandler implements Runnable{
     }
 
     private String serializeEmails(List<Email> emails) {
+        SerializationEvent event = new SerializationEvent();
+        event.begin();
+        long startNanos = System.nanoTime();
         StringBuilder sb = new StringBuilder();
 
         // Set success status
@@ -329,7 +1016,17 @@ public class ServiceClientHandler implements Runnable{
             }
         }
 
-        return sb.toString();
+        String serialized = sb.toString();
+        RequestStages stages = RequestStages.current();
+        if (stages != null) {
+            stages.addSerialization(System.nanoTime() - startNanos);
+        }
+        if (event.shouldCommit()) {
+            event.emailCount = emails.size();
+            event.responseLength = serialized.length();
+            event.commit();
+        }
+        return serialized;
     }
 
     private String serializeEmail(Email email) {
@@ -0,0 +1,90 @@
+package unit;
+
+import metrics.AccessLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void record_fromManyThreads_shouldWriteOrDropEveryRecord() throws Exception {
+        Path file = directory.resolve("access.log");
+        AccessLog accessLog = new AccessLog(file, 64, 1.0);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    accessLog.record("127.0.0.1", "alice", "LOGIN", "SUCCESS", 20, 40, 1_500);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        accessLog.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(20_000, accessLog.getWrittenCount() + accessLog.getDroppedCount());
+        assertEquals(accessLog.getWrittenCount(), lines.size());
+        assertEquals("{\"ts\":" + lines.get(0).substring(6, lines.get(0).indexOf(',')) +
+                ",\"remote\":\"127.0.0.1\",\"user\":\"alice\",\"cmd\":\"LOGIN\",\"status\":\"SUCCESS\",\"in\":20,\"out\":40,\"us\":1}", lines.get(0));
+    }
+
+    @Test
+    void record_withZeroSampleRate_shouldKeepOnlyFailures() throws IOException {
+        Path file = directory.resolve("access.log");
+        AccessLog accessLog = new AccessLog(file, 16, 0.0);
+
+        accessLog.record(null, null, "LOGIN", "SUCCESS", 1, 1, 1);
+        accessLog.record(null, "we\"ird\n", "LOGIN", "INVALID_USERNAME_OR_PASSWORD", 1, 1, 1);
+        accessLog.close();
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"remote\":null,\"user\":\"we\\\"ird\\u000a\""));
+        assertEquals(1, accessLog.getSampledOutCount());
+    }
+
+    @Test
+    void record_afterIdlePeriod_shouldStillBeWrittenWithoutClose() throws Exception {
+        Path file = directory.resolve("access.log");
+        AccessLog accessLog = new AccessLog(file, 16, 1.0);
+        try {
+//            Long enough for the writer to reach its longest sleep.
+            Thread.sleep(300);
+            accessLog.record(null, "alice", "LOGIN", "SUCCESS", 1, 1, 1);
+
+            long deadline = System.currentTimeMillis() + 2_000;
+            while (accessLog.getWrittenCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, accessLog.getWrittenCount());
+            assertEquals(1, Files.readAllLines(file).size());
+        } finally {
+            accessLog.close();
+        }
+    }
+
+    @Test
+    void disabled_shouldRecordNothing() {
+        AccessLog accessLog = AccessLog.disabled();
+        accessLog.record(null, null, "LOGIN", "SUCCESS", 1, 1, 1);
+
+        assertFalse(accessLog.isEnabled());
+        assertEquals(0, accessLog.getWrittenCount());
+    }
+}
@@ -0,0 +1,60 @@
+package unit;
+
+
+import org.junit.jupiter.api.Test;
+import router.ConsistentHashRing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsistentHashRingTests {
+
+    @Test
+    void nodeFor_emptyRing_shouldReturnNull() {
+        assertNull(new ConsistentHashRing<String>().nodeFor("alice"));
+    }
+
+    @Test
+    void nodeFor_shouldSpreadKeysEvenly() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        ring.addNode("a");
+        ring.addNode("b");
+        ring.addNode("c");
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            counts.merge(ring.nodeFor("user" + i), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(count > 7_000 && count < 13_000, "Unbalanced: " + counts));
+    }
+
+    @Test
+    void addNode_shouldOnlyMoveKeysToTheNewNode() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        ring.addNode("a");
+        ring.addNode("b");
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            before.put("user" + i, ring.nodeFor("user" + i));
+        }
+
+        ring.addNode("c");
+
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = ring.nodeFor(entry.getKey());
+            if (!owner.equals(entry.getValue())) {
+                assertEquals("c", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 2_000 && moved < 4_700, "Moved " + moved);
+
+        ring.removeNode("c");
+        before.forEach((key, owner) -> assertEquals(owner, ring.nodeFor(key)));
+    }
+}
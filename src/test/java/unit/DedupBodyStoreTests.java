@@ -0,0 +1,46 @@
+package unit;
+
+
+import model.email.DedupBodyStore;
+import model.email.OffHeapBodyStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupBodyStoreTests {
+
+    private OffHeapBodyStore offHeapStore;
+    private DedupBodyStore bodyStore;
+
+    @BeforeEach
+    void setUp() {
+        offHeapStore = new OffHeapBodyStore(1024);
+        bodyStore = new DedupBodyStore(offHeapStore);
+    }
+
+    @Test
+    void store_identicalBodies_shouldShareHandle() {
+        long first = bodyStore.store("Weekly notice");
+        long second = bodyStore.store("Weekly notice");
+
+        assertEquals(first, second);
+        assertEquals(1, bodyStore.distinctBodies());
+        assertEquals(0.5, bodyStore.hitRatio());
+        assertEquals("Weekly notice".length(), bodyStore.bytesSaved());
+    }
+
+    @Test
+    void release_shouldKeepBodyUntilLastReference() {
+        long first = bodyStore.store("Shared");
+        bodyStore.store("Shared");
+
+        assertEquals(0, bodyStore.release(first));
+        assertEquals("Shared", bodyStore.load(first));
+        assertEquals(0, bodyStore.bytesSaved());
+
+        assertEquals("Shared".length(), bodyStore.release(first));
+        assertEquals(0, bodyStore.distinctBodies());
+        assertEquals(0, offHeapStore.usedBytes());
+    }
+}
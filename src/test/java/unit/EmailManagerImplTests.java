@@ -4,13 +4,29 @@ package unit;
 
 import model.email.Email;
 import model.email.EmailManagerImpl;
+import model.email.EmailQuery;
+import model.email.EmailStorageConfig;
+import model.email.EmailThread;
+import model.email.LabelFilter;
+import model.email.OffHeapBodyStore;
 import model.email.SearchType;
+import model.user.UserIdInterner;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import service.ResponseStatus;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -25,6 +41,11 @@ class EmailManagerImplTests {
         emailManager.initializeMailbox("bob");
     }
 
+    @AfterEach
+    void tearDown() {
+        emailManager.shutdown();
+    }
+
     @Test
     void sendEmail_shouldStoreEmailInBothMailboxes() {
         ResponseStatus status = emailManager.sendEmail("alice", "bob", "Subject", "Body");
@@ -113,5 +134,302 @@ class EmailManagerImplTests {
             emailManager.initializeMailbox("alice");
         });
     }
-}
 
+    @Test
+    void sendEmail_concurrentlyAcrossShards_shouldAssignUniqueIds() throws Exception {
+        EmailManagerImpl sharded = new EmailManagerImpl(new OffHeapBodyStore(), new UserIdInterner(),
+                EmailStorageConfig.builder().shardCount(4).build());
+        for (int i = 0; i < 8; i++) {
+            sharded.initializeMailbox("user" + i);
+        }
+
+        ExecutorService senders = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            String sender = "user" + i;
+            String recipient = "user" + ((i + 1) % 8);
+            senders.submit(() -> {
+                for (int j = 0; j < 50; j++) {
+                    sharded.sendEmail(sender, recipient, "Subject " + j, "Body");
+                }
+            });
+        }
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(10, TimeUnit.SECONDS));
+
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(50, sharded.getSentEmails("user" + i).size());
+            assertEquals(50, sharded.getReceivedEmails("user" + i).size());
+            sharded.getSentEmails("user" + i).forEach(email -> ids.add(email.getId()));
+        }
+        assertEquals(400, ids.size());
+        sharded.shutdown();
+    }
+
+    @Test
+    void sendEmail_beyondHotWindow_shouldKeepOlderBodiesReadable() {
+        EmailManagerImpl tiered = new EmailManagerImpl(new UserIdInterner(),
+                EmailStorageConfig.builder().shardCount(2).hotEmailsPerList(2).build());
+        tiered.initializeMailbox("alice");
+        tiered.initializeMailbox("bob");
+
+        for (int i = 0; i < 5; i++) {
+            tiered.sendEmail("alice", "bob", "Subject " + i, "Body " + i);
+        }
+
+        List<Email> received = tiered.getReceivedEmails("bob");
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Body " + i, received.get(i).getContent());
+        }
+        tiered.shutdown();
+    }
+
+    @Test
+    void sendEmail_recipientOverQuota_shouldReturnQuotaExceeded() {
+        EmailManagerImpl limited = new EmailManagerImpl(new UserIdInterner(),
+                EmailStorageConfig.builder().maxEmailsPerUser(2).build());
+        limited.initializeMailbox("alice");
+        limited.initializeMailbox("bob");
+        limited.initializeMailbox("carol");
+
+        assertEquals(ResponseStatus.SUCCESS, limited.sendEmail("alice", "bob", "One", "Body"));
+        assertEquals(ResponseStatus.SUCCESS, limited.sendEmail("carol", "bob", "Two", "Body"));
+
+        assertEquals(ResponseStatus.QUOTA_EXCEEDED, limited.sendEmail("alice", "bob", "Three", "Body"));
+        assertEquals(2, limited.getReceivedEmails("bob").size());
+        assertEquals(1, limited.getSentEmails("alice").size());
+        limited.shutdown();
+    }
+
+    @Test
+    void sendEmail_whenShardRunsOutOfIds_shouldFailInsteadOfWrapping() {
+//        With 2^28 node slots a single shard has 7 ids below Integer.MAX_VALUE.
+        EmailManagerImpl crowded = new EmailManagerImpl(new UserIdInterner(),
+                EmailStorageConfig.builder().shardCount(1).maxNodes(1 << 28).build());
+        crowded.initializeMailbox("alice");
+        crowded.initializeMailbox("bob");
+
+        for (int i = 0; i < 7; i++) {
+            assertEquals(ResponseStatus.SUCCESS, crowded.sendEmail("alice", "bob", "Subject " + i, "Body"));
+        }
+        assertEquals(ResponseStatus.EMAIL_IDS_EXHAUSTED, crowded.sendEmail("alice", "bob", "One more", "Body"));
+        assertEquals(7, crowded.getReceivedEmails("bob").size());
+        assertTrue(crowded.getReceivedEmails("bob").stream().allMatch(email -> email.getId() > 0));
+        crowded.shutdown();
+    }
+
+    @Test
+    void sendEmail_concurrentlyAcrossShards_shouldNotExceedSendersQuota() throws Exception {
+        EmailManagerImpl limited = new EmailManagerImpl(new OffHeapBodyStore(), new UserIdInterner(),
+                EmailStorageConfig.builder().shardCount(4).maxEmailsPerUser(5).build());
+        limited.initializeMailbox("alice");
+        for (int i = 0; i < 8; i++) {
+            limited.initializeMailbox("user" + i);
+        }
+
+        ExecutorService senders = Executors.newFixedThreadPool(8);
+        List<Future<ResponseStatus>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String recipient = "user" + i;
+            results.add(senders.submit(() -> limited.sendEmail("alice", recipient, "Subject", "Body")));
+        }
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(10, TimeUnit.SECONDS));
+
+        long delivered = 0;
+        for (Future<ResponseStatus> result : results) {
+            if (result.get() == ResponseStatus.SUCCESS) {
+                delivered++;
+            }
+        }
+        assertEquals(5, delivered);
+        assertEquals(5, limited.getSentEmails("alice").size());
+        limited.shutdown();
+    }
+
+    @Test
+    void sendEmail_toMissingRecipient_shouldReleaseSendersReservation() {
+        EmailManagerImpl limited = new EmailManagerImpl(new OffHeapBodyStore(), new UserIdInterner(),
+                EmailStorageConfig.builder().shardCount(4).maxEmailsPerUser(1).build());
+        limited.initializeMailbox("alice");
+        limited.initializeMailbox("bob");
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(ResponseStatus.USER_NOT_FOUND, limited.sendEmail("alice", "nobody" + i, "Subject", "Body"));
+        }
+
+        assertEquals(ResponseStatus.SUCCESS, limited.sendEmail("alice", "bob", "Subject", "Body"));
+        limited.shutdown();
+    }
+
+    @Test
+    void compactExpired_shouldRemoveEmailsOlderThanRetention() throws InterruptedException {
+        EmailManagerImpl expiring = new EmailManagerImpl(new UserIdInterner(),
+                EmailStorageConfig.builder()
+                        .retention(Duration.ofMillis(50))
+                        .compactionInterval(Duration.ofHours(1))
+                        .compactionBatchSize(1)
+                        .build());
+        expiring.initializeMailbox("alice");
+        expiring.initializeMailbox("bob");
+        expiring.sendEmail("alice", "bob", "Old", "Body");
+        expiring.sendEmail("alice", "bob", "Older", "Body");
+
+        Thread.sleep(100);
+        expiring.sendEmail("alice", "bob", "New", "Body");
+
+        assertEquals(4, expiring.compactExpired());
+        assertEquals(List.of("New"), expiring.getReceivedEmails("bob").stream().map(Email::getSubject).toList());
+        assertEquals(1, expiring.getSentEmails("alice").size());
+//        The body is still shared with the remaining email, so only the subjects were freed.
+        assertEquals("Old".length() + "Older".length(), expiring.getReclaimedBytes());
+        expiring.shutdown();
+    }
+
+    @Test
+    void readEmail_byRecipient_shouldNotMarkSendersCopyRead() {
+        emailManager.sendEmail("alice", "bob", "Hello", "Body");
+        int emailId = emailManager.getReceivedEmails("bob").get(0).getId();
+
+        emailManager.readEmail(emailId, "bob");
+
+        assertTrue(emailManager.getReceivedEmails("bob").get(0).isRead());
+        assertFalse(emailManager.getSentEmails("alice").get(0).isRead());
+    }
+
+    @Test
+    void markRangeRead_shouldMarkOnlyRange_andMarkAllReadTheRest() {
+        for (int i = 0; i < 5; i++) {
+            emailManager.sendEmail("alice", "bob", "Subject " + i, "Body");
+        }
+
+        assertEquals(2, emailManager.markRangeRead("bob", SearchType.RECEIVED, 1, 3));
+        List<Boolean> read = emailManager.getReceivedEmails("bob").stream().map(Email::isRead).toList();
+        assertEquals(List.of(false, true, true, false, false), read);
+
+        assertEquals(3, emailManager.markAllRead("bob", SearchType.RECEIVED));
+        assertTrue(emailManager.getReceivedEmails("bob").stream().allMatch(Email::isRead));
+    }
+
+    @Test
+    void searchEmails_byTimeRange_shouldReturnOnlyEmailsInRange_andApplySubjectFilter() throws InterruptedException {
+        emailManager.sendEmail("alice", "bob", "Before", "Body");
+        Thread.sleep(20);
+        LocalDateTime from = LocalDateTime.now();
+        emailManager.sendEmail("alice", "bob", "Inside match", "Body");
+        emailManager.sendEmail("alice", "bob", "Inside", "Body");
+        LocalDateTime to = LocalDateTime.now();
+        Thread.sleep(20);
+        emailManager.sendEmail("alice", "bob", "After match", "Body");
+
+        List<Email> inRange = emailManager.searchEmails("bob", EmailQuery.builder().from(from).to(to).build());
+        assertEquals(List.of("Inside match", "Inside"), inRange.stream().map(Email::getSubject).toList());
+
+        List<Email> matching = emailManager.searchEmails("bob",
+                EmailQuery.builder().subjectQuery("match").from(from).build());
+        assertEquals(List.of("Inside match", "After match"), matching.stream().map(Email::getSubject).toList());
+    }
+
+    @Test
+    void searchEmails_byCounterparty_shouldUseSenderForInboxAndRecipientForSent() {
+        emailManager.initializeMailbox("carol");
+        emailManager.sendEmail("alice", "bob", "Report", "Body");
+        emailManager.sendEmail("carol", "bob", "Report", "Body");
+        emailManager.sendEmail("alice", "bob", "Lunch", "Body");
+        emailManager.sendEmail("bob", "carol", "Report", "Body");
+
+        List<Email> fromAlice = emailManager.searchEmails("bob",
+                EmailQuery.builder().type(SearchType.FROM).counterparty("alice").build());
+        assertEquals(List.of("Report", "Lunch"), fromAlice.stream().map(Email::getSubject).toList());
+
+        List<Email> reportsFromAlice = emailManager.searchEmails("bob",
+                EmailQuery.builder().type(SearchType.FROM).counterparty("alice").subjectQuery("Rep").build());
+        assertEquals(1, reportsFromAlice.size());
+
+        List<Email> toCarol = emailManager.searchEmails("bob",
+                EmailQuery.builder().type(SearchType.TO).counterparty("carol").build());
+        assertEquals(1, toCarol.size());
+        assertEquals("carol", toCarol.get(0).getRecipientUsername());
+
+        assertTrue(emailManager.searchEmails("bob",
+                EmailQuery.builder().type(SearchType.FROM).counterparty("nobody").build()).isEmpty());
+    }
+
+    @Test
+    void listThreads_shouldGroupRepliesBySubjectAndParticipants() {
+        emailManager.initializeMailbox("carol");
+        emailManager.sendEmail("alice", "bob", "Budget", "Body");
+        emailManager.sendEmail("bob", "alice", "RE: budget", "Body");
+        emailManager.sendEmail("carol", "bob", "Budget", "Body");
+        emailManager.sendEmail("alice", "bob", "Re: Re: Budget", "Body");
+
+        List<EmailThread> threads = emailManager.listThreads("bob", 0, 10);
+
+        assertEquals(2, threads.size());
+        EmailThread withAlice = threads.get(0);
+        assertEquals("alice", withAlice.getParticipantUsername());
+        assertEquals("Budget", withAlice.getSubject());
+        assertEquals(3, withAlice.getMessageCount());
+        assertEquals(2, withAlice.getUnreadCount());
+        assertEquals("carol", threads.get(1).getParticipantUsername());
+
+        assertEquals(1, emailManager.listThreads("bob", 1, 10).size());
+    }
+
+    @Test
+    void sendEmail_inReplyTo_shouldJoinThread_andReadingShouldUpdateUnreadCount() {
+        emailManager.sendEmail("alice", "bob", "Question", "Body");
+        int questionId = emailManager.getReceivedEmails("bob").get(0).getId();
+        emailManager.sendEmail("bob", "alice", "Different subject", "Body", questionId);
+
+        List<EmailThread> aliceThreads = emailManager.listThreads("alice", 0, 10);
+        assertEquals(1, aliceThreads.size());
+        assertEquals(2, aliceThreads.get(0).getMessageCount());
+        assertEquals(1, aliceThreads.get(0).getUnreadCount());
+
+        emailManager.markAllRead("alice", SearchType.RECEIVED);
+        assertEquals(0, emailManager.listThreads("alice", 0, 10).get(0).getUnreadCount());
+    }
+
+    @Test
+    void filterEmails_shouldCombineLabelsAndReadState() {
+        for (int i = 0; i < 4; i++) {
+            emailManager.sendEmail("alice", "bob", "Subject " + i, "Body");
+        }
+        List<Integer> ids = emailManager.getReceivedEmails("bob").stream().map(Email::getId).toList();
+
+        assertEquals(3, emailManager.labelEmails("bob", SearchType.RECEIVED, "work", ids.subList(0, 3)));
+        assertEquals(1, emailManager.labelEmails("bob", SearchType.RECEIVED, "archived", List.of(ids.get(0), -1)));
+        emailManager.readEmail(ids.get(1), "bob");
+
+        List<Email> result = emailManager.filterEmails("bob", LabelFilter.builder()
+                .withLabel("work")
+                .withoutLabel("archived")
+                .read(false)
+                .build());
+
+        assertEquals(List.of(ids.get(2)), result.stream().map(Email::getId).toList());
+        assertTrue(emailManager.filterEmails("alice", LabelFilter.builder().withLabel("work").build()).isEmpty());
+
+        assertEquals(1, emailManager.unlabelEmails("bob", SearchType.RECEIVED, "archived", List.of(ids.get(0))));
+        assertEquals(2, emailManager.filterEmails("bob", LabelFilter.builder().withLabel("work").read(false).build()).size());
+    }
+
+    @Test
+    void readEmails_shouldResolveAllIdsInOrder_andMarkOnlyWhenRequested() {
+        emailManager.sendEmail("alice", "bob", "First", "Body");
+        emailManager.sendEmail("alice", "bob", "Second", "Body");
+        List<Integer> ids = emailManager.getReceivedEmails("bob").stream().map(Email::getId).toList();
+
+        List<Optional<Email>> peeked = emailManager.readEmails("bob", List.of(ids.get(1), -5, ids.get(0)), false);
+
+        assertEquals(List.of(Optional.of("Second"), Optional.empty(), Optional.of("First")),
+                peeked.stream().map(email -> email.map(Email::getSubject)).toList());
+        assertTrue(emailManager.getReceivedEmails("bob").stream().noneMatch(Email::isRead));
+
+        emailManager.readEmails("bob", ids, true);
+
+        assertTrue(emailManager.getReceivedEmails("bob").stream().allMatch(Email::isRead));
+        assertEquals(0, emailManager.listThreads("bob", 0, 10).stream().mapToInt(EmailThread::getUnreadCount).sum());
+    }
+}
@@ -0,0 +1,73 @@
+package unit;
+
+import metrics.ConnectionTracker;
+import metrics.InstrumentedThreadPoolExecutor;
+import metrics.JmxExporter;
+import metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstrumentedThreadPoolExecutorTests {
+
+    @Test
+    void execute_whenSaturated_shouldCountRejections_andExposeGauges() throws Exception {
+        InstrumentedThreadPoolExecutor pool = new InstrumentedThreadPoolExecutor("test", 1, 1, 1, TimeUnit.SECONDS, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            pool.execute(() -> {
+                started.countDown();
+                await(release);
+            });
+            started.await();
+            pool.execute(() -> await(release));
+            pool.execute(() -> await(release));
+
+            assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {
+            }));
+            assertEquals(1, pool.getRejectedCount());
+            assertEquals(100, pool.getQueueOccupancyPercent());
+
+            MetricsRegistry metrics = new MetricsRegistry();
+            pool.registerGauges(metrics);
+            assertEquals(2L, metrics.readGauges().get("pool.test.queued"));
+            assertEquals(1L, metrics.readGauges().get("pool.test.active"));
+
+            JmxExporter.register("ThreadPool", "test", pool);
+            Object queued = ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(ObjectName.getInstance("emailserver:type=ThreadPool,name=\"test\""), "QueueSize");
+            assertEquals(2, queued);
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void connectionTracker_shouldCountActiveAndClosedConnections() {
+        ConnectionTracker tracker = new ConnectionTracker();
+        long first = tracker.opened();
+        tracker.opened();
+
+        tracker.closed(first);
+
+        assertEquals(2, tracker.getOpenedConnections());
+        assertEquals(1, tracker.getActiveConnections());
+        assertEquals(1, tracker.getClosedConnections());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package unit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import model.email.EmailManagerImpl;
+import model.email.EmailStorageConfig;
+import model.user.UserIdInterner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JfrEventsTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void storageOperations_shouldEmitEventsWhenRecording() throws IOException {
+        EmailManagerImpl emails = new EmailManagerImpl(new UserIdInterner(), EmailStorageConfig.builder().shardCount(2).build());
+        emails.initializeMailbox("alice");
+        emails.initializeMailbox("bob");
+        Path file = directory.resolve("recording.jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable("emailserver.StorageOperation").withThreshold(Duration.ZERO);
+            recording.start();
+            emails.sendEmail("alice", "bob", "Hi", "there");
+            emails.getReceivedEmails("bob");
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertTrue(events.stream().anyMatch(event -> event.getString("operation").equals("send") && event.getString("user").equals("alice")));
+        assertTrue(events.stream().anyMatch(event -> event.getString("operation").equals("deliver") && event.getString("user").equals("bob")));
+        assertTrue(events.stream().anyMatch(event -> event.getString("operation").equals("listEmails")));
+        emails.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package unit;
+
+import model.user.LoginRateLimiter;
+import model.user.PasswordHasher;
+import model.user.UserManagerImpl;
+import org.junit.jupiter.api.Test;
+import service.ResponseStatus;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginRateLimiterTests {
+
+    private final AtomicLong now = new AtomicLong(1_000);
+
+    @Test
+    void tryAcquire_shouldAllowBurst_thenRefillOverTime() {
+        LoginRateLimiter limiter = new LoginRateLimiter(3, 60, 1024, now::get);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("addr:1"));
+        }
+        assertFalse(limiter.tryAcquire("addr:1"));
+        assertTrue(limiter.tryAcquire("addr:2"));
+
+        now.addAndGet(1_000);
+        assertTrue(limiter.tryAcquire("addr:1"));
+        assertFalse(limiter.tryAcquire("addr:1"));
+
+        assertEquals(5, limiter.getAllowedCount());
+        assertEquals(2, limiter.getThrottledCount());
+    }
+
+    @Test
+    void tryAcquire_withSeveralKeys_shouldTakeNothingWhenOneIsEmpty() {
+        LoginRateLimiter limiter = new LoginRateLimiter(1, 60, 1024, now::get);
+
+        assertTrue(limiter.tryAcquire("addr:1", "user:alice"));
+        assertFalse(limiter.tryAcquire("addr:2", "user:alice"));
+        assertTrue(limiter.tryAcquire("addr:2", null));
+    }
+
+    @Test
+    void tryAcquire_shouldStayWithinMaxKeys() {
+        LoginRateLimiter limiter = new LoginRateLimiter(2, 60, 64, now::get);
+
+        for (int i = 0; i < 10_000; i++) {
+            limiter.tryAcquire("addr:" + i);
+        }
+        assertTrue(limiter.getTrackedKeys() <= 64);
+        assertTrue(limiter.getEvictedCount() > 0);
+    }
+
+    @Test
+    void login_whenThrottled_shouldRejectWithoutCheckingPassword() {
+        PasswordHasher hasher = new PasswordHasher(1, 4, 4);
+        UserManagerImpl users = new UserManagerImpl(hasher, new LoginRateLimiter(2, 1, 1024, now::get));
+        users.register("alice", "secret");
+        long hashed = hasher.getCompletedCount();
+
+        assertEquals(ResponseStatus.INVALID_USERNAME_OR_PASSWORD, users.login("alice", "wrong", new Socket()));
+        assertEquals(ResponseStatus.INVALID_USERNAME_OR_PASSWORD, users.login("alice", "wrong", new Socket()));
+        assertEquals(ResponseStatus.TOO_MANY_ATTEMPTS, users.login("alice", "secret", new Socket()));
+        assertEquals(hashed + 2, hasher.getCompletedCount());
+        hasher.shutdown();
+    }
+}
@@ -0,0 +1,76 @@
+package unit;
+
+import metrics.CommandMetrics;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTests {
+
+    @Test
+    void snapshot_shouldReportPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count());
+        assertEquals(1_000_000, snapshot.max());
+        assertEquals(500_000, snapshot.p50(), 500_000 * 0.04);
+        assertEquals(990_000, snapshot.p99(), 990_000 * 0.04);
+        assertEquals(999_000, snapshot.p999(), 999_000 * 0.04);
+        assertTrue(snapshot.p999() <= snapshot.max());
+    }
+
+    @Test
+    void snapshot_withSmallAndHugeValues_shouldStayInRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(7);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(3, snapshot.count());
+        assertEquals(7, snapshot.p50());
+        assertEquals(Long.MAX_VALUE, snapshot.max());
+    }
+
+    @Test
+    void recordRequest_shouldCountRequestsErrorsAndBytes() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.recordRequest("LOGIN", 2_000, "LOGIN%%a%%b", "SUCCESS%%token");
+        registry.recordRequest("LOGIN", 4_000, "LOGIN%%a%%c", "INVALID_USERNAME_OR_PASSWORD");
+        registry.recordRequest("SEND_EMAIL", 1_000, "SEND_EMAIL%%b%%é%%x", null);
+        registry.registerGauge("queue", () -> 3);
+
+        CommandMetrics login = registry.command("LOGIN");
+        assertEquals(2, login.getRequests().sum());
+        assertEquals(1, login.getErrors().sum());
+        assertEquals(24, login.getBytesIn().sum());
+        assertEquals(4_000, login.getLatency().snapshot().max());
+        assertEquals(20, registry.command("SEND_EMAIL").getBytesIn().sum());
+
+        List<String> lines = registry.render();
+        assertTrue(lines.get(0).startsWith("LOGIN requests=2 errors=1"));
+        assertTrue(lines.get(1).startsWith("SEND_EMAIL requests=1 errors=1"));
+        assertEquals("queue=3", lines.get(2));
+    }
+
+    @Test
+    void command_beyondLimit_shouldBeCountedAsOther() {
+        MetricsRegistry registry = new MetricsRegistry();
+        for (int i = 0; i < 100; i++) {
+            registry.recordRequest("JUNK" + i, 1, "JUNK", "INVALID");
+        }
+
+        assertTrue(registry.getCommands().size() <= 65);
+        assertTrue(registry.getCommands().containsKey(MetricsRegistry.OTHER));
+    }
+}
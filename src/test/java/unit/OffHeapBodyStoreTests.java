@@ -0,0 +1,49 @@
+package unit;
+
+
+import model.email.OffHeapBodyStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapBodyStoreTests {
+
+    private OffHeapBodyStore bodyStore;
+
+    @BeforeEach
+    void setUp() {
+        bodyStore = new OffHeapBodyStore(64);
+    }
+
+    @Test
+    void store_shouldLoadSameContent() {
+        long first = bodyStore.store("Hello");
+        long second = bodyStore.store("Zdravo, світ");
+
+        assertEquals("Hello", bodyStore.load(first));
+        assertEquals("Zdravo, світ", bodyStore.load(second));
+    }
+
+    @Test
+    void store_oversizedBody_shouldUseDedicatedChunk() {
+        String large = "x".repeat(1000);
+
+        long handle = bodyStore.store(large);
+
+        assertEquals(large, bodyStore.load(handle));
+        assertTrue(bodyStore.reservedBytes() >= 1000);
+    }
+
+    @Test
+    void release_lastBodyOfChunk_shouldFreeChunk() {
+        long handle = bodyStore.store("y".repeat(1000));
+        long reserved = bodyStore.reservedBytes();
+
+        bodyStore.release(handle);
+
+        assertEquals(0, bodyStore.usedBytes());
+        assertTrue(bodyStore.reservedBytes() < reserved);
+        assertThrows(IllegalStateException.class, () -> bodyStore.load(handle));
+    }
+}
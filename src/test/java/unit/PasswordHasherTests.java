@@ -0,0 +1,111 @@
+package unit;
+
+import model.user.PasswordHasher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordHasherTests {
+
+    private PasswordHasher hasher;
+
+    @AfterEach
+    void tearDown() {
+        hasher.shutdown();
+    }
+
+    @Test
+    void hash_thenCheck_shouldMatchOnlyTheOriginalPassword() {
+        hasher = new PasswordHasher(2, 4, 4);
+
+        String hashed = hasher.hash("secret");
+
+        assertTrue(hasher.check("secret", hashed));
+        assertFalse(hasher.check("other", hashed));
+        assertEquals(3, hasher.getCompletedCount());
+        assertTrue(hasher.getHashingNanos() > 0);
+    }
+
+    @Test
+    void hash_whenQueueIsFull_shouldRejectImmediately() throws InterruptedException {
+        hasher = new PasswordHasher(1, 1, 10);
+
+        int rejected = hashConcurrently(6);
+
+        assertTrue(rejected > 0);
+        assertEquals(rejected, hasher.getRejectedCount());
+        assertEquals(6 - rejected, hasher.getCompletedCount());
+    }
+
+    @Test
+    void hash_whenQueuedWorkExceedsWaitBudget_shouldRejectBeforeQueueIsFull() throws InterruptedException {
+        hasher = new PasswordHasher(1, 100, 10, Duration.ofMillis(1));
+//        One completed hash gives the hasher an average to estimate waits with.
+        hasher.hash("secret");
+
+        int rejected = hashConcurrently(6);
+
+        assertTrue(rejected > 0);
+        assertEquals(rejected, hasher.getRejectedCount());
+        assertEquals(7 - rejected, hasher.getCompletedCount());
+    }
+
+    @Test
+    void costOf_shouldReadCostFromHash() {
+        hasher = new PasswordHasher(1, 1, 5);
+
+        assertEquals(5, PasswordHasher.costOf(hasher.hash("secret")));
+        assertEquals(-1, PasswordHasher.costOf("plain"));
+    }
+
+    @Test
+    void calibrate_shouldStayWithinBounds() {
+        hasher = new PasswordHasher(1, 1, 4);
+
+        assertEquals(4, PasswordHasher.calibrate(Duration.ZERO, 4, 10));
+        int cost = PasswordHasher.calibrate(Duration.ofMillis(50), 4, 6);
+        assertTrue(cost >= 4 && cost <= 6);
+    }
+
+    /**
+     * Hashes on that many threads released together and returns the number of rejected calls.
+     */
+    private int hashConcurrently(int calls) throws InterruptedException {
+        ExecutorService callers = Executors.newFixedThreadPool(calls);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                results.add(callers.submit(() -> {
+                    start.await();
+                    return hasher.hash("secret");
+                }));
+            }
+            start.countDown();
+
+            int rejected = 0;
+            for (Future<String> result : results) {
+                try {
+                    assertNotNull(result.get());
+                } catch (ExecutionException e) {
+                    assertInstanceOf(RejectedExecutionException.class, e.getCause());
+                    rejected++;
+                }
+            }
+            return rejected;
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package unit;
+
+
+import model.email.PositionBitmap;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PositionBitmapTests {
+
+    @Test
+    void add_shouldReportNewPositions_andContainThem() {
+        PositionBitmap bitmap = new PositionBitmap();
+
+        assertTrue(bitmap.add(3));
+        assertFalse(bitmap.add(3));
+        assertTrue(bitmap.add(70_000));
+
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(70_000));
+        assertFalse(bitmap.contains(4));
+        assertArrayEquals(new int[]{3, 70_000}, bitmap.toArray());
+    }
+
+    @Test
+    void addRange_shouldCountOnlyNewPositions_acrossContainers() {
+        PositionBitmap bitmap = new PositionBitmap();
+        bitmap.add(65_535);
+
+        assertEquals(199_999, bitmap.addRange(0, 200_000));
+        assertEquals(200_000, bitmap.cardinality());
+        assertEquals(0, bitmap.addRange(10, 20));
+    }
+
+    @Test
+    void remove_shouldConvertDenseContainerBack_andDropEmptyContainers() {
+        PositionBitmap bitmap = PositionBitmap.range(0, 10_000);
+
+        for (int i = 0; i < 9_999; i++) {
+            assertTrue(bitmap.remove(i));
+        }
+
+        assertArrayEquals(new int[]{9_999}, bitmap.toArray());
+        assertTrue(bitmap.remove(9_999));
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    void setOperations_shouldMatchBitSet_forSparseAndDenseContainers() {
+        Random random = new Random(42);
+        PositionBitmap first = new PositionBitmap();
+        PositionBitmap second = new PositionBitmap();
+        BitSet firstBits = new BitSet();
+        BitSet secondBits = new BitSet();
+//        Dense in the first container, sparse in the others.
+        for (int i = 0; i < 40_000; i++) {
+            int a = random.nextInt(65_536);
+            int b = random.nextInt(200_000);
+            first.add(a);
+            firstBits.set(a);
+            second.add(b);
+            secondBits.set(b);
+        }
+
+        BitSet and = (BitSet) firstBits.clone();
+        and.and(secondBits);
+        BitSet or = (BitSet) firstBits.clone();
+        or.or(secondBits);
+        BitSet andNot = (BitSet) firstBits.clone();
+        andNot.andNot(secondBits);
+
+        assertArrayEquals(and.stream().toArray(), first.and(second).toArray());
+        assertArrayEquals(or.stream().toArray(), first.or(second).toArray());
+        assertArrayEquals(andNot.stream().toArray(), first.andNot(second).toArray());
+        assertEquals(firstBits.cardinality(), first.cardinality());
+    }
+}
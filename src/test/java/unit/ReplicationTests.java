@@ -0,0 +1,250 @@
+package unit;
+
+
+import model.email.Email;
+import model.email.EmailManagerImpl;
+import model.email.EmailStorageConfig;
+import model.email.ExportedEmail;
+import model.email.LabelFilter;
+import model.email.SearchType;
+import model.user.PasswordHasher;
+import model.user.UserManagerImpl;
+import model.user.UserStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import replication.ReplicationApplier;
+import replication.ReplicationFollower;
+import replication.ReplicationLeader;
+import replication.ReplicationLog;
+import server.EmailServer;
+import service.ResponseStatus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationTests {
+
+    private UserManagerImpl leaderUsers;
+    private EmailManagerImpl leaderEmails;
+    private ReplicationLog replicationLog;
+    private ReplicationLeader leader;
+    private UserManagerImpl followerUsers;
+    private EmailManagerImpl followerEmails;
+    private ReplicationFollower follower;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        EmailStorageConfig config = EmailStorageConfig.builder().shardCount(2).build();
+        leaderUsers = new UserManagerImpl();
+        leaderEmails = new EmailManagerImpl(leaderUsers.getUserIds(), config);
+        replicationLog = ReplicationLog.temporary();
+        leader = new ReplicationLeader(replicationLog);
+        leaderUsers.setListener(leader);
+        leaderEmails.setListener(leader);
+        leader.start(0);
+
+        followerUsers = new UserManagerImpl();
+        followerEmails = new EmailManagerImpl(followerUsers.getUserIds(), EmailStorageConfig.builder().shardCount(3).build());
+        follower = new ReplicationFollower("localhost", leader.getPort(), followerEmails, followerUsers);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        follower.close();
+        leader.close();
+        replicationLog.close();
+        leaderEmails.shutdown();
+        followerEmails.shutdown();
+    }
+
+    @Test
+    void follower_shouldApplyRegistrationsSendsReadsAndLabels_keepingIds() throws InterruptedException {
+        register("alice");
+        register("bob");
+        leaderEmails.sendEmail("alice", "bob", "Hi %% there", "First body");
+        leaderEmails.sendEmail("bob", "alice", "Re: Hi %% there", "Second body");
+        int firstId = leaderEmails.getReceivedEmails("bob").get(0).getId();
+        leaderEmails.readEmail(firstId, "bob");
+        leaderEmails.labelEmails("bob", SearchType.RECEIVED, "work", List.of(firstId));
+
+//        Started late, so the follower has to catch up from the beginning of the log.
+        follower.start();
+        assertTrue(follower.awaitSequence(replicationLog.lastSequence(), Duration.ofSeconds(10)));
+
+        assertNotNull(followerUsers.getUser("alice").getPassword());
+        assertEquals(leaderUsers.getUser("alice").getPassword(), followerUsers.getUser("alice").getPassword());
+        List<Email> received = followerEmails.getReceivedEmails("bob");
+        assertEquals(1, received.size());
+        assertEquals(firstId, received.get(0).getId());
+        assertEquals("Hi %% there", received.get(0).getSubject());
+        assertEquals("First body", received.get(0).getContent());
+        assertTrue(received.get(0).isRead());
+        assertFalse(followerEmails.getSentEmails("alice").get(0).isRead());
+        assertEquals(1, followerEmails.filterEmails("bob", LabelFilter.builder().withLabel("work").build()).size());
+        assertEquals(1, followerEmails.listThreads("alice", 0, 10).size());
+
+        leaderEmails.markAllRead("alice", SearchType.RECEIVED);
+        assertTrue(follower.awaitSequence(replicationLog.lastSequence(), Duration.ofSeconds(10)));
+
+        assertTrue(followerEmails.getReceivedEmails("alice").get(0).isRead());
+        assertEquals(0, follower.getLagEntries());
+    }
+
+    @Test
+    void follower_withUsersFromLocalStore_shouldSkipExistingRegistrations() throws InterruptedException {
+        register("alice");
+        register("bob");
+        followerUsers.importUser("alice", leaderUsers.getUser("alice").getPassword());
+        followerEmails.initializeMailbox("alice");
+        leaderEmails.sendEmail("bob", "alice", "Hello", "Body");
+
+        follower.start();
+        assertTrue(follower.awaitSequence(replicationLog.lastSequence(), Duration.ofSeconds(10)));
+
+        assertEquals(1, followerEmails.getReceivedEmails("alice").size());
+        assertEquals(1, followerEmails.getSentEmails("bob").size());
+    }
+
+    @Test
+    void follower_shouldApplyUsersMovedInAndOutByRouting() throws InterruptedException {
+        register("alice");
+        register("bob");
+        leaderEmails.sendEmail("bob", "alice", "Staying", "Body");
+        leaderUsers.importUser("carol", "hash");
+        leaderEmails.importMailbox("carol", List.of(
+                new ExportedEmail(true, 7, "dave", "carol", "Moved %% along", "Imported body", 1000L, true, Set.of("work"))));
+        leaderEmails.recordRelayedSent(11, "carol", "erin", "Relayed", "Relayed body", 2000L, null);
+        leaderEmails.removeMailbox("bob");
+        leaderUsers.removeUser("bob");
+
+        follower.start();
+        assertTrue(follower.awaitSequence(replicationLog.lastSequence(), Duration.ofSeconds(10)));
+
+        assertNull(followerUsers.getUser("bob"));
+        assertEquals(-1, followerEmails.getMailboxSize("bob"));
+        assertEquals(1, followerEmails.getReceivedEmails("alice").size());
+        assertEquals("hash", followerUsers.getUser("carol").getPassword());
+        List<Email> received = followerEmails.getReceivedEmails("carol");
+        assertEquals(1, received.size());
+        assertEquals(7, received.get(0).getId());
+        assertEquals("Moved %% along", received.get(0).getSubject());
+        assertTrue(received.get(0).isRead());
+        assertEquals(1, followerEmails.filterEmails("carol", LabelFilter.builder().withLabel("work").build()).size());
+        List<Email> sent = followerEmails.getSentEmails("carol");
+        assertEquals(1, sent.size());
+        assertEquals(11, sent.get(0).getId());
+        assertEquals("Relayed body", sent.get(0).getContent());
+    }
+
+    @Test
+    void replicationLog_reopened_shouldContinueAfterLastCompleteEntry() throws Exception {
+        Path path = Files.createTempFile("replication-", ".log");
+        try (ReplicationLog first = new ReplicationLog(path)) {
+            first.append(ReplicationLog.READ, "alice", "1");
+            first.append(ReplicationLog.READ, "alice", "2");
+        }
+//        A crash in the middle of a write leaves a partial line behind.
+        Files.writeString(path, "3%%17", StandardOpenOption.APPEND);
+
+        try (ReplicationLog reopened = new ReplicationLog(path)) {
+            assertEquals(2, reopened.lastSequence());
+            assertEquals(3, reopened.append(ReplicationLog.READ, "alice", "3"));
+            reopened.close();
+            List<String> lines = Files.readAllLines(path);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(2).startsWith("3%%"));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void leader_restartedFromLog_shouldReplayMailboxesAndNotReuseIds() throws Exception {
+        register("alice");
+        register("bob");
+        leaderEmails.sendEmail("alice", "bob", "Before restart", "Body");
+        leaderEmails.sendEmail("bob", "alice", "Also before", "Body");
+        replicationLog.close();
+
+        UserManagerImpl restartedUsers = new UserManagerImpl();
+        EmailManagerImpl restartedEmails = new EmailManagerImpl(restartedUsers.getUserIds(),
+                EmailStorageConfig.builder().shardCount(2).build());
+        try (ReplicationLog reopened = new ReplicationLog(replicationLog.getPath())) {
+            assertEquals(4, new ReplicationApplier(restartedEmails, restartedUsers).replay(reopened));
+
+            assertEquals(1, restartedEmails.getReceivedEmails("bob").size());
+            assertEquals(ResponseStatus.SUCCESS, restartedEmails.sendEmail("alice", "bob", "After restart", "Body"));
+            assertEquals(ResponseStatus.SUCCESS, restartedEmails.sendEmail("bob", "alice", "Also after", "Body"));
+            Set<Integer> ids = new HashSet<>();
+            restartedEmails.getReceivedEmails("bob").forEach(email -> ids.add(email.getId()));
+            restartedEmails.getReceivedEmails("alice").forEach(email -> ids.add(email.getId()));
+            assertEquals(4, ids.size());
+        } finally {
+            restartedEmails.shutdown();
+        }
+    }
+
+    @Test
+    void leader_followerAheadOfLog_shouldBeAskedToResync() throws IOException {
+        try (Socket socket = new Socket("localhost", leader.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            out.println(ReplicationLeader.FOLLOW + "%%5");
+
+            assertEquals(ReplicationLeader.RESYNC + "%%0", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    void leaderStartedWithStoredAndImportedUsers_shouldReplicateThemToFollowers() throws Exception {
+        Path store = Files.createTempFile("users-", ".db");
+        Path csv = Files.createTempFile("users-", ".csv");
+        try (UserStore users = new UserStore(store)) {
+            users.put("stored", "hash");
+        }
+        Files.writeString(csv, "username,password\nimported,Password1!\n");
+        PasswordHasher hasher = new PasswordHasher(1, 4, 4);
+        UserManagerImpl users = new UserManagerImpl(hasher);
+        EmailManagerImpl emails = new EmailManagerImpl(users.getUserIds());
+        ReplicationLeader startedLeader = (ReplicationLeader) EmailServer.initialize(Map.of(
+                "--replication-port", "0",
+                "--user-store", store.toString(),
+                "--import-users", csv.toString()), users, emails);
+        try (ReplicationFollower startedFollower = new ReplicationFollower("localhost", startedLeader.getPort(), followerEmails, followerUsers)) {
+            startedFollower.start();
+            assertTrue(startedFollower.awaitSequence(2, Duration.ofSeconds(10)));
+
+            assertEquals("hash", followerUsers.getUser("stored").getPassword());
+            assertEquals(users.getUser("imported").getPassword(), followerUsers.getUser("imported").getPassword());
+            assertEquals(0, followerEmails.getMailboxSize("imported"));
+        } finally {
+            startedLeader.close();
+            emails.shutdown();
+            hasher.shutdown();
+            Files.deleteIfExists(store);
+            Files.deleteIfExists(csv);
+        }
+    }
+
+    private void register(String username) {
+        assertEquals(ResponseStatus.SUCCESS, leaderUsers.register(username, "Password1!"));
+        leaderEmails.initializeMailbox(username);
+    }
+}
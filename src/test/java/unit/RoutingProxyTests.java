@@ -0,0 +1,234 @@
+package unit;
+
+
+import model.email.Email;
+import model.email.EmailManagerImpl;
+import model.email.EmailStorageConfig;
+import model.user.UserManagerImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import router.Backend;
+import router.ConsistentHashRing;
+import router.RoutingProxy;
+import service.ServiceClientHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingProxyTests {
+
+    private static final String SECRET = "test-secret";
+
+    private final List<Node> nodes = new ArrayList<>();
+    private RoutingProxy proxy;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (proxy != null) {
+            proxy.close();
+        }
+        for (Node node : nodes) {
+            node.close();
+        }
+    }
+
+    @Test
+    void sendEmail_toUserOnOtherNode_shouldBeRelayed_andUsersShouldMoveWhenNodeJoins() throws IOException {
+        Node first = startNode(0);
+        Node second = startNode(1);
+        proxy = new RoutingProxy(List.of(first.backend(), second.backend()), SECRET);
+        proxy.start(0);
+
+        String sender = userOn(first.backend(), 0);
+        String recipient = userOn(second.backend(), 0);
+
+        try (Client alice = new Client(proxy.getPort()); Client bob = new Client(proxy.getPort())) {
+            assertEquals("SUCCESS", alice.request("REGISTER%%" + sender + "%%Password1!%%Password1!"));
+            assertEquals("SUCCESS", bob.request("REGISTER%%" + recipient + "%%Password1!%%Password1!"));
+
+            assertEquals("SUCCESS", alice.request("SEND_EMAIL%%" + recipient + "%%Hello%%Across nodes"));
+            assertEquals("USER_NOT_FOUND", alice.request("SEND_EMAIL%%nobody-here%%Hello%%Body"));
+
+            List<Email> received = second.emails().getReceivedEmails(recipient);
+            List<Email> sent = first.emails().getSentEmails(sender);
+            assertEquals(1, received.size());
+            assertEquals("Across nodes", received.get(0).getContent());
+            assertEquals(received.get(0).getId(), sent.get(0).getId());
+            assertTrue(bob.request("GET_RECEIVED_EMAILS").contains("Across nodes"));
+
+            Node third = startNode(2);
+            ConsistentHashRing<Backend> grown = new ConsistentHashRing<>();
+            nodes.forEach(node -> grown.addNode(node.backend()));
+            String moving = userOn(first.backend(), 1000, grown, third.backend());
+            first.users().importUser(moving, "hash");
+            first.emails().initializeMailbox(moving);
+            first.emails().sendEmail(moving, sender, "Before", "the move");
+
+            assertEquals("SUCCESS%%" + (1 + countOwnedBy(grown, third.backend(), sender, recipient)),
+                    alice.request("ADD_NODE%%" + SECRET + "%%" + third.backend()));
+
+            assertNull(first.users().getUser(moving));
+            assertEquals("hash", third.users().getUser(moving).getPassword());
+            assertEquals("the move", third.emails().getSentEmails(moving).get(0).getContent());
+            for (String user : List.of(sender, recipient)) {
+                Node owner = nodes.stream().filter(node -> node.backend().equals(proxy.nodeFor(user))).findFirst().orElseThrow();
+                assertNotNull(owner.users().getUser(user));
+                assertFalse(owner.emails().exportMailbox(user).isEmpty());
+            }
+        }
+    }
+
+    @Test
+    void sendEmail_whenSentCopyCannotBeRecorded_shouldReportIt() throws IOException {
+        Node first = startNode(0);
+        Node second = startNode(1);
+        proxy = new RoutingProxy(List.of(first.backend(), second.backend()), SECRET);
+        proxy.start(0);
+
+        String sender = userOn(first.backend(), 0);
+        String recipient = userOn(second.backend(), 0);
+
+        try (Client alice = new Client(proxy.getPort())) {
+            assertEquals("SUCCESS", alice.request("REGISTER%%" + sender + "%%Password1!%%Password1!"));
+            second.users().importUser(recipient, "hash");
+            second.emails().initializeMailbox(recipient);
+            first.emails().removeMailbox(sender);
+
+            assertEquals("SENT_NOT_RECORDED", alice.request("SEND_EMAIL%%" + recipient + "%%Hello%%Body"));
+            assertEquals(1, second.emails().getReceivedEmails(recipient).size());
+        }
+    }
+
+    @Test
+    void addNode_whenAMoveFails_shouldMoveUsersBackAndNotJoin() throws IOException {
+        Node first = startNode(0);
+        Node second = startNode(1);
+        proxy = new RoutingProxy(List.of(first.backend(), second.backend()), SECRET);
+        Node third = startNode(2);
+        ConsistentHashRing<Backend> grown = new ConsistentHashRing<>();
+        nodes.forEach(node -> grown.addNode(node.backend()));
+
+        List<String> moving = new ArrayList<>();
+        int next = 0;
+        while (moving.size() < 5) {
+            String user = userOn(first.backend(), next, grown, third.backend());
+            moving.add(user);
+            next = Integer.parseInt(user.substring("user".length())) + 1;
+            first.users().importUser(user, "hash");
+            first.emails().initializeMailbox(user);
+        }
+//        The new node already has one of the users, so importing that one fails.
+        String conflicting = moving.get(2);
+        third.users().importUser(conflicting, "other");
+        third.emails().initializeMailbox(conflicting);
+
+        assertThrows(IOException.class, () -> proxy.addNode(third.backend()));
+
+        for (String user : moving) {
+            assertEquals(first.backend(), proxy.nodeFor(user));
+            assertEquals("hash", first.users().getUser(user).getPassword());
+        }
+        assertEquals("other", third.users().getUser(conflicting).getPassword());
+        assertEquals(1, third.users().getUsernames().size());
+    }
+
+    @Test
+    void importUser_withLeftoverMailbox_shouldNotAddTheUser() throws IOException {
+        Node node = startNode(0);
+        node.emails().initializeMailbox("leftover");
+
+        try (Client relay = new Client(node.backend().port())) {
+            assertEquals("USER_ALREADY_EXISTS", relay.request("IMPORT_USER%%" + SECRET + "%%leftover%%hash"));
+        }
+        assertNull(node.users().getUser("leftover"));
+    }
+
+    private static long countOwnedBy(ConsistentHashRing<Backend> ring, Backend node, String... users) {
+        return Arrays.stream(users).filter(user -> node.equals(ring.nodeFor(user))).count();
+    }
+
+    /**
+     * Finds a username the proxy assigns to the node.
+     */
+    private String userOn(Backend node, int start) {
+        return userOn(node, start, null, null);
+    }
+
+    /**
+     * Finds a username the proxy assigns to the node and, if given, the other ring assigns to the other node.
+     */
+    private String userOn(Backend node, int start, ConsistentHashRing<Backend> otherRing, Backend otherNode) {
+        for (int i = start; ; i++) {
+            String user = "user" + i;
+            if (proxy.nodeFor(user).equals(node) && (otherRing == null || otherRing.nodeFor(user).equals(otherNode))) {
+                return user;
+            }
+        }
+    }
+
+    private Node startNode(int index) throws IOException {
+        UserManagerImpl users = new UserManagerImpl();
+        EmailManagerImpl emails = new EmailManagerImpl(users.getUserIds(),
+                EmailStorageConfig.builder().shardCount(2).nodeIndex(index).maxNodes(4).build());
+        ServerSocket serverSocket = new ServerSocket(0);
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    handlers.submit(new ServiceClientHandler(serverSocket.accept(), emails, users, null, SECRET));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Node node = new Node(new Backend("localhost", serverSocket.getLocalPort()), users, emails, serverSocket, handlers);
+        nodes.add(node);
+        return node;
+    }
+
+    private record Node(Backend backend, UserManagerImpl users, EmailManagerImpl emails, ServerSocket serverSocket,
+                        ExecutorService handlers) {
+
+        void close() throws IOException {
+            serverSocket.close();
+            handlers.shutdownNow();
+            emails.shutdown();
+        }
+    }
+
+    private static final class Client implements AutoCloseable {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        String request(String line) throws IOException {
+            out.println(line);
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
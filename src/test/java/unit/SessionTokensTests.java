@@ -0,0 +1,92 @@
+package unit;
+
+import model.user.SessionTokens;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTokensTests {
+
+    private final AtomicLong now = new AtomicLong(1_000);
+    private SessionTokens tokens;
+
+    @BeforeEach
+    void setUp() {
+        tokens = new SessionTokens(Duration.ofMinutes(10), 3, now::get);
+    }
+
+    @Test
+    void isValid_shouldAcceptIssuedToken_onlyForItsUser() {
+        String token = tokens.issue("alice");
+
+        assertTrue(tokens.isValid("alice", token));
+        assertFalse(tokens.isValid("bob", token));
+        assertFalse(tokens.isValid("alice", "made-up"));
+        assertNotEquals(token, tokens.issue("alice"));
+    }
+
+    @Test
+    void isValid_afterTtl_shouldRejectAndDropToken() {
+        String token = tokens.issue("alice");
+
+        now.addAndGet(Duration.ofMinutes(10).toMillis());
+
+        assertFalse(tokens.isValid("alice", token));
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void revoke_shouldInvalidateToken() {
+        String first = tokens.issue("alice");
+        String second = tokens.issue("alice");
+        String other = tokens.issue("bob");
+
+        tokens.revoke(first);
+        assertFalse(tokens.isValid("alice", first));
+        assertTrue(tokens.isValid("alice", second));
+
+        tokens.revokeAll("alice");
+        assertFalse(tokens.isValid("alice", second));
+        assertTrue(tokens.isValid("bob", other));
+    }
+
+    @Test
+    void issue_whenFull_shouldEvictExpiredThenOldestTokens() {
+        String oldest = tokens.issue("a");
+        now.addAndGet(1);
+        String middle = tokens.issue("b");
+        now.addAndGet(1);
+        tokens.issue("c");
+
+        tokens.issue("d");
+        assertEquals(3, tokens.size());
+        assertFalse(tokens.isValid("a", oldest));
+        assertTrue(tokens.isValid("b", middle));
+
+        now.addAndGet(Duration.ofMinutes(10).toMillis());
+        tokens.issue("e");
+        assertEquals(1, tokens.size());
+    }
+
+    @Test
+    void issue_whenFull_shouldEvictATenthOfTheTokensAtOnce() {
+        tokens = new SessionTokens(Duration.ofMinutes(10), 20, now::get);
+        String[] issued = new String[20];
+        for (int i = 0; i < issued.length; i++) {
+            issued[i] = tokens.issue("user" + i);
+            now.addAndGet(1);
+        }
+
+        tokens.issue("next");
+        assertEquals(19, tokens.size());
+        assertFalse(tokens.isValid("user1", issued[1]));
+        assertTrue(tokens.isValid("user2", issued[2]));
+
+        tokens.issue("after");
+        assertEquals(20, tokens.size());
+    }
+}
@@ -0,0 +1,58 @@
+package unit;
+
+import metrics.RequestStages;
+import metrics.SlowRequestTracker;
+import model.email.EmailManagerImpl;
+import model.email.EmailStorageConfig;
+import model.user.UserIdInterner;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlowRequestTrackerTests {
+
+    @Test
+    void record_shouldKeepNewestRequestsUpToCapacity() {
+        SlowRequestTracker tracker = new SlowRequestTracker(Duration.ofMillis(10), 3);
+        RequestStages stages = new RequestStages();
+        stages.addStorage(4_000_000);
+        stages.addWrite(1_000_000);
+
+        assertFalse(tracker.isSlow(9_999_999));
+        assertTrue(tracker.isSlow(10_000_000));
+        for (int i = 0; i < 5; i++) {
+            tracker.record("CMD" + i, "alice", 12_000_000, stages, 42, 100);
+        }
+
+        List<SlowRequestTracker.SlowRequest> recent = tracker.recent();
+        assertEquals(List.of("CMD4", "CMD3", "CMD2"), recent.stream().map(SlowRequestTracker.SlowRequest::command).toList());
+        assertEquals(7_000_000, recent.get(0).otherNanos());
+        assertTrue(recent.get(0).describe().contains("storage=4000us serialization=0us write=1000us other=7000us mailbox=42"));
+        assertEquals(5, tracker.getCapturedCount());
+    }
+
+    @Test
+    void shardCalls_shouldCountAsStorageTimeOfTheCurrentRequest() {
+        EmailManagerImpl emails = new EmailManagerImpl(new UserIdInterner(), EmailStorageConfig.builder().shardCount(1).build());
+        emails.initializeMailbox("alice");
+
+        RequestStages stages = RequestStages.begin();
+        try {
+            emails.sendEmail("alice", "alice", "Hi", "me");
+            emails.getReceivedEmails("alice");
+        } finally {
+            RequestStages.end();
+        }
+        SlowRequestTracker tracker = new SlowRequestTracker(Duration.ZERO, 1);
+        tracker.record("SEND_EMAIL", "alice", Long.MAX_VALUE, stages, emails.getMailboxSize("alice"), 0);
+
+        assertTrue(tracker.recent().get(0).storageNanos() > 0);
+        assertEquals(2, tracker.recent().get(0).mailboxSize());
+        assertEquals(-1, emails.getMailboxSize("nobody"));
+        assertNull(RequestStages.current());
+        emails.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+package unit;
+
+
+import model.email.BodyCache;
+import model.email.OffHeapBodyStore;
+import model.email.SegmentFileBodyStore;
+import model.email.TieredBodyStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredBodyStoreTests {
+
+    private TieredBodyStore bodyStore;
+
+    @BeforeEach
+    void setUp() {
+        bodyStore = new TieredBodyStore(new OffHeapBodyStore(1024), SegmentFileBodyStore.temporary(), new BodyCache(10));
+    }
+
+    @Test
+    void demote_shouldMoveBodyToColdTier_andKeepHandle() {
+        long handle = bodyStore.store("Old news");
+
+        bodyStore.demote(handle);
+
+        assertEquals(0, bodyStore.hotBytes());
+        assertTrue(bodyStore.coldBytes() > 0);
+        assertEquals("Old news", bodyStore.load(handle));
+        assertEquals(1, bodyStore.demotions());
+    }
+
+    @Test
+    void load_coldBody_shouldBeServedFromCacheAfterFirstRead() {
+        long handle = bodyStore.store("Cached");
+        bodyStore.demote(handle);
+
+        bodyStore.load(handle);
+        bodyStore.load(handle);
+
+        assertEquals(1, bodyStore.getCache().misses());
+        assertEquals(1, bodyStore.getCache().hits());
+    }
+
+    @Test
+    void cache_overCapacity_shouldEvictLeastRecentlyUsed() {
+        long first = bodyStore.store("123456");
+        long second = bodyStore.store("abcdef");
+        bodyStore.demote(first);
+        bodyStore.demote(second);
+
+        bodyStore.load(first);
+        bodyStore.load(second);
+
+        assertEquals(1, bodyStore.getCache().evictions());
+        assertEquals("123456", bodyStore.load(first));
+        assertEquals(3, bodyStore.getCache().misses());
+    }
+
+    @Test
+    void load_releasedHandle_shouldNotReturnBodyStoredInReusedSlot() {
+        long released = bodyStore.store("Released");
+        bodyStore.demote(released);
+        bodyStore.load(released);
+        bodyStore.release(released);
+
+        long reused = bodyStore.store("Reused");
+        bodyStore.demote(reused);
+
+        assertNotEquals(released, reused);
+        assertThrows(IllegalStateException.class, () -> bodyStore.load(released));
+        assertEquals("Reused", bodyStore.load(reused));
+    }
+
+    @Test
+    void release_staleHandle_shouldKeepBodyStoredInReusedSlot() {
+        long released = bodyStore.store("Released");
+        bodyStore.release(released);
+        long reused = bodyStore.store("Reused");
+
+        bodyStore.release(released);
+
+        assertEquals("Reused", bodyStore.load(reused));
+    }
+
+    @Test
+    void demote_onExecutor_shouldMoveBodyWhenTaskRuns() {
+        List<Runnable> pending = new ArrayList<>();
+        TieredBodyStore deferred = new TieredBodyStore(new OffHeapBodyStore(1024), SegmentFileBodyStore.temporary(),
+                new BodyCache(10), pending::add);
+        long handle = deferred.store("Later");
+
+        deferred.demote(handle);
+        assertEquals(0, deferred.demotions());
+
+        pending.forEach(Runnable::run);
+        assertEquals(1, deferred.demotions());
+        assertEquals("Later", deferred.load(handle));
+    }
+
+    @Test
+    void release_coldBody_shouldFreeColdBytes() {
+        long handle = bodyStore.store("Gone");
+        bodyStore.demote(handle);
+
+        bodyStore.release(handle);
+
+        assertEquals(0, bodyStore.usedBytes());
+    }
+}
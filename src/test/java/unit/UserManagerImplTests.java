@@ -1,13 +1,17 @@
 package unit;
 
 
+import model.user.PasswordHasher;
 import model.user.User;
+import model.user.UserIdInterner;
 import model.user.UserManagerImpl;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mindrot.jbcrypt.BCrypt;
 import service.ResponseStatus;
 
 import java.net.Socket;
+import java.util.Map;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -113,4 +117,31 @@ class UserManagerImplTests {
         status = userManager.register(null, null);
         assertEquals(ResponseStatus.INVALID_USERNAME_OR_PASSWORD, status);
     }
+
+    @Test
+    void register_shouldInternUserId() {
+        userManager.register("frank", "pwd");
+
+        int id = userManager.getUserIds().idOf("frank");
+
+        assertNotEquals(UserIdInterner.UNKNOWN, id);
+        assertEquals("frank", userManager.getUserIds().nameOf(id));
+    }
+
+    @Test
+    void login_withHashOfOtherCost_shouldRehashAtCurrentCost() {
+        PasswordHasher hasher = new PasswordHasher(1, 4, 5);
+        UserManagerImpl users = new UserManagerImpl(hasher);
+        users.importUser("dave", BCrypt.hashpw("secret", BCrypt.gensalt(4)));
+        assertEquals(Map.of(4, 1L), users.getCostDistribution());
+
+        assertEquals(ResponseStatus.INVALID_USERNAME_OR_PASSWORD, users.login("dave", "wrong", new Socket()));
+        assertEquals(4, PasswordHasher.costOf(users.getUser("dave").getPassword()));
+
+        assertEquals(ResponseStatus.SUCCESS, users.login("dave", "secret", new Socket()));
+        assertEquals(5, PasswordHasher.costOf(users.getUser("dave").getPassword()));
+        assertEquals(Map.of(5, 1L), users.getCostDistribution());
+        assertEquals(ResponseStatus.SUCCESS, users.login("dave", "secret", new Socket()));
+        hasher.shutdown();
+    }
 }
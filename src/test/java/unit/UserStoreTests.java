@@ -0,0 +1,119 @@
+package unit;
+
+import model.email.EmailManagerImpl;
+import model.email.EmailStorageConfig;
+import model.user.PasswordHasher;
+import model.user.UserManagerImpl;
+import model.user.UserStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.UserImporter;
+import service.ResponseStatus;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserStoreTests {
+
+    @TempDir
+    Path directory;
+
+    private final PasswordHasher hasher = new PasswordHasher(2, 16, 4);
+
+    @AfterEach
+    void tearDown() {
+        hasher.shutdown();
+    }
+
+    @Test
+    void attachStore_shouldReloadRegisteredUsers_withoutRemovedOnes() throws IOException {
+        Path file = directory.resolve("users.db");
+        try (UserStore store = new UserStore(file)) {
+            UserManagerImpl users = new UserManagerImpl(hasher);
+            users.attachStore(store);
+            users.register("alice", "secret");
+            users.register("bob", "secret");
+            users.importUser("carol", "hash");
+            users.removeUser("bob");
+        }
+
+        try (UserStore store = new UserStore(file)) {
+            UserManagerImpl users = new UserManagerImpl(hasher);
+            assertEquals(2, users.attachStore(store));
+
+            assertEquals(ResponseStatus.SUCCESS, users.login("alice", "secret", new Socket()));
+            assertNull(users.getUser("bob"));
+            assertEquals("hash", users.getUser("carol").getPassword());
+            assertEquals(ResponseStatus.USER_ALREADY_EXISTS, users.register("alice", "other"));
+        }
+    }
+
+    @Test
+    void open_afterTornLastRecord_shouldKeepUsersAddedLater() throws IOException {
+        Path file = directory.resolve("users.db");
+        try (UserStore store = new UserStore(file)) {
+            store.put("alice", "hash");
+        }
+        Files.writeString(file, "PUT%%al", StandardOpenOption.APPEND);
+
+        try (UserStore store = new UserStore(file)) {
+            assertEquals(Map.of("alice", "hash"), store.getLoadedUsers());
+            store.put("bob", "hash2");
+        }
+
+        try (UserStore store = new UserStore(file)) {
+            assertEquals(Map.of("alice", "hash", "bob", "hash2"), store.getLoadedUsers());
+        }
+    }
+
+    @Test
+    void open_withMostlySupersededRecords_shouldCompactFile() throws IOException {
+        Path file = directory.resolve("users.db");
+        try (UserStore store = new UserStore(file)) {
+            for (int i = 0; i < 2000; i++) {
+                store.put("alice", "hash" + i);
+            }
+            store.put("bob", "hash");
+        }
+
+        try (UserStore store = new UserStore(file)) {
+            assertEquals(Map.of("alice", "hash1999", "bob", "hash"), store.getLoadedUsers());
+        }
+        assertEquals(2, Files.readAllLines(file).size());
+    }
+
+    @Test
+    void importCsv_shouldRegisterUsersInBatches_andCreateMailboxes() throws IOException {
+        Path csv = directory.resolve("users.csv");
+        Files.write(csv, List.of("username,password", "u1,pass1", "u2,pass2", "", "broken", "u3,pass,with,commas", "u1,again", "u4,pass4"));
+        UserManagerImpl users = new UserManagerImpl(hasher);
+        EmailManagerImpl emails = new EmailManagerImpl(users.getUserIds(), EmailStorageConfig.builder().shardCount(2).build());
+        users.importUser("u4", "hash");
+        emails.initializeMailbox("u4");
+
+        try (UserStore store = new UserStore(directory.resolve("users.db"))) {
+            users.attachStore(store);
+            UserImporter.Result result = new UserImporter(users, emails, 2).importCsv(csv);
+
+            assertEquals(3, result.imported());
+            assertEquals(2, result.existing());
+            assertEquals(1, result.invalid());
+        }
+
+        assertEquals(ResponseStatus.SUCCESS, users.login("u3", "pass,with,commas", new Socket()));
+        assertEquals(ResponseStatus.SUCCESS, users.login("u1", "pass1", new Socket()));
+        assertEquals(ResponseStatus.SUCCESS, emails.sendEmail("u1", "u2", "Hi", "there"));
+        try (UserStore reopened = new UserStore(directory.resolve("users.db"))) {
+            assertEquals(3, reopened.getLoadedUsers().size());
+        }
+        emails.shutdown();
+    }
+}